@@ -0,0 +1,173 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TTR of each master file computed from how often it changes, so files which
+ * rarely change are not polled as often as the ones rewritten every few
+ * seconds.
+ * 
+ * The master keeps an exponentially weighted moving average of the time
+ * between the modifications of each file. Taking the modifications as a
+ * Poisson process with that mean, a copy refreshed every TTR ms is stale
+ * with probability 1 - exp(-TTR / mean), so the TTR handed out is the one
+ * which keeps that probability at the target: -mean * ln(1 - target). Until
+ * a file has changed the mean is the one which gives the configured TTR, and
+ * a file which has not changed for longer than its mean is taken to change
+ * at most that often. The TTR is bounded to MIN_FACTOR and MAX_FACTOR times
+ * the configured one.
+ * 
+ * @author palvare3
+ * 
+ */
+public class AdaptiveTTR {
+
+	// Target probability that a copy is stale
+	public static final double DEFAULT_TARGET_STALENESS = 0.1;
+
+	// Weight of the last interval in the average
+	private static final double ALPHA = 0.3;
+
+	// Bounds of the TTR, relative to the configured one
+	private static final double MIN_FACTOR = 0.1;
+	private static final double MAX_FACTOR = 10;
+
+	private int baseTTR;
+
+	private Clock clock;
+
+	private volatile double targetStaleness = DEFAULT_TARGET_STALENESS;
+
+	private Map<String, Rate> rates = new ConcurrentHashMap<String, Rate>();
+
+	/**
+	 * @param baseTTR
+	 *            Configured TTR (ms), handed out for files with no history
+	 * @param clock
+	 */
+	public AdaptiveTTR(int baseTTR, Clock clock) {
+		this.baseTTR = baseTTR;
+		this.clock = clock;
+	}
+
+	/**
+	 * @param targetStaleness
+	 *            Probability (0-1) that a copy is stale, 0 to always hand out
+	 *            the configured TTR
+	 */
+	public void setTargetStaleness(double targetStaleness) {
+		if ((targetStaleness < 0) || (targetStaleness >= 1)) {
+			throw new IllegalArgumentException("Target staleness out of [0, 1): "
+					+ targetStaleness);
+		}
+		this.targetStaleness = targetStaleness;
+	}
+
+	public double getTargetStaleness() {
+		return targetStaleness;
+	}
+
+	/**
+	 * Starts tracking a master file
+	 * 
+	 * @param filename
+	 */
+	public void register(String filename) {
+		rates.put(filename, new Rate(clock.nanoTime()));
+	}
+
+	public void remove(String filename) {
+		rates.remove(filename);
+	}
+
+	/**
+	 * Records a modification of a master file
+	 * 
+	 * @param filename
+	 */
+	public void modified(String filename) {
+		Rate rate = rates.get(filename);
+		if (rate == null) {
+			register(filename);
+		} else {
+			rate.modified(clock.nanoTime(), initialMean());
+		}
+	}
+
+	/**
+	 * @param filename
+	 * @return TTR (ms) of a master file
+	 */
+	public int getTTR(String filename) {
+		double target = targetStaleness;
+		Rate rate = rates.get(filename);
+		if ((target <= 0) || (rate == null)) {
+			return baseTTR;
+		}
+
+		double mean = rate.getMean(clock.nanoTime(), initialMean());
+		double ttr = -mean * Math.log(1 - target);
+		ttr = Math.max(ttr, baseTTR * MIN_FACTOR);
+		ttr = Math.min(ttr, baseTTR * MAX_FACTOR);
+		return (int) ttr;
+	}
+
+	/**
+	 * @return Mean time (ms) between modifications for which the configured
+	 *         TTR meets the current target. Files with no history take it,
+	 *         so it follows the target if it is set after they are
+	 *         registered.
+	 */
+	private double initialMean() {
+		double target = targetStaleness;
+		if (target <= 0) {
+			return baseTTR;
+		}
+		return baseTTR / -Math.log(1 - target);
+	}
+
+	/**
+	 * Modification history of a file
+	 */
+	private static class Rate {
+
+		private long lastModified;
+
+		// Average time (ms) between modifications, only valid once the file
+		// has changed
+		private double mean;
+
+		private boolean history = false;
+
+		public Rate(long now) {
+			this.lastModified = now;
+		}
+
+		/**
+		 * @param now
+		 * @param initialMean
+		 *            Mean the average starts from if the file had not changed
+		 */
+		public synchronized void modified(long now, double initialMean) {
+			double interval = TimeUnit.NANOSECONDS.toMicros(now - lastModified) / 1000.0;
+			mean = ALPHA * interval + (1 - ALPHA)
+					* (history ? mean : initialMean);
+			history = true;
+			lastModified = now;
+		}
+
+		/**
+		 * @param now
+		 * @param initialMean
+		 *            Mean of a file which has not changed yet
+		 * @return The average, or the time since the last modification if it
+		 *         is longer
+		 */
+		public synchronized double getMean(long now, double initialMean) {
+			double unchanged = TimeUnit.NANOSECONDS.toMicros(now - lastModified) / 1000.0;
+			return Math.max(history ? mean : initialMean, unchanged);
+		}
+
+	}
+
+}
@@ -0,0 +1,99 @@
+import java.io.Serializable;
+
+/**
+ * Fixed-size Bloom filter of filenames. It answers whether a filename might be
+ * in the set (with a small rate of false positives) or is surely not in it.
+ * 
+ * @author palvare3
+ * 
+ */
+public class BloomFilter implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// Number of bits of every filter, 8 KB
+	public static final int BITS = 1 << 16;
+
+	public static final int WORDS = BITS / 64;
+
+	private static final int HASHES = 4;
+
+	private long[] words;
+
+	public BloomFilter() {
+		this.words = new long[WORDS];
+	}
+
+	/**
+	 * Adds a filename to the filter
+	 * 
+	 * @param filename
+	 */
+	public void add(String filename) {
+		int h1 = filename.hashCode();
+		int h2 = mix(h1);
+		for (int i = 0; i < HASHES; i++) {
+			int bit = (h1 + i * h2) & (BITS - 1);
+			words[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * @param filename
+	 * @return false if the filename is surely not in the filter
+	 */
+	public boolean mightContain(String filename) {
+		int h1 = filename.hashCode();
+		int h2 = mix(h1);
+		for (int i = 0; i < HASHES; i++) {
+			int bit = (h1 + i * h2) & (BITS - 1);
+			if ((words[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Adds all the filenames of another filter to this one
+	 * 
+	 * @param other
+	 */
+	public void or(BloomFilter other) {
+		for (int i = 0; i < WORDS; i++) {
+			words[i] |= other.words[i];
+		}
+	}
+
+	/**
+	 * @param index
+	 * @return A word of 64 bits of the filter
+	 */
+	public long getWord(int index) {
+		return words[index];
+	}
+
+	/**
+	 * Replaces a word of 64 bits of the filter
+	 * 
+	 * @param index
+	 * @param word
+	 */
+	public void setWord(int index, long word) {
+		words[index] = word;
+	}
+
+	/**
+	 * Second hash derived from the first one, for double hashing. It is forced
+	 * to be odd so all bits can be reached.
+	 */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h | 1;
+	}
+
+}
@@ -0,0 +1,34 @@
+import java.util.concurrent.Future;
+
+/**
+ * Source of time and timers of a peer. Standalone peers use the system clock
+ * (see SystemClock); the network simulator runs many peers on a virtual clock
+ * which only moves forward between events (see VirtualClock), so a run does
+ * not depend on the speed of the machine.
+ * 
+ * @author palvare3
+ * 
+ */
+public interface Clock {
+
+	/**
+	 * @return Monotonic time in nanoseconds, only meaningful as a difference
+	 */
+	public long nanoTime();
+
+	/**
+	 * @return Wall clock time in milliseconds
+	 */
+	public long currentTimeMillis();
+
+	/**
+	 * Runs a task once after a delay
+	 * 
+	 * @param task
+	 * @param delay
+	 *            Time (ms) until the task runs, negative values count as 0
+	 * @return Future which cancels the task
+	 */
+	public Future<?> schedule(Runnable task, long delay);
+
+}
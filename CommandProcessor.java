@@ -1,3 +1,5 @@
+import java.util.Map;
+
 /**
  * Class that defines the command processor of the command prompt.
  * 
@@ -5,7 +7,7 @@
  */
 public class CommandProcessor {
 
-	private static final String HELP = "Peer2PeerRMI Help: \n obtain [filename] \n exit";
+	private static final String HELP = "Peer2PeerRMI Help: \n obtain [filename] \n modify [filename] \n stats [peer id] \n exit";
 
 	private Peer peer;
 
@@ -48,6 +50,11 @@ public class CommandProcessor {
 
 			/*--------- end change ----------*/
 
+		} else if (commandParts[0].equals("stats")
+				&& (commandParts.length <= 2)) {
+			printStatistics(commandParts.length == 2 ? commandParts[1] : null);
+			return null;
+
 		} else if (commandParts[0].equals("")) {
 			return null;
 		} else {
@@ -56,4 +63,32 @@ public class CommandProcessor {
 		}
 	}
 
+	/**
+	 * Prints the live metrics of this peer or of another one
+	 * 
+	 * @param peerId
+	 *            Id of the peer, null for this peer
+	 */
+	private void printStatistics(String peerId) {
+		Map<String, Long> statistics;
+		try {
+			if (peerId == null) {
+				statistics = peer.getMetrics().getStatistics();
+			} else {
+				statistics = peer.getPeerInterface(Integer.parseInt(peerId))
+						.getStatistics();
+			}
+		} catch (NumberFormatException e) {
+			System.out.println(HELP);
+			return;
+		} catch (Exception e) {
+			System.out.println("The server is not currently available.");
+			return;
+		}
+
+		for (Map.Entry<String, Long> entry : statistics.entrySet()) {
+			System.out.println(entry.getKey() + ": " + entry.getValue());
+		}
+	}
+
 }
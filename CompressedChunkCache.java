@@ -0,0 +1,89 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the compressed frames of the chunks of master files, so a hot file
+ * is only compressed once per version. It is bounded by the bytes it holds and
+ * the least recently used frames are dropped first. The frames of a file are
+ * dropped as soon as its version is incremented.
+ * 
+ * @author palvare3
+ * 
+ */
+public class CompressedChunkCache {
+
+	// Bytes of frames kept at most
+	private static final long MAX_CACHED_BYTES = 16 * 1024 * 1024;
+
+	// Frames in access order, keyed by filename, version, offset and length
+	private LinkedHashMap<String, byte[]> frames = new LinkedHashMap<String, byte[]>(
+			16, 0.75f, true);
+
+	private long cachedBytes = 0;
+
+	private AtomicLong hits = new AtomicLong();
+
+	private AtomicLong misses = new AtomicLong();
+
+	private static String key(String filename, int version, long offset,
+			int length) {
+		return filename + '\u0000' + version + ':' + offset + ':' + length;
+	}
+
+	/**
+	 * @return The frame of a chunk of a version of a file, or null
+	 */
+	public synchronized byte[] get(String filename, int version, long offset,
+			int length) {
+		byte[] frame = frames.get(key(filename, version, offset, length));
+		if (frame != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		return frame;
+	}
+
+	public synchronized void put(String filename, int version, long offset,
+			int length, byte[] frame) {
+		byte[] old = frames.put(key(filename, version, offset, length), frame);
+		if (old != null) {
+			cachedBytes -= old.length;
+		}
+		cachedBytes += frame.length;
+
+		Iterator<byte[]> eldest = frames.values().iterator();
+		while ((cachedBytes > MAX_CACHED_BYTES) && eldest.hasNext()) {
+			cachedBytes -= eldest.next().length;
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Drops all the frames of a file, called when its version changes
+	 * 
+	 * @param filename
+	 */
+	public synchronized void invalidate(String filename) {
+		String prefix = filename + '\u0000';
+		Iterator<Map.Entry<String, byte[]>> it = frames.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, byte[]> entry = it.next();
+			if (entry.getKey().startsWith(prefix)) {
+				cachedBytes -= entry.getValue().length;
+				it.remove();
+			}
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+}
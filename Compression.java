@@ -0,0 +1,163 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the chunks of a transfer. The client offers the codecs it
+ * supports when it obtains a file and the serving peer chooses one for the
+ * whole transfer. Each chunk is compressed on its own, so a transfer can be
+ * resumed from any chunk.
+ * 
+ * In a compressed transfer every chunk is sent as a frame: a byte with the
+ * codec used for that chunk and the payload. Chunks which do not shrink below
+ * MAX_RATIO of their size are sent raw, so data which does not compress, such
+ * as media or archives, costs a byte per chunk.
+ * 
+ * @author palvare3
+ * 
+ */
+public class Compression {
+
+	// Codecs
+	public static final int NONE = 0;
+	public static final int DEFLATE = 1;
+
+	// Codecs supported by this peer, as a mask of (1 << codec)
+	public static final int SUPPORTED = 1 << DEFLATE;
+
+	// A chunk is only sent compressed if it shrinks below this ratio
+	private static final double MAX_RATIO = 0.9;
+
+	/**
+	 * @param offered
+	 *            Codecs supported by the client, as a mask of (1 << codec)
+	 * @return The codec used for a transfer to that client
+	 */
+	public static int negotiate(int offered) {
+		if ((offered & SUPPORTED & (1 << DEFLATE)) != 0) {
+			return DEFLATE;
+		}
+		return NONE;
+	}
+
+	/**
+	 * Encodes a chunk as a frame of a compressed transfer
+	 * 
+	 * @param chunk
+	 *            Raw bytes of the chunk
+	 * @param codec
+	 *            Codec of the transfer
+	 * @return The frame, with the chunk compressed only if it shrinks enough
+	 */
+	public static byte[] encode(byte[] chunk, int codec) {
+		if (codec == DEFLATE) {
+			byte[] compressed = deflate(chunk,
+					(int) (chunk.length * MAX_RATIO));
+			if (compressed != null) {
+				return frame(DEFLATE, compressed, compressed.length);
+			}
+		}
+		return frame(NONE, chunk, chunk.length);
+	}
+
+	/**
+	 * @param frame
+	 * @return true if the chunk of the frame is compressed
+	 */
+	public static boolean isCompressed(byte[] frame) {
+		return (frame.length > 0) && (frame[0] != NONE);
+	}
+
+	/**
+	 * Decodes a frame of a compressed transfer
+	 * 
+	 * @param frame
+	 * @return Raw bytes of the chunk
+	 * @throws IOException
+	 *             if the frame is damaged
+	 */
+	public static byte[] decode(byte[] frame) throws IOException {
+		if (frame.length == 0) {
+			throw new IOException("Empty frame");
+		}
+
+		if (frame[0] == NONE) {
+			byte[] chunk = new byte[frame.length - 1];
+			System.arraycopy(frame, 1, chunk, 0, chunk.length);
+			return chunk;
+		} else if (frame[0] == DEFLATE) {
+			return inflate(frame, 1, frame.length - 1);
+		}
+		throw new IOException("Unknown codec " + frame[0]);
+	}
+
+	private static byte[] frame(int codec, byte[] payload, int length) {
+		byte[] frame = new byte[length + 1];
+		frame[0] = (byte) codec;
+		System.arraycopy(payload, 0, frame, 1, length);
+		return frame;
+	}
+
+	/**
+	 * @param chunk
+	 * @param maxLength
+	 *            Maximum length of the compressed chunk
+	 * @return The compressed chunk, or null if it would be longer than
+	 *         maxLength
+	 */
+	private static byte[] deflate(byte[] chunk, int maxLength) {
+		Deflater deflater = new Deflater();
+		try {
+			deflater.setInput(chunk);
+			deflater.finish();
+
+			// One byte more than allowed tells apart an output which fits
+			// exactly from one which has been cut
+			byte[] buffer = new byte[maxLength + 1];
+			int length = 0;
+			while (!deflater.finished() && (length < buffer.length)) {
+				length += deflater.deflate(buffer, length, buffer.length
+						- length);
+			}
+			if (!deflater.finished() || (length > maxLength)) {
+				return null;
+			}
+
+			byte[] compressed = new byte[length];
+			System.arraycopy(buffer, 0, compressed, 0, length);
+			return compressed;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(byte[] data, int offset, int length)
+			throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, offset, length);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+					Peer.CHUNK_SIZE);
+			byte[] buffer = new byte[8 * 1024];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buffer);
+				if ((n == 0)
+						&& (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Truncated frame");
+				}
+				out.write(buffer, 0, n);
+				if (out.size() > Peer.CHUNK_SIZE) {
+					throw new IOException("Frame bigger than a chunk");
+				}
+			}
+			return out.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException("Damaged frame", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+}
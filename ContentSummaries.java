@@ -0,0 +1,266 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Attenuated Bloom filters used to prune the flooding of searches. Level 0 of
+ * the summary of a peer holds its own shared files, and level i the files of
+ * the peers i hops away. Every peer advertises its summary to its neighbors
+ * and forwards a search only to the neighbors whose summary might contain the
+ * file within the TTL of the query.
+ * 
+ * The summaries are sent periodically and incrementally: only the words of
+ * the filters which have changed since the last update are sent. Files which
+ * stop being shared cannot be removed from a Bloom filter, so the local filter
+ * is rebuilt in the next update.
+ * 
+ * @author palvare3
+ * 
+ */
+public class ContentSummaries {
+
+	// Number of levels of the summaries, enough to cover the TTL of a query
+	public static final int DEPTH = 6;
+
+	// Time (ms) between updates sent to the neighbors
+	private static final long UPDATE_INTERVAL = 1000;
+
+	private Peer peer;
+
+	private BloomFilter local = new BloomFilter();
+
+	private final Object localLock = new Object();
+
+	private volatile boolean rebuildLocal = true;
+
+	// Summaries received from each neighbor
+	private Map<Integer, BloomFilter[]> received = new ConcurrentHashMap<Integer, BloomFilter[]>();
+
+	// Last summary sent to each neighbor
+	private Map<Integer, BloomFilter[]> sent = new ConcurrentHashMap<Integer, BloomFilter[]>();
+
+	private Clock timer;
+
+	/**
+	 * @param p
+	 * @param timer
+	 *            Runs the periodic updates
+	 */
+	public ContentSummaries(Peer p, Clock timer) {
+		this.peer = p;
+		this.timer = timer;
+	}
+
+	/**
+	 * Starts sending the updates to the neighbors
+	 */
+	public void start() {
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					publish();
+				} catch (Exception e) {
+					peer.getLog().log(PeerLog.NEIGHBOR, Level.WARNING,
+							"Could not publish the content summary: {}", e);
+				}
+				// Scheduled again after each update, so updates never
+				// overlap
+				timer.schedule(this, UPDATE_INTERVAL);
+			}
+		}, UPDATE_INTERVAL);
+	}
+
+	/**
+	 * Adds a file which this peer has started to share
+	 * 
+	 * @param filename
+	 */
+	public void fileAdded(String filename) {
+		synchronized (localLock) {
+			local.add(filename);
+		}
+	}
+
+	/**
+	 * Notifies that a file is no longer shared, so the local filter is rebuilt
+	 * in the next update
+	 */
+	public void fileRemoved() {
+		rebuildLocal = true;
+	}
+
+	/**
+	 * @param neighborId
+	 * @param filename
+	 * @param ttl
+	 *            TTL of the query sent to the neighbor
+	 * @return false if the neighbor surely cannot reach any peer with the file
+	 *         within the TTL
+	 */
+	public boolean mightReach(int neighborId, String filename, int ttl) {
+		BloomFilter[] summary = received.get(neighborId);
+
+		// Unknown summaries, or queries which go further than the summaries,
+		// are not pruned
+		if ((summary == null) || (ttl > DEPTH)) {
+			return true;
+		}
+		for (int level = 0; level < ttl; level++) {
+			if (summary[level].mightContain(filename)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Applies an update sent by a neighbor
+	 * 
+	 * @param senderId
+	 * @param delta
+	 */
+	public void receive(int senderId, SummaryDelta delta) {
+		BloomFilter[] summary = received.get(senderId);
+		if (summary == null) {
+			summary = emptySummary();
+		} else {
+			summary = copy(summary);
+		}
+
+		for (int i = 0; i < delta.size(); i++) {
+			summary[delta.getLevel(i)].setWord(delta.getIndex(i),
+					delta.getWord(i));
+		}
+
+		// The summary is replaced at once, so searches never see it half
+		// updated
+		received.put(senderId, summary);
+	}
+
+	/**
+	 * Forgets what has been exchanged with a neighbor, so the next update sends
+	 * it the whole summary. Used when a neighbor connects or disconnects.
+	 * 
+	 * @param neighborId
+	 */
+	public void reset(int neighborId) {
+		sent.remove(neighborId);
+		received.remove(neighborId);
+	}
+
+	/**
+	 * Sends to every connected neighbor the changes of the summary advertised
+	 * to it
+	 */
+	private void publish() {
+		if (rebuildLocal) {
+			// Files added while the filter is rebuilt wait for the lock, so
+			// they are not lost
+			synchronized (localLock) {
+				rebuildLocal = false;
+				BloomFilter rebuilt = new BloomFilter();
+				for (String filename : peer.getSharedFiles()) {
+					rebuilt.add(filename);
+				}
+				local = rebuilt;
+			}
+		}
+
+		for (Integer neighborId : peer.getConnectedNeighbors().keySet()) {
+			if (!peer.isConnected(neighborId)) {
+				continue;
+			}
+
+			BloomFilter[] summary = advertisedSummary(neighborId);
+			BloomFilter[] previous = sent.get(neighborId);
+			if (previous == null) {
+				previous = emptySummary();
+			}
+
+			SummaryDelta delta = diff(previous, summary);
+			if (delta.size() == 0) {
+				continue;
+			}
+
+			try {
+				peer.getNeighborInterface(neighborId).updateSummary(
+						peer.getId(), delta);
+				sent.put(neighborId, summary);
+			} catch (Exception e) {
+				peer.disconnectNeighbor(neighborId);
+			}
+		}
+	}
+
+	/**
+	 * @param neighborId
+	 * @return The summary advertised to a neighbor: the local files in level 0
+	 *         and the levels of the other neighbors shifted by one hop
+	 */
+	private BloomFilter[] advertisedSummary(int neighborId) {
+		BloomFilter[] summary = emptySummary();
+		synchronized (localLock) {
+			summary[0].or(local);
+		}
+
+		for (Integer otherId : received.keySet()) {
+			if ((otherId == neighborId) || !peer.isConnected(otherId)) {
+				continue;
+			}
+			BloomFilter[] other = received.get(otherId);
+			if (other == null) {
+				continue;
+			}
+			for (int level = 1; level < DEPTH; level++) {
+				summary[level].or(other[level - 1]);
+			}
+		}
+		return summary;
+	}
+
+	/**
+	 * @return The words which differ between two summaries
+	 */
+	private SummaryDelta diff(BloomFilter[] previous, BloomFilter[] summary) {
+		List<long[]> changes = new ArrayList<long[]>();
+		for (int level = 0; level < DEPTH; level++) {
+			for (int i = 0; i < BloomFilter.WORDS; i++) {
+				long word = summary[level].getWord(i);
+				if (word != previous[level].getWord(i)) {
+					long[] change = { level, i, word };
+					changes.add(change);
+				}
+			}
+		}
+
+		int[] levels = new int[changes.size()];
+		int[] indexes = new int[changes.size()];
+		long[] words = new long[changes.size()];
+		for (int i = 0; i < changes.size(); i++) {
+			levels[i] = (int) changes.get(i)[0];
+			indexes[i] = (int) changes.get(i)[1];
+			words[i] = changes.get(i)[2];
+		}
+		return new SummaryDelta(levels, indexes, words);
+	}
+
+	private BloomFilter[] emptySummary() {
+		BloomFilter[] summary = new BloomFilter[DEPTH];
+		for (int level = 0; level < DEPTH; level++) {
+			summary[level] = new BloomFilter();
+		}
+		return summary;
+	}
+
+	private BloomFilter[] copy(BloomFilter[] summary) {
+		BloomFilter[] copy = emptySummary();
+		for (int level = 0; level < DEPTH; level++) {
+			copy[level].or(summary[level]);
+		}
+		return copy;
+	}
+
+}
@@ -0,0 +1,133 @@
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Client side of the data port of a peer (see DataServer). Keeps a connection
+ * open so several ranges can be requested from the same peer. Responses are
+ * received with a scattering read, which fills the header and the first bytes
+ * of the payload at once, and the payload is written straight to a
+ * FileChannel.
+ * 
+ * @author palvare3
+ * 
+ */
+public class DataClient {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private int peerId;
+
+	private SocketChannel channel;
+
+	private ByteBuffer header = ByteBuffer.allocate(DataServer.HEADER_SIZE);
+
+	private ByteBuffer payload = ByteBuffer.allocateDirect(Peer.CHUNK_SIZE);
+
+	private long fileLength = -1;
+
+	/**
+	 * Connects to the data port of a peer
+	 * 
+	 * @param peerId
+	 * @throws IOException
+	 *             if the peer cannot be reached
+	 */
+	public DataClient(int peerId) throws IOException {
+		this.peerId = peerId;
+		this.channel = SocketChannel.open(new InetSocketAddress("localhost",
+				DataServer.getPort(peerId)));
+	}
+
+	/**
+	 * Requests a range of a file and writes it to a FileChannel
+	 * 
+	 * @param filename
+	 * @param offset
+	 *            Position of the first byte in the remote file
+	 * @param length
+	 *            Number of bytes, -1 for the rest of the file
+	 * @param dest
+	 *            Channel where the data is written, it can be null if length
+	 *            is 0
+	 * @param position
+	 *            Position in dest of the first byte
+	 * @return Number of bytes written
+	 * @throws IOException
+	 *             if the peer does not serve the file or the connection fails
+	 */
+	public long fetch(String filename, long offset, long length,
+			FileChannel dest, long position) throws IOException {
+		byte[] name = filename.getBytes(UTF8);
+		ByteBuffer request = ByteBuffer.allocate(2 + name.length + 16);
+		request.putShort((short) name.length).put(name).putLong(offset)
+				.putLong(length);
+		request.flip();
+		while (request.hasRemaining()) {
+			channel.write(request);
+		}
+
+		// Scattering read: the header and the first part of the payload
+		header.clear();
+		payload.clear();
+		ByteBuffer[] buffers = { header, payload };
+		while (header.hasRemaining()) {
+			if (channel.read(buffers) < 0) {
+				throw new EOFException("Connection closed by " + peerId);
+			}
+		}
+		header.flip();
+
+		byte status = header.get();
+		fileLength = header.getLong();
+		long count = header.getLong();
+
+		if (status == DataServer.STATUS_NOT_FOUND) {
+			throw new FileNotFoundException(filename + " not found in "
+					+ peerId);
+		} else if (status == DataServer.STATUS_NOT_UP_TO_DATE) {
+			throw new IOException("File not up to date");
+		}
+
+		long received = 0;
+		while (received < count) {
+			// The payload buffer may already hold bytes from the scattering
+			// read, so it is only refilled once it has been written out
+			if (payload.position() == 0) {
+				int n = channel.read(payload);
+				if (n < 0) {
+					throw new EOFException("Connection closed by " + peerId);
+				}
+			}
+			payload.flip();
+			if (payload.remaining() > count - received) {
+				throw new IOException("Unexpected data from " + peerId);
+			}
+			while (payload.hasRemaining()) {
+				received += dest.write(payload, position + received);
+			}
+			payload.clear();
+		}
+		return received;
+	}
+
+	/**
+	 * @return Length of the remote file in the last response
+	 */
+	public long getFileLength() {
+		return fileLength;
+	}
+
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+}
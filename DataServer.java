@@ -0,0 +1,235 @@
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Server-side thread which serves file payloads through a dedicated data port,
+ * next to the RMI control plane. The files are sent with
+ * FileChannel.transferTo(), so the bytes go from disk to the socket without
+ * being copied to the heap.
+ * 
+ * Each request on a connection is: filename length (short), filename (UTF-8),
+ * offset (long) and length (long, -1 for the rest of the file). The response
+ * is a header with a status code (byte), the length of the file (long) and the
+ * number of bytes that follow (long), and then the data. A connection can be
+ * used for several requests. Connections which send no request for
+ * IDLE_TIMEOUT are closed, so idle clients do not keep the threads of the
+ * server from other connections.
+ * 
+ * @author palvare3
+ * 
+ */
+public class DataServer implements Runnable {
+
+	// Offset of the data port over the RMI port of a peer
+	public static final int DATA_PORT_OFFSET = 1000;
+
+	// Status codes of a response
+	public static final byte STATUS_OK = 0;
+	public static final byte STATUS_NOT_FOUND = 1;
+	public static final byte STATUS_NOT_UP_TO_DATE = 2;
+
+	// Bytes of the response header: status, file length and count
+	public static final int HEADER_SIZE = 1 + 8 + 8;
+
+	private static final int MAX_FILENAME_LENGTH = 1024;
+
+	private static final int MAX_CONNECTIONS = 32;
+
+	// Time (ms) a connection can wait for its next request
+	public static final int IDLE_TIMEOUT = 10000;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private Peer peer;
+
+	private ExecutorService connections;
+
+	public DataServer(Peer p) {
+		this.peer = p;
+		this.connections = Executors.newFixedThreadPool(MAX_CONNECTIONS);
+	}
+
+	/**
+	 * @param peerId
+	 * @return The data port of a peer
+	 */
+	public static int getPort(int peerId) {
+		return Peer.BASE_RMI_PORT + peerId + DATA_PORT_OFFSET;
+	}
+
+	@Override
+	public void run() {
+		try {
+			ServerSocketChannel server = ServerSocketChannel.open();
+			server.socket().setReuseAddress(true);
+			server.socket().bind(new InetSocketAddress(getPort(peer.getId())));
+			System.out.println("Data port: " + getPort(peer.getId()));
+
+			while (true) {
+				final SocketChannel client = server.accept();
+				connections.execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(client);
+					}
+				});
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Serves all the requests of a connection until the client closes it
+	 * 
+	 * @param client
+	 */
+	private void serve(SocketChannel client) {
+		ByteBuffer lengthBuffer = ByteBuffer.allocate(2);
+		ByteBuffer rangeBuffer = ByteBuffer.allocate(16);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+		try {
+			// Reads through the stream of the socket, as the timeout does not
+			// apply to the reads of the channel
+			client.socket().setSoTimeout(IDLE_TIMEOUT);
+			ReadableByteChannel requests = Channels.newChannel(client.socket()
+					.getInputStream());
+
+			while (readFully(requests, lengthBuffer)) {
+				int nameLength = lengthBuffer.getShort(0);
+				if (nameLength <= 0 || nameLength > MAX_FILENAME_LENGTH) {
+					throw new IOException("Invalid request");
+				}
+
+				ByteBuffer nameBuffer = ByteBuffer.allocate(nameLength);
+				if (!readFully(requests, nameBuffer)
+						|| !readFully(requests, rangeBuffer)) {
+					throw new EOFException();
+				}
+				String filename = new String(nameBuffer.array(), UTF8);
+				long offset = rangeBuffer.getLong(0);
+				long length = rangeBuffer.getLong(8);
+
+				sendFile(client, header, filename, offset, length);
+			}
+		} catch (IOException e) {
+			// The client went away or stayed idle for too long, the
+			// connection is simply dropped
+		} finally {
+			try {
+				client.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Sends a range of a file after the response header
+	 */
+	private void sendFile(SocketChannel client, ByteBuffer header,
+			String filename, long offset, long length) throws IOException {
+		String path = null;
+		byte status = STATUS_OK;
+
+		if (peer.isMaster(filename)) {
+			path = "./files/" + filename;
+		} else if (peer.isDownloaded(filename)) {
+			if (peer.canServe(filename)) {
+				path = "./downloads/" + filename;
+			} else {
+				status = STATUS_NOT_UP_TO_DATE;
+			}
+		} else {
+			status = STATUS_NOT_FOUND;
+		}
+
+		RandomAccessFile file = null;
+		if (path != null) {
+			try {
+				file = new RandomAccessFile(peer.getFile(path), "r");
+			} catch (FileNotFoundException f) {
+				// The file has been unexpectedly erased from the computer, so it
+				// is unregistered in the peer
+				peer.removeFile(filename);
+				status = STATUS_NOT_FOUND;
+			}
+		}
+
+		if (file == null) {
+			writeHeader(client, header, status, 0, 0);
+			return;
+		}
+
+		try {
+			FileChannel channel = file.getChannel();
+			long fileLength = channel.size();
+			long start = Math.min(Math.max(offset, 0), fileLength);
+			long count = fileLength - start;
+			if (length >= 0) {
+				count = Math.min(count, length);
+			}
+
+			writeHeader(client, header, STATUS_OK, fileLength, count);
+
+			// Zero-copy transfer, the kernel may send less than requested so
+			// it is repeated until the whole range has been sent
+			long sent = 0;
+			while (sent < count) {
+				long n = channel.transferTo(start + sent, count - sent, client);
+				if (n <= 0 && channel.size() < start + count) {
+					throw new IOException("File truncated while sending");
+				}
+				sent += n;
+			}
+			peer.getMetrics().bytesServed(sent);
+		} finally {
+			file.close();
+		}
+	}
+
+	private void writeHeader(SocketChannel client, ByteBuffer header,
+			byte status, long fileLength, long count) throws IOException {
+		header.clear();
+		header.put(status).putLong(fileLength).putLong(count);
+		header.flip();
+		while (header.hasRemaining()) {
+			client.write(header);
+		}
+	}
+
+	/**
+	 * Fills the buffer from the channel
+	 * 
+	 * @return false if the channel was closed before reading any byte
+	 * @throws EOFException
+	 *             if the channel was closed in the middle of the buffer
+	 */
+	private boolean readFully(ReadableByteChannel channel, ByteBuffer buffer)
+			throws IOException {
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				if (buffer.position() == 0) {
+					return false;
+				}
+				throw new EOFException();
+			}
+		}
+		buffer.flip();
+		return true;
+	}
+
+}
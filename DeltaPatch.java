@@ -0,0 +1,280 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Block-level difference between the copy of a file in a replica and the
+ * current version in its master. The replica sends the checksum of each of
+ * its blocks and the master answers with the blocks which are different or
+ * new, so the bytes sent depend on the size of the change and not on the size
+ * of the file.
+ * 
+ * @author palvare3
+ * 
+ */
+public class DeltaPatch implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int BLOCK_SIZE = 8 * 1024;
+
+	// Patches bigger than this are not sent, the replica downloads the whole
+	// file instead
+	public static final int MAX_PATCH_SIZE = 4 * Peer.CHUNK_SIZE;
+
+	private int[] metadata;
+
+	private boolean modified;
+
+	private boolean complete;
+
+	private long length;
+
+	private int[] blockIndexes;
+
+	private byte[][] blocks;
+
+	private DeltaPatch(int[] metadata, boolean modified, boolean complete,
+			long length, int[] blockIndexes, byte[][] blocks) {
+		this.metadata = metadata;
+		this.modified = modified;
+		this.complete = complete;
+		this.length = length;
+		this.blockIndexes = blockIndexes;
+		this.blocks = blocks;
+	}
+
+	/**
+	 * @param metadata
+	 *            Current metadata of the file in the master
+	 * @return A patch telling the replica its version is up to date
+	 */
+	public static DeltaPatch notModified(int[] metadata) {
+		return new DeltaPatch(metadata, false, true, 0, new int[0],
+				new byte[0][]);
+	}
+
+	/**
+	 * @param metadata
+	 *            Current metadata of the file in the master
+	 * @return A patch telling the replica the change is too big, so it has to
+	 *         download the whole file
+	 */
+	public static DeltaPatch tooLarge(int[] metadata) {
+		return new DeltaPatch(metadata, true, false, 0, new int[0],
+				new byte[0][]);
+	}
+
+	/**
+	 * Computes the blocks of a file which differ from the checksums of a
+	 * replica
+	 * 
+	 * @param path
+	 *            Path of the file in the master
+	 * @param metadata
+	 *            Current metadata of the file
+	 * @param checksums
+	 *            Checksums of the blocks of the replica
+	 * @param length
+	 *            Length of the current version. The file may have grown
+	 *            since, the bytes after it are not read.
+	 * @return The patch, or a patch marked as not complete if it would be
+	 *         bigger than MAX_PATCH_SIZE
+	 * @throws IOException
+	 */
+	public static DeltaPatch create(String path, int[] metadata,
+			long[] checksums, long length) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			int nBlocks = (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+
+			List<Integer> indexes = new ArrayList<Integer>();
+			List<byte[]> blocks = new ArrayList<byte[]>();
+			long size = 0;
+			byte[] block = new byte[BLOCK_SIZE];
+
+			for (int i = 0; i < nBlocks; i++) {
+				int n = (int) Math.min(BLOCK_SIZE, length - (long) i
+						* BLOCK_SIZE);
+				file.seek((long) i * BLOCK_SIZE);
+				file.readFully(block, 0, n);
+
+				if ((i >= checksums.length)
+						|| (checksum(block, n) != checksums[i])) {
+					size += n;
+					if (size > MAX_PATCH_SIZE) {
+						return tooLarge(metadata);
+					}
+					byte[] changed = new byte[n];
+					System.arraycopy(block, 0, changed, 0, n);
+					indexes.add(i);
+					blocks.add(changed);
+				}
+			}
+
+			int[] blockIndexes = new int[indexes.size()];
+			for (int i = 0; i < blockIndexes.length; i++) {
+				blockIndexes[i] = indexes.get(i);
+			}
+			return new DeltaPatch(metadata, true, true, length, blockIndexes,
+					blocks.toArray(new byte[0][]));
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * @param f
+	 *            Copy of the file in the replica
+	 * @return The checksum of each block of the file
+	 * @throws IOException
+	 */
+	public static long[] checksums(File f) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			long length = file.length();
+			int nBlocks = (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+			long[] checksums = new long[nBlocks];
+			byte[] block = new byte[BLOCK_SIZE];
+
+			for (int i = 0; i < nBlocks; i++) {
+				int n = (int) Math.min(BLOCK_SIZE, length - (long) i
+						* BLOCK_SIZE);
+				file.readFully(block, 0, n);
+				checksums[i] = checksum(block, n);
+			}
+			return checksums;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Writes the changed blocks to the copy of the replica and truncates it
+	 * to the length of the new version
+	 * 
+	 * @param f
+	 *            Copy of the file in the replica
+	 * @throws IOException
+	 */
+	public void apply(File f) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "rw");
+		try {
+			for (int i = 0; i < blockIndexes.length; i++) {
+				file.seek((long) blockIndexes[i] * BLOCK_SIZE);
+				file.write(blocks[i]);
+			}
+			file.setLength(length);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Applies the patch to a copy of the replica and then moves the copy over
+	 * it, so the transfers reading the replica keep the old version whole
+	 * instead of a mix of both
+	 * 
+	 * @param f
+	 *            Copy of the file in the replica
+	 * @param scratch
+	 *            File where the new version is written before the move
+	 * @throws IOException
+	 */
+	public void apply(File f, File scratch) throws IOException {
+		Files.copy(f.toPath(), scratch.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		try {
+			apply(scratch);
+			PartialDownload.move(scratch, f);
+		} finally {
+			scratch.delete();
+		}
+	}
+
+	/**
+	 * The checksum of a block is its CRC32 in the high bits and its length in
+	 * the low ones, so a block which has only grown is always different
+	 */
+	private static long checksum(byte[] block, int n) {
+		CRC32 crc = new CRC32();
+		crc.update(block, 0, n);
+		return (crc.getValue() << 32) | n;
+	}
+
+	/**
+	 * @return Metadata of the file in the master, see Peer.getMetadata()
+	 */
+	public int[] getMetadata() {
+		return metadata;
+	}
+
+	/**
+	 * @return false if the replica already has the current version
+	 */
+	public boolean isModified() {
+		return modified;
+	}
+
+	/**
+	 * @return false if the change was too big to be sent as a patch
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return Length of the new version of the file
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return Number of bytes of the blocks in the patch
+	 */
+	public long getPatchSize() {
+		long size = 0;
+		for (byte[] block : blocks) {
+			size += block.length;
+		}
+		return size;
+	}
+
+	/**
+	 * Writes the patch in the binary form of PeerProtocol
+	 */
+	public void write(DataOutput out) throws IOException {
+		PeerProtocol.writeInts(out, metadata);
+		out.writeBoolean(modified);
+		out.writeBoolean(complete);
+		out.writeLong(length);
+		PeerProtocol.writeInts(out, blockIndexes);
+		for (byte[] block : blocks) {
+			PeerProtocol.writeBytes(out, block);
+		}
+	}
+
+	public static DeltaPatch read(DataInput in) throws IOException {
+		int[] metadata = PeerProtocol.readInts(in);
+		boolean modified = in.readBoolean();
+		boolean complete = in.readBoolean();
+		long length = in.readLong();
+		int[] blockIndexes = PeerProtocol.readInts(in);
+		byte[][] blocks = new byte[blockIndexes.length][];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = PeerProtocol.readBytes(in);
+		}
+		return new DeltaPatch(metadata, modified, complete, length,
+				blockIndexes, blocks);
+	}
+
+}
@@ -0,0 +1,187 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Client side of the file transfers. Files are obtained from a single source
+ * with obtainIfNewer(), which returns the first chunk and the metadata in one
+ * call, and the rest of the file is read through the chunked RMI transfer
+ * opened by that call (downloads from several sources at once use the data
+ * ports, see SwarmDownloader). Each chunk is written to a partial file as soon
+ * as it arrives, so the memory used by a download does not depend on the size
+ * of the file, and an interrupted download can be resumed.
+ * 
+ * @author palvare3
+ * 
+ */
+public class FileDownloader {
+
+	private Peer peer;
+
+	public FileDownloader(Peer p) {
+		this.peer = p;
+	}
+
+	/**
+	 * Downloads a file from a peer and registers it in the downloaded files.
+	 * The content and the metadata are obtained in the same call, so they
+	 * always belong to the same version. If the download fails, what has been
+	 * received so far is kept and the next download of the same version goes
+	 * on from there.
+	 * 
+	 * @param filename
+	 * @param sourceId
+	 *            Id of the peer which has the file
+	 * @return true if the file has been downloaded and registered
+	 */
+	public boolean download(String filename, int sourceId) {
+		try {
+			PeerServerInterface dataSource = peer.getPeerInterface(sourceId);
+			long start = peer.getClock().nanoTime();
+			ObtainResult result = dataSource.obtainIfNewer(filename,
+					Peer.NO_VERSION, Compression.SUPPORTED, peer.getId(), null);
+			peer.getMetrics().obtainCompleted(
+					peer.getClock().nanoTime() - start);
+			receive(dataSource, filename, result);
+
+			int[] metadata = result.getMetadata();
+			register(filename, metadata, metadata[1] == sourceId);
+			return true;
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			System.out
+					.println("The server is not currently available. Please try again");
+			peer.evictPeerInterface(sourceId);
+			return false;
+		}
+	}
+
+	/**
+	 * Registers a file which has been copied to the downloads directory in the
+	 * peer's registry. In pull mode the peer starts counting its TTR. In lease
+	 * mode a copy which did not come from the master takes a lease from it,
+	 * see Peer.acquireLease().
+	 * 
+	 * @param filename
+	 * @param metadata
+	 *            Metadata of the file in the source, see Peer.getMetadata()
+	 * @param leased
+	 *            true if the master was one of the sources, which gave a lease
+	 *            on the version when it answered
+	 */
+	public void register(String filename, int[] metadata, boolean leased) {
+		if (!leased) {
+			metadata = peer.acquireLease(filename, metadata);
+		}
+		peer.addFile(filename, metadata);
+	}
+
+	/**
+	 * Writes the content returned by obtainIfNewer() to the downloads
+	 * directory. The first chunk comes with the result and the rest is read
+	 * chunk by chunk from the transfer it carries. The file is staged as a
+	 * partial download (see PartialDownload), which goes on from the ranges of
+	 * a previous attempt at the same version.
+	 * 
+	 * @param dataSource
+	 *            Stub of the peer which answered
+	 * @param filename
+	 * @param result
+	 *            Answer of the peer, with the new content
+	 * @return Number of bytes copied
+	 * @throws IOException
+	 *             if the file cannot be copied. The partial download is kept
+	 *             to be resumed.
+	 */
+	public long receive(PeerServerInterface dataSource, String filename,
+			ObtainResult result) throws IOException {
+		TransferInfo transfer = result.getTransfer();
+		PartialDownload partial = null;
+
+		try {
+			partial = PartialDownload.open(peer, filename,
+					result.getMetadata(), result.getLength());
+			long copied = 0;
+
+			byte[] data = decode(result.getData(), result.getCodec());
+			if (!partial.isCompleted(0, data.length)) {
+				write(partial.getChannel(), data, 0);
+				partial.markCompleted(0, data.length);
+				copied += data.length;
+			}
+
+			if (!partial.isComplete()) {
+				if (transfer == null) {
+					throw new IOException("Unexpected end of " + filename);
+				}
+				copied += receiveChunks(dataSource, transfer,
+						result.getCodec(), filename, partial);
+			}
+
+			partial.complete();
+			partial = null;
+			return copied;
+		} finally {
+			if (partial != null) {
+				partial.close();
+			}
+			if (transfer != null) {
+				try {
+					dataSource.closeTransfer(transfer.getTransferId());
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies the missing part of a file chunk by chunk through RMI
+	 * 
+	 * @param dataSource
+	 *            Stub of the peer which has the file
+	 * @param transfer
+	 *            Transfer opened in that peer
+	 * @param codec
+	 *            Codec of the transfer, see Compression
+	 * @param filename
+	 * @param partial
+	 * @return Number of bytes copied
+	 * @throws IOException
+	 *             if the transfer fails or the file cannot be written
+	 */
+	private long receiveChunks(PeerServerInterface dataSource,
+			TransferInfo transfer, int codec, String filename,
+			PartialDownload partial) throws IOException {
+		long offset = partial.getResumeOffset();
+		long copied = 0;
+
+		while (offset < transfer.getLength()) {
+			byte[] chunk = decode(dataSource.readChunk(
+					transfer.getTransferId(), offset, Peer.CHUNK_SIZE), codec);
+			if (chunk.length == 0) {
+				throw new IOException("Unexpected end of " + filename);
+			}
+			write(partial.getChannel(), chunk, offset);
+			partial.markCompleted(offset, offset + chunk.length);
+			offset += chunk.length;
+			copied += chunk.length;
+		}
+		return copied;
+	}
+
+	private byte[] decode(byte[] chunk, int codec) throws IOException {
+		if (codec == Compression.NONE) {
+			return chunk;
+		}
+		return Compression.decode(chunk);
+	}
+
+	private void write(FileChannel channel, byte[] bytes, long position)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+}
@@ -0,0 +1,289 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Thread-safe table with the metadata of the master and downloaded files of a
+ * peer. The version, master id, validity and master flag of each file are
+ * packed in a single long, so reads take no locks and every update of a file
+ * is a single compare-and-set.
+ * 
+ * Layout of the packed state: bits 0-31 version, bits 32-59 master id, bits
+ * 60-61 validity, bit 62 master copy flag.
+ * 
+ * @author palvare3
+ * 
+ */
+public class FileMetadataStore {
+
+	private static final long VERSION_MASK = 0xFFFFFFFFL;
+	private static final int MASTER_SHIFT = 32;
+	private static final long MASTER_MASK = 0xFFFFFFFL;
+	private static final int VALIDITY_SHIFT = 60;
+	private static final long VALIDITY_MASK = 0x3L;
+	private static final long MASTER_COPY_FLAG = 1L << 62;
+
+	private Map<String, FileRecord> files = new ConcurrentHashMap<String, FileRecord>();
+
+	/**
+	 * Registers a master file
+	 * 
+	 * @param filename
+	 * @param version
+	 */
+	public void putMaster(String filename, int version) {
+		FileRecord record = new FileRecord();
+		record.state = pack(version, 0, Peer.FILE_VALID) | MASTER_COPY_FLAG;
+		files.put(filename, record);
+	}
+
+	/**
+	 * Registers a downloaded file, replacing its previous metadata
+	 * 
+	 * @param filename
+	 * @param version
+	 * @param validity
+	 *            FILE_VALID, FILE_TTR_EXPIRED or FILE_INVALID
+	 * @param master
+	 *            Id of the peer with the master copy
+	 * @param ttrDeadline
+	 *            Value of Clock.nanoTime() of the peer when the TTR expires
+	 */
+	public void putDownloaded(String filename, int version, int validity,
+			int master, long ttrDeadline) {
+		FileRecord record = new FileRecord();
+		record.state = pack(version, master, validity);
+		record.ttrDeadline = ttrDeadline;
+		files.put(filename, record);
+	}
+
+	/**
+	 * @param filename
+	 * @return FILE_VALID for master files and valid downloads,
+	 *         FILE_TTR_EXPIRED for expired downloads and FILE_INVALID in other
+	 *         cases
+	 */
+	public int getValidity(String filename) {
+		FileRecord record = files.get(filename);
+		if (record == null) {
+			return Peer.FILE_INVALID;
+		}
+		return validity(record.state);
+	}
+
+	public boolean isMaster(String filename) {
+		FileRecord record = files.get(filename);
+		return (record != null) && ((record.state & MASTER_COPY_FLAG) != 0);
+	}
+
+	public boolean isDownloaded(String filename) {
+		FileRecord record = files.get(filename);
+		return (record != null) && ((record.state & MASTER_COPY_FLAG) == 0);
+	}
+
+	/**
+	 * @param filename
+	 * @return Version of the file, or -1 if it is not registered
+	 */
+	public int getVersion(String filename) {
+		FileRecord record = files.get(filename);
+		if (record == null) {
+			return -1;
+		}
+		return version(record.state);
+	}
+
+	/**
+	 * @param filename
+	 * @return Id of the peer with the master copy of a downloaded file, or -1
+	 *         if it is not registered
+	 */
+	public int getMaster(String filename) {
+		FileRecord record = files.get(filename);
+		if (record == null) {
+			return -1;
+		}
+		return master(record.state);
+	}
+
+	/**
+	 * @param filename
+	 * @return Value of Clock.nanoTime() of the peer when the TTR of a
+	 *         downloaded file expires, or 0 if it is not registered
+	 */
+	public long getTTRDeadline(String filename) {
+		FileRecord record = files.get(filename);
+		if (record == null) {
+			return 0;
+		}
+		return record.ttrDeadline;
+	}
+
+	/**
+	 * Reads the version, master and validity of a file at once
+	 * 
+	 * @param filename
+	 * @return An array with version, master and validity, or null if the file
+	 *         is not registered
+	 */
+	public int[] getSnapshot(String filename) {
+		FileRecord record = files.get(filename);
+		if (record == null) {
+			return null;
+		}
+		long state = record.state;
+		int[] snapshot = { version(state), master(state), validity(state) };
+		return snapshot;
+	}
+
+	/**
+	 * Increments the version of a master file
+	 * 
+	 * @param filename
+	 * @return The new version, or -1 if the file is not a master file
+	 */
+	public int incrementVersion(String filename) {
+		FileRecord record = files.get(filename);
+		if (record == null) {
+			return -1;
+		}
+		while (true) {
+			long state = record.state;
+			if ((state & MASTER_COPY_FLAG) == 0) {
+				return -1;
+			}
+			int version = version(state) + 1;
+			long next = (state & ~VERSION_MASK) | (version & VERSION_MASK);
+			if (FileRecord.STATE.compareAndSet(record, state, next)) {
+				return version;
+			}
+		}
+	}
+
+	/**
+	 * Replaces the version of a file only if it still has the expected one
+	 * 
+	 * @param filename
+	 * @param expected
+	 * @param version
+	 * @return true if the version has been replaced
+	 */
+	public boolean compareAndSetVersion(String filename, int expected,
+			int version) {
+		FileRecord record = files.get(filename);
+		if (record == null) {
+			return false;
+		}
+		while (true) {
+			long state = record.state;
+			if (version(state) != expected) {
+				return false;
+			}
+			long next = (state & ~VERSION_MASK) | (version & VERSION_MASK);
+			if (FileRecord.STATE.compareAndSet(record, state, next)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Changes the validity of a downloaded file if it currently has the
+	 * expected one
+	 * 
+	 * @param filename
+	 * @param expected
+	 *            Current validity, or -1 for any
+	 * @param validity
+	 *            New validity
+	 * @return true if the validity has been changed
+	 */
+	public boolean compareAndSetValidity(String filename, int expected,
+			int validity) {
+		FileRecord record = files.get(filename);
+		if (record == null) {
+			return false;
+		}
+		while (true) {
+			long state = record.state;
+			if (((state & MASTER_COPY_FLAG) != 0)
+					|| ((expected != -1) && (validity(state) != expected))) {
+				return false;
+			}
+			long next = (state & ~(VALIDITY_MASK << VALIDITY_SHIFT))
+					| ((validity & VALIDITY_MASK) << VALIDITY_SHIFT);
+			if (FileRecord.STATE.compareAndSet(record, state, next)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Removes a file from the table
+	 * 
+	 * @param filename
+	 */
+	public void remove(String filename) {
+		files.remove(filename);
+	}
+
+	/**
+	 * @return The names of the master files
+	 */
+	public List<String> getMasterFiles() {
+		List<String> masters = new ArrayList<String>();
+		for (Map.Entry<String, FileRecord> entry : files.entrySet()) {
+			if ((entry.getValue().state & MASTER_COPY_FLAG) != 0) {
+				masters.add(entry.getKey());
+			}
+		}
+		return masters;
+	}
+
+	/**
+	 * @return The names of the downloaded files
+	 */
+	public List<String> getDownloadedFiles() {
+		List<String> downloads = new ArrayList<String>();
+		for (Map.Entry<String, FileRecord> entry : files.entrySet()) {
+			if ((entry.getValue().state & MASTER_COPY_FLAG) == 0) {
+				downloads.add(entry.getKey());
+			}
+		}
+		return downloads;
+	}
+
+	private static long pack(int version, int master, int validity) {
+		return (version & VERSION_MASK)
+				| ((master & MASTER_MASK) << MASTER_SHIFT)
+				| ((validity & VALIDITY_MASK) << VALIDITY_SHIFT);
+	}
+
+	private static int version(long state) {
+		return (int) (state & VERSION_MASK);
+	}
+
+	private static int master(long state) {
+		return (int) ((state >>> MASTER_SHIFT) & MASTER_MASK);
+	}
+
+	private static int validity(long state) {
+		return (int) ((state >>> VALIDITY_SHIFT) & VALIDITY_MASK);
+	}
+
+	/**
+	 * Metadata of a single file
+	 */
+	private static class FileRecord {
+
+		private static final AtomicLongFieldUpdater<FileRecord> STATE = AtomicLongFieldUpdater
+				.newUpdater(FileRecord.class, "state");
+
+		private volatile long state;
+
+		private volatile long ttrDeadline;
+
+	}
+
+}
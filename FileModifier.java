@@ -34,7 +34,7 @@ public class FileModifier implements Runnable {
 		Random gen = new Random();
 
 		// For all files present in files directory
-		File dir = new File("./files/");
+		File dir = peer.getFile("./files/");
 		File[] fileList = dir.listFiles();
 
 		int i = 0;
@@ -0,0 +1,154 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Server-side state of a transfer opened by a client. Keeps the file open so
+ * the client can read it by ranges without holding the whole file in memory.
+ * A transfer may be compressed, in which case its chunks are sent as frames
+ * (see Compression).
+ * 
+ * @author palvare3
+ * 
+ */
+public class FileTransfer {
+
+	private RandomAccessFile file;
+	private long length;
+
+	// Value of Clock.nanoTime() of the peer at the last read
+	private long lastAccess;
+
+	private Clock clock;
+
+	private String filename;
+
+	// Version of the file when the transfer was opened, NO_VERSION if unknown
+	private int version = Peer.NO_VERSION;
+
+	private volatile int codec = Compression.NONE;
+
+	/**
+	 * Opens the file for a new transfer
+	 * 
+	 * @param path
+	 *            Path of the file to serve
+	 * @param clock
+	 *            Clock of the peer, which times the reads
+	 * @throws FileNotFoundException
+	 *             if the file has been erased
+	 */
+	public FileTransfer(String path, Clock clock) throws FileNotFoundException {
+		this.clock = clock;
+		this.file = new RandomAccessFile(new File(path), "r");
+		try {
+			this.length = file.length();
+		} catch (IOException e) {
+			this.length = 0;
+		}
+		this.lastAccess = clock.nanoTime();
+	}
+
+	/**
+	 * Opens the file for a new compressed transfer
+	 * 
+	 * @param path
+	 *            Path of the file to serve
+	 * @param filename
+	 * @param version
+	 *            Version of the file being served
+	 * @param codec
+	 *            Codec of the transfer, see Compression
+	 * @param clock
+	 *            Clock of the peer, which times the reads
+	 * @throws FileNotFoundException
+	 *             if the file has been erased
+	 */
+	public FileTransfer(String path, String filename, int version, int codec,
+			Clock clock) throws FileNotFoundException {
+		this(path, clock);
+		this.filename = filename;
+		this.version = version;
+		this.codec = codec;
+	}
+
+	/**
+	 * Reads a range of the file. The range is limited to Peer.CHUNK_SIZE bytes
+	 * and to the end of the file, so a single request never allocates more
+	 * than a chunk.
+	 * 
+	 * @param offset
+	 *            Position of the first byte to read
+	 * @param length
+	 *            Number of bytes requested
+	 * @return The bytes read, an empty array if offset is past the end
+	 * @throws IOException
+	 */
+	public synchronized byte[] read(long offset, int length) throws IOException {
+		lastAccess = clock.nanoTime();
+
+		if (offset < 0 || length < 0) {
+			throw new IOException("Invalid range");
+		}
+
+		long remaining = Math.max(0, this.length - offset);
+		int size = (int) Math.min(Math.min(length, Peer.CHUNK_SIZE), remaining);
+
+		byte[] bytes = new byte[size];
+		file.seek(offset);
+		file.readFully(bytes);
+		return bytes;
+	}
+
+	/**
+	 * @return Length of the file when the transfer was opened
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return Codec of the transfer, Compression.NONE if it is not compressed
+	 */
+	public int getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Changes the codec of the chunks read from now on
+	 * 
+	 * @param codec
+	 *            Codec, see Compression
+	 */
+	public void setCodec(int codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * @return Value of Clock.nanoTime() of the peer at the last read
+	 */
+	public synchronized long getLastAccess() {
+		return lastAccess;
+	}
+
+	/**
+	 * Closes the underlying file
+	 */
+	public synchronized void close() {
+		try {
+			file.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
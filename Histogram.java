@@ -0,0 +1,130 @@
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non-negative values which can be recorded from many threads
+ * without locks or allocation. Values are counted in log-linear buckets: four
+ * buckets for each power of two, so a percentile is off by at most a quarter
+ * of its value.
+ * 
+ * @author palvare3
+ * 
+ */
+public class Histogram {
+
+	// Buckets per power of two, as a power of two
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+	private final LongAdder count = new LongAdder();
+
+	private final LongAdder sum = new LongAdder();
+
+	private final AtomicLong max = new AtomicLong();
+
+	public Histogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 * 
+	 * @param value
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets[bucket(value)].increment();
+		count.increment();
+		sum.add(value);
+
+		long current = max.get();
+		while ((value > current) && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+				& (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @param bucket
+	 * @return The highest value counted in a bucket
+	 */
+	private static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public long getMean() {
+		long n = count.sum();
+		return (n == 0) ? 0 : sum.sum() / n;
+	}
+
+	/**
+	 * @param percentile
+	 *            Between 0 and 100
+	 * @return The value below which that percentage of the recorded values
+	 *         falls, 0 if nothing has been recorded
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.sum();
+		if (n == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(n * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets[i].sum();
+			if (seen >= Math.max(rank, 1)) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Adds a summary of the histogram to a statistics map: count, mean, p50,
+	 * p99 and max
+	 * 
+	 * @param statistics
+	 * @param name
+	 *            Prefix of the entries
+	 */
+	public void addTo(Map<String, Long> statistics, String name) {
+		statistics.put(name + ".count", getCount());
+		statistics.put(name + ".mean", getMean());
+		statistics.put(name + ".p50", getPercentile(50));
+		statistics.put(name + ".p99", getPercentile(99));
+		statistics.put(name + ".max", getMax());
+	}
+
+}
@@ -0,0 +1,86 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Coalesces the invalidations of a master peer in push and lease mode.
+ * Modifications are collected during COALESCE_WINDOW milliseconds and then
+ * sent in a single batch, broadcast in push mode and to the lease holders in
+ * lease mode, so several edits of the same file produce one invalidation with
+ * its last version.
+ * 
+ * @author palvare3
+ * 
+ */
+public class InvalidationBatcher {
+
+	// Time (ms) modifications are collected before being broadcast
+	private static final long COALESCE_WINDOW = 200;
+
+	private Peer peer;
+
+	private Map<String, Integer> pending = new HashMap<String, Integer>();
+
+	private AtomicBoolean scheduled = new AtomicBoolean(false);
+
+	private Clock timer;
+
+	/**
+	 * @param p
+	 * @param timer
+	 *            Ends the coalescing windows
+	 */
+	public InvalidationBatcher(Peer p, Clock timer) {
+		this.peer = p;
+		this.timer = timer;
+	}
+
+	/**
+	 * Adds the modification of a master file to the next batch
+	 * 
+	 * @param filename
+	 * @param version
+	 *            New version of the file
+	 */
+	public void add(String filename, int version) {
+		synchronized (this) {
+			pending.put(filename, version);
+		}
+
+		if (scheduled.compareAndSet(false, true)) {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			}, COALESCE_WINDOW);
+		}
+	}
+
+	/**
+	 * Sends the pending modifications
+	 */
+	public void flush() {
+		Map<String, Integer> batch;
+		synchronized (this) {
+			scheduled.set(false);
+			if (pending.isEmpty()) {
+				return;
+			}
+			batch = pending;
+			pending = new HashMap<String, Integer>();
+		}
+
+		if (PeerMain.MODE == PeerMain.MODE_LEASE) {
+			peer.getLog().log(PeerLog.INVALIDATION, Level.INFO,
+					"Revoking leases of {}", batch.keySet());
+			peer.revokeLeases(batch);
+		} else {
+			peer.getLog().log(PeerLog.INVALIDATION, Level.INFO,
+					"Broadcasting invalidation of {}", batch.keySet());
+			peer.broadcastInvalidations(batch);
+		}
+	}
+
+}
@@ -0,0 +1,160 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Revalidates expired downloads with their masters in the background, so
+ * queries do not wait for the round trip to the master. Refreshes are
+ * single-flight: while a file is being refreshed, further requests for it
+ * only register a callback which runs once the refresh has succeeded.
+ * 
+ * Optionally, an expired file can still be served during a grace period after
+ * its TTR has passed, while it is being revalidated (stale-while-revalidate).
+ * 
+ * @author palvare3
+ * 
+ */
+public class LazyRefresher {
+
+	private Peer peer;
+
+	// Time (ms) after its TTR during which an expired file can still be served
+	private volatile long staleGrace = 0;
+
+	private ConcurrentMap<String, Refresh> refreshes = new ConcurrentHashMap<String, Refresh>();
+
+	private Clock clock;
+
+	private ExecutorService executor;
+
+	/**
+	 * @param p
+	 * @param clock
+	 *            Clock of the TTR deadlines
+	 * @param executor
+	 *            Runs the refreshes
+	 */
+	public LazyRefresher(Peer p, Clock clock, ExecutorService executor) {
+		this.peer = p;
+		this.clock = clock;
+		this.executor = executor;
+	}
+
+	public void setStaleGrace(long staleGrace) {
+		this.staleGrace = staleGrace;
+	}
+
+	public long getStaleGrace() {
+		return staleGrace;
+	}
+
+	/**
+	 * @param ttrDeadline
+	 *            TTR deadline of an expired file, in Clock.nanoTime() terms
+	 * @return true if the file expired less than the grace period ago
+	 */
+	public boolean isWithinGrace(long ttrDeadline) {
+		return (staleGrace > 0)
+				&& (clock.nanoTime() - ttrDeadline <= TimeUnit.MILLISECONDS
+						.toNanos(staleGrace));
+	}
+
+	/**
+	 * Refreshes an expired file unless a refresh of it is already in flight
+	 * 
+	 * @param filename
+	 * @param onRefreshed
+	 *            Run once the file is valid again, may be null
+	 */
+	public void refresh(String filename, Runnable onRefreshed) {
+		while (true) {
+			Refresh refresh = new Refresh(filename);
+			Refresh current = refreshes.putIfAbsent(filename, refresh);
+
+			if (current == null) {
+				refresh.addCallback(onRefreshed);
+				executor.execute(refresh);
+				return;
+			} else if (current.addCallback(onRefreshed)) {
+				return;
+			} else if (peer.hasFile(filename) == Peer.FILE_VALID) {
+				// The refresh has just finished and succeeded
+				if (onRefreshed != null) {
+					onRefreshed.run();
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @param filename
+	 * @return true if a refresh of the file is in flight
+	 */
+	public boolean isRefreshing(String filename) {
+		return refreshes.containsKey(filename);
+	}
+
+	/**
+	 * A refresh in flight and the callbacks waiting for it
+	 */
+	private class Refresh implements Runnable {
+
+		private String filename;
+
+		private List<Runnable> callbacks = new ArrayList<Runnable>();
+
+		private boolean finished = false;
+
+		public Refresh(String filename) {
+			this.filename = filename;
+		}
+
+		/**
+		 * @param callback
+		 * @return false if the refresh has already finished
+		 */
+		public synchronized boolean addCallback(Runnable callback) {
+			if (finished) {
+				return false;
+			}
+			if (callback != null) {
+				callbacks.add(callback);
+			}
+			return true;
+		}
+
+		@Override
+		public void run() {
+			boolean refreshed = false;
+			try {
+				refreshed = peer.lazyUpdate(filename);
+			} finally {
+				// Removed before it is finished, so later requests start a
+				// new refresh instead of waiting for this one
+				refreshes.remove(filename, this);
+				synchronized (this) {
+					finished = true;
+				}
+			}
+
+			if (refreshed) {
+				for (Runnable callback : callbacks) {
+					try {
+						callback.run();
+					} catch (RuntimeException e) {
+						peer.getLog().log(PeerLog.REFRESH, Level.WARNING,
+								"Callback of the refresh of {} failed: {}",
+								filename, e);
+					}
+				}
+			}
+		}
+
+	}
+
+}
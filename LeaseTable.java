@@ -0,0 +1,157 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leases given out by a master peer in lease mode. A peer which obtains or
+ * checks a master file gets a lease on the version it has for as long as the
+ * TTR of the file, and while the lease lasts the master sends it an
+ * invalidation when the file changes. Holders are never told when a lease
+ * ends: the master just stops counting on them, so a holder which goes away
+ * costs nothing once its lease has expired.
+ * 
+ * The holders of each file are kept in parallel arrays. Expired leases are
+ * dropped when the file changes and before the arrays grow, so the table
+ * stays as big as the number of live replicas.
+ * 
+ * @author palvare3
+ * 
+ */
+public class LeaseTable {
+
+	// Time (ms) the master keeps a lease after the duration handed out, as
+	// the holder starts counting it when the answer arrives
+	private static final long EXPIRY_MARGIN = 1000;
+
+	private Clock clock;
+
+	private Map<String, Holders> leases = new ConcurrentHashMap<String, Holders>();
+
+	public LeaseTable(Clock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * Gives a lease on a file, replacing the one the holder had
+	 * 
+	 * @param filename
+	 * @param holderId
+	 *            Peer which keeps the copy
+	 * @param version
+	 *            Version of the copy
+	 * @param duration
+	 *            Time (ms) the lease lasts for the holder
+	 */
+	public void grant(String filename, int holderId, int version, int duration) {
+		Holders holders = leases.get(filename);
+		if (holders == null) {
+			Holders created = new Holders();
+			holders = leases.putIfAbsent(filename, created);
+			if (holders == null) {
+				holders = created;
+			}
+		}
+		long now = clock.nanoTime();
+		holders.grant(holderId, version, now,
+				now + TimeUnit.MILLISECONDS.toNanos(duration + EXPIRY_MARGIN));
+	}
+
+	/**
+	 * Ends the leases on the versions of a file other than the given one
+	 * 
+	 * @param filename
+	 * @param version
+	 *            New version of the file
+	 * @return The holders whose lease was still valid, which have to be
+	 *         invalidated
+	 */
+	public List<Integer> revoke(String filename, int version) {
+		Holders holders = leases.get(filename);
+		if (holders == null) {
+			return new ArrayList<Integer>();
+		}
+		return holders.revoke(version, clock.nanoTime());
+	}
+
+	public void remove(String filename) {
+		leases.remove(filename);
+	}
+
+	/**
+	 * Holders of the leases on a file
+	 */
+	private static class Holders {
+
+		private int[] ids = new int[4];
+
+		private int[] versions = new int[4];
+
+		// Deadlines of the leases, by the monotonic clock
+		private long[] expiries = new long[4];
+
+		private int size = 0;
+
+		public synchronized void grant(int holderId, int version, long now,
+				long expiry) {
+			for (int i = 0; i < size; i++) {
+				if (ids[i] == holderId) {
+					versions[i] = version;
+					expiries[i] = expiry;
+					return;
+				}
+			}
+
+			if (size == ids.length) {
+				// Expired leases are dropped before the arrays grow
+				compact(now, Peer.ANY_VERSION);
+			}
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+				versions = Arrays.copyOf(versions, size * 2);
+				expiries = Arrays.copyOf(expiries, size * 2);
+			}
+			ids[size] = holderId;
+			versions[size] = version;
+			expiries[size] = expiry;
+			size++;
+		}
+
+		public synchronized List<Integer> revoke(int version, long now) {
+			List<Integer> revoked = new ArrayList<Integer>();
+			for (int i = 0; i < size; i++) {
+				if ((versions[i] != version) && (expiries[i] - now > 0)) {
+					revoked.add(ids[i]);
+				}
+			}
+			compact(now, version);
+			return revoked;
+		}
+
+		/**
+		 * Drops the expired leases and the ones on other versions than the
+		 * given one
+		 * 
+		 * @param now
+		 * @param version
+		 *            Version kept, or Peer.ANY_VERSION to keep all of them
+		 */
+		private void compact(long now, int version) {
+			int kept = 0;
+			for (int i = 0; i < size; i++) {
+				if ((expiries[i] - now > 0)
+						&& ((version == Peer.ANY_VERSION) || (versions[i] == version))) {
+					ids[kept] = ids[i];
+					versions[kept] = versions[i];
+					expiries[kept] = expiries[i];
+					kept++;
+				}
+			}
+			size = kept;
+		}
+
+	}
+
+}
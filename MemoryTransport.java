@@ -0,0 +1,118 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transport between peers running in the same JVM, used by the network
+ * simulator. The calls go straight to the PeerBinder of the other peer,
+ * without serialization, through a proxy which counts them by method, so the
+ * simulator can report how many messages each protocol sends.
+ * 
+ * The arguments and results are shared between the peers instead of being
+ * copied, so neither side must modify them after the call, as with RMI.
+ * 
+ * @author palvare3
+ * 
+ */
+public class MemoryTransport implements PeerTransport {
+
+	private Map<Integer, PeerServerInterface> servers = new ConcurrentHashMap<Integer, PeerServerInterface>();
+
+	// Calls by method name
+	private Map<String, AtomicLong> messages = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Makes a peer reachable
+	 * 
+	 * @param peerId
+	 * @param server
+	 *            Server side of the peer
+	 */
+	public void bind(int peerId, PeerServerInterface server) {
+		servers.put(peerId, server);
+	}
+
+	/**
+	 * Makes a peer unreachable, as if it had gone down. The calls through the
+	 * stubs other peers already have fail from now on.
+	 * 
+	 * @param peerId
+	 */
+	public void unbind(int peerId) {
+		servers.remove(peerId);
+	}
+
+	@Override
+	public PeerServerInterface lookup(int peerId) throws NotBoundException {
+		if (!servers.containsKey(peerId)) {
+			throw new NotBoundException("PeerServer" + peerId);
+		}
+		return (PeerServerInterface) Proxy.newProxyInstance(
+				PeerServerInterface.class.getClassLoader(),
+				new Class<?>[] { PeerServerInterface.class }, new Stub(peerId));
+	}
+
+	/**
+	 * @return Calls made between the peers, by method name
+	 */
+	public Map<String, Long> getMessageCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : messages.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		return counts;
+	}
+
+	public void resetMessageCounts() {
+		messages.clear();
+	}
+
+	private void count(String method) {
+		AtomicLong count = messages.get(method);
+		if (count == null) {
+			messages.putIfAbsent(method, new AtomicLong());
+			count = messages.get(method);
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Stub of a peer: forwards the calls to its server while it is bound
+	 */
+	private class Stub implements InvocationHandler {
+
+		private int peerId;
+
+		public Stub(int peerId) {
+			this.peerId = peerId;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				return method.invoke(this, args);
+			}
+
+			PeerServerInterface server = servers.get(peerId);
+			if (server == null) {
+				throw new RemoteException("PeerServer" + peerId + " is down");
+			}
+			count(method.getName());
+			try {
+				return method.invoke(server, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,213 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only journal of the metadata of the downloaded files, kept in a
+ * memory-mapped file so it can be written on every update at the cost of a
+ * memory copy. It is replayed when the peer starts, so the downloads which
+ * were valid before a restart can be served right away instead of being
+ * fetched again.
+ * 
+ * Each record is: length of the rest of the record (int), filename length
+ * (short), filename (UTF-8), version (int), master id (int), TTR deadline in
+ * wall-clock milliseconds (long) and validity (byte). A length of 0 marks the
+ * end of the journal. The last record of a file wins, and the journal is
+ * compacted to one record per file when it has grown too much.
+ * 
+ * @author palvare3
+ * 
+ */
+public class MetadataJournal {
+
+	// Validity of a record which removes a file from the journal
+	public static final int REMOVED = -1;
+
+	private static final int INITIAL_CAPACITY = 1024 * 1024;
+
+	// The journal is compacted when its records are this many times the live
+	// ones
+	private static final int COMPACTION_RATIO = 4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private File file;
+
+	private MappedByteBuffer buffer;
+
+	// Latest record of each file, used to compact the journal
+	private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	private int records = 0;
+
+	/**
+	 * Opens the journal and replays it
+	 * 
+	 * @param path
+	 *            Path of the journal file
+	 * @throws IOException
+	 */
+	public MetadataJournal(String path) throws IOException {
+		this.file = new File(path);
+		map(Math.max(INITIAL_CAPACITY, file.length()));
+		replay();
+	}
+
+	/**
+	 * @return The latest metadata of each file found in the journal
+	 */
+	public synchronized Map<String, Entry> getEntries() {
+		return new HashMap<String, Entry>(entries);
+	}
+
+	/**
+	 * Appends the metadata of a file
+	 * 
+	 * @param filename
+	 * @param version
+	 * @param master
+	 * @param ttrDeadline
+	 *            Wall-clock time (ms) when the TTR of the file expires
+	 * @param validity
+	 *            Validity of the file, or REMOVED
+	 */
+	public synchronized void append(String filename, int version, int master,
+			long ttrDeadline, int validity) {
+		Entry entry = new Entry(version, master, ttrDeadline, validity);
+		if (validity == REMOVED) {
+			entries.remove(filename);
+		} else {
+			entries.put(filename, entry);
+		}
+
+		try {
+			if (records > COMPACTION_RATIO * Math.max(entries.size(), 256)) {
+				compact();
+				return;
+			}
+			write(filename, entry);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Rewrites the journal with a single record per file
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void compact() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		tmp.delete();
+
+		File original = file;
+		file = tmp;
+		buffer = null;
+		map(INITIAL_CAPACITY);
+		records = 0;
+		for (String filename : entries.keySet()) {
+			write(filename, entries.get(filename));
+		}
+		buffer.force();
+
+		if (!tmp.renameTo(original)) {
+			original.delete();
+			tmp.renameTo(original);
+		}
+		file = original;
+	}
+
+	private void write(String filename, Entry entry) throws IOException {
+		byte[] name = filename.getBytes(UTF8);
+		int length = 2 + name.length + 4 + 4 + 8 + 1;
+
+		// Leaves room for the end mark after the record
+		if (buffer.remaining() < 4 + length + 4) {
+			map(buffer.capacity() * 2L + length);
+		}
+
+		buffer.putInt(length);
+		buffer.putShort((short) name.length);
+		buffer.put(name);
+		buffer.putInt(entry.version);
+		buffer.putInt(entry.master);
+		buffer.putLong(entry.ttrDeadline);
+		buffer.put((byte) entry.validity);
+		// End mark, overwritten by the next record
+		buffer.putInt(buffer.position(), 0);
+		records++;
+	}
+
+	private void replay() {
+		while (buffer.remaining() >= 4) {
+			int start = buffer.position();
+			int length = buffer.getInt();
+			if ((length <= 0) || (length > buffer.remaining())) {
+				// End of the journal, or a record cut by a crash
+				buffer.position(start);
+				break;
+			}
+
+			int nameLength = buffer.getShort();
+			if (nameLength != length - 2 - 4 - 4 - 8 - 1) {
+				buffer.position(start);
+				break;
+			}
+			byte[] name = new byte[nameLength];
+			buffer.get(name);
+			Entry entry = new Entry(buffer.getInt(), buffer.getInt(),
+					buffer.getLong(), buffer.get());
+
+			String filename = new String(name, UTF8);
+			if (entry.validity == REMOVED) {
+				entries.remove(filename);
+			} else {
+				entries.put(filename, entry);
+			}
+			records++;
+		}
+	}
+
+	/**
+	 * Maps the journal file with a certain capacity, keeping the write
+	 * position
+	 */
+	private void map(long capacity) throws IOException {
+		int position = (buffer == null) ? 0 : buffer.position();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					capacity);
+		} finally {
+			// The mapping stays valid after the channel is closed
+			raf.close();
+		}
+		buffer.position(position);
+	}
+
+	/**
+	 * Metadata of a downloaded file in the journal
+	 */
+	public static class Entry {
+
+		public final int version;
+		public final int master;
+		public final long ttrDeadline;
+		public final int validity;
+
+		public Entry(int version, int master, long ttrDeadline, int validity) {
+			this.version = version;
+			this.master = master;
+			this.ttrDeadline = ttrDeadline;
+			this.validity = validity;
+		}
+
+	}
+
+}
@@ -0,0 +1,808 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deterministic simulator of a whole network in one JVM, used to size the
+ * TTL, the TTR and the topology before changes are rolled out. It runs the
+ * real Peer and PeerBinder of thousands of peers, each in its own directory,
+ * connected by a MemoryTransport and driven by a single VirtualClock:
+ * 
+ * - The workload is a stream of events on the virtual clock: each peer reads
+ * a file every queryInterval ms on average (searching and downloading it when
+ * it has no valid copy), and each master file is modified every
+ * modifyInterval ms on average (or spread around it, see modifySpread). Both are exponentially distributed, as in the
+ * automatic mode of PeerMain, and the files read follow a Zipf popularity.
+ * 
+ * - The timers of the peers (TTR expirations, invalidation batches, content
+ * summaries) run on the same clock, and the work the peers hand to their
+ * executors is queued and run in order by the same thread, so a run with the
+ * same options and seed always gives the same result.
+ * 
+ * Calls between peers take no virtual time. The calls a peer makes in
+ * parallel are queued, and the queue is run while the peer waits for their
+ * answers, so a flood reaches the peers in breadth-first order, as in a
+ * network where every hop takes the same time.
+ * 
+ * At the end it reports the messages sent by method, the invalid requests and
+ * the staleness of the copies read, measured after a warm-up period.
+ * 
+ * @author palvare3
+ * 
+ */
+public class NetworkSimulator {
+
+	private static final String HELP = "NutPeers simulator: NetworkSimulator [option=value]...\n"
+			+ " peers           Number of peers (1000)\n"
+			+ " topology        line, ring, star, grid, random or a Topology class (random)\n"
+			+ " degree          Neighbors per peer in random topologies (4)\n"
+			+ " mode            push, pull, lease (push)\n"
+			+ " ttl             TTL of the searches and invalidations ("
+			+ Peer.TIME_TO_LIVE
+			+ ")\n"
+			+ " ttr             TTR (ms) of the master files (6000)\n"
+			+ " ttrStaleness    Target probability of a stale copy, which sets the TTR\n"
+			+ "                 of each file from its modifications, 0 to use ttr ("
+			+ AdaptiveTTR.DEFAULT_TARGET_STALENESS
+			+ ")\n"
+			+ " staleGrace      Time (ms) expired files are still served (0)\n"
+			+ " files           Master files per peer (1)\n"
+			+ " fileSize        Initial size of the files in bytes (1024)\n"
+			+ " zipf            Skew of the popularity of the files, 0 is uniform (1.0)\n"
+			+ " queryInterval   Mean time (ms) between reads of a peer (10000)\n"
+			+ " modifyInterval  Mean time (ms) between modifications of a file (60000)\n"
+			+ " modifySpread    Each file is modified every modifyInterval / s to\n"
+			+ "                 modifyInterval * s ms, log-uniformly, 1 for all the same (1)\n"
+			+ " duration        Virtual time (ms) simulated (120000)\n"
+			+ " warmup          Virtual time (ms) before measuring (10000)\n"
+			+ " summaries       Publish the content summaries: true, false (true)\n"
+			+ " seed            Seed of the random numbers (1)\n"
+			+ " dir             Directory of the peers, a temporary one by default\n"
+			+ " verbose         Show the output of the peers: true, false (false)";
+
+	// Stack (bytes) of the thread which runs the simulation
+	private static final long SIMULATOR_STACK_SIZE = 1L << 30;
+
+	private static final String[] OPTIONS = { "peers", "topology", "degree",
+			"mode", "ttl", "ttr", "ttrStaleness", "staleGrace", "files",
+			"fileSize", "zipf", "queryInterval", "modifyInterval",
+			"modifySpread", "duration", "warmup", "summaries", "seed", "dir", "verbose" };
+
+	private Properties options;
+
+	private VirtualClock clock = new VirtualClock();
+
+	private MemoryTransport transport = new MemoryTransport();
+
+	private SimulatedExecutor executor = new SimulatedExecutor();
+
+	private Random random;
+
+	// Logger of the peers, held so its settings are not lost
+	private Logger logger = Logger.getLogger("Peers");
+
+	// Log shared by all the peers, so there is a single writer thread
+	private PeerLog log = new PeerLog(logger, clock);
+
+	private File directory;
+
+	// Peers by id, index 0 unused
+	private Peer[] peers;
+
+	// Every master file, and the id of its master
+	private String[] files;
+
+	private int[] masters;
+
+	// Cumulative probability of reading each file, see pickFile()
+	private double[] popularity;
+
+	// Time each version of a file was replaced, by filename and version
+	private Map<String, List<Long>> replaced = new HashMap<String, List<Long>>();
+
+	private long warmup;
+
+	// Peer counters when the warm-up ended
+	private Map<String, Long> countersAtWarmup = new TreeMap<String, Long>();
+
+	// Workload measured after the warm-up
+	private long reads;
+	private long localReads;
+	private long staleReads;
+	private long searches;
+	private long unresolvedSearches;
+	private long hits;
+	private long staleHits;
+	private long downloads;
+	private long staleDownloads;
+	private long failedDownloads;
+	private long modifications;
+
+	// Time (ms) since the stale copies read were replaced in their master
+	private Histogram staleness = new Histogram();
+
+	public NetworkSimulator(Properties options) {
+		this.options = options;
+	}
+
+	public static void main(String argv[]) throws Exception {
+		Properties options = new Properties();
+		for (String arg : argv) {
+			int separator = arg.indexOf('=');
+			if (arg.equals("help") || (separator < 0)
+					|| !Arrays.asList(OPTIONS).contains(
+							arg.substring(0, separator))) {
+				System.out.println(HELP);
+				System.exit(0);
+			}
+			options.setProperty(arg.substring(0, separator),
+					arg.substring(separator + 1));
+		}
+
+		final NetworkSimulator simulator = new NetworkSimulator(options);
+		final Exception[] failure = new Exception[1];
+
+		// The calls of a flood are nested in the stack of the thread which
+		// runs them, one level per peer reached, so it needs a big stack
+		Thread thread = new Thread(null, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					simulator.run();
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		}, "simulator", SIMULATOR_STACK_SIZE);
+		thread.start();
+		thread.join();
+
+		if (failure[0] != null) {
+			failure[0].printStackTrace();
+		}
+		// The RMI runtime started by the binders keeps the JVM alive
+		System.exit(0);
+	}
+
+	private int intOption(String name, int value) {
+		return Integer.parseInt(options.getProperty(name, "" + value));
+	}
+
+	private double doubleOption(String name, double value) {
+		return Double.parseDouble(options.getProperty(name, "" + value));
+	}
+
+	private boolean booleanOption(String name, boolean value) {
+		return Boolean.parseBoolean(options.getProperty(name, "" + value));
+	}
+
+	/**
+	 * Builds the network, runs the workload and prints the report
+	 * 
+	 * @throws IOException
+	 *             if the directories of the peers cannot be written
+	 */
+	public void run() throws IOException {
+		random = new Random(intOption("seed", 1));
+		warmup = intOption("warmup", 10000);
+		long duration = intOption("duration", 120000);
+
+		boolean temporary = !options.containsKey("dir");
+		if (temporary) {
+			directory = Files.createTempDirectory("nutpeers-sim").toFile();
+		} else {
+			directory = new File(options.getProperty("dir"));
+		}
+
+		PrintStream console = System.out;
+		logger.setUseParentHandlers(false);
+		if (booleanOption("verbose", false)) {
+			log.setConsole(console, null);
+		} else {
+			logger.setLevel(Level.OFF);
+			System.setOut(new PrintStream(new OutputStream() {
+				@Override
+				public void write(int b) {
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+				}
+			}));
+		}
+		try {
+			long start = System.nanoTime();
+			createPeers();
+			long created = System.nanoTime();
+			scheduleWorkload();
+
+			clock.schedule(new Runnable() {
+				@Override
+				public void run() {
+					endWarmup();
+				}
+			}, warmup);
+			clock.run(duration);
+			long finished = System.nanoTime();
+			log.close();
+
+			System.setOut(console);
+			printReport(TimeUnit.NANOSECONDS.toMillis(created - start),
+					TimeUnit.NANOSECONDS.toMillis(finished - created),
+					duration);
+		} finally {
+			System.setOut(console);
+			for (int id = 1; (peers != null) && (id < peers.length); id++) {
+				transport.unbind(id);
+			}
+			if (temporary) {
+				delete(directory);
+			}
+		}
+	}
+
+	/**
+	 * Writes the directory of every peer, with its master files and its
+	 * peer.properties, and starts the peers in order of id
+	 */
+	private void createPeers() throws IOException {
+		int n = intOption("peers", 1000);
+		int filesPerPeer = intOption("files", 1);
+		int ttr = intOption("ttr", 6000);
+
+		String mode = options.getProperty("mode", "push");
+		if (mode.equals("pull")) {
+			PeerMain.MODE = PeerMain.MODE_PULL;
+		} else if (mode.equals("lease")) {
+			PeerMain.MODE = PeerMain.MODE_LEASE;
+		} else {
+			PeerMain.MODE = PeerMain.MODE_PUSH;
+		}
+
+		Map<Integer, Set<Integer>> neighbors = Topology.forName(
+				options.getProperty("topology", "random")).connect(n,
+				intOption("degree", 4), random);
+
+		files = new String[n * filesPerPeer];
+		masters = new int[files.length];
+		for (int id = 1; id <= n; id++) {
+			File peerDirectory = new File(directory, "peer" + id);
+			new File(peerDirectory, "files").mkdirs();
+			new File(peerDirectory, "downloads").mkdirs();
+
+			for (int k = 0; k < filesPerPeer; k++) {
+				int i = (id - 1) * filesPerPeer + k;
+				files[i] = "file" + id + "-" + k + ".txt";
+				masters[i] = id;
+				replaced.put(files[i], new ArrayList<Long>());
+				writeFile(new File(peerDirectory, "files/" + files[i]),
+						intOption("fileSize", 1024));
+			}
+
+			if (neighbors.get(id).isEmpty()) {
+				throw new IllegalArgumentException("Peer " + id
+						+ " has no neighbors");
+			}
+			StringBuilder list = new StringBuilder();
+			for (Integer neighborId : neighbors.get(id)) {
+				list.append((list.length() > 0) ? "," : "").append(neighborId);
+			}
+			Properties properties = new Properties();
+			properties.setProperty("peer_id", "" + id);
+			properties.setProperty("TTR", "" + ttr);
+			properties.setProperty("neighbors", list.toString());
+			FileOutputStream out = new FileOutputStream(new File(
+					peerDirectory, "peer.properties"));
+			try {
+				properties.store(out, null);
+			} finally {
+				out.close();
+			}
+		}
+		rankFiles(doubleOption("zipf", 1.0));
+
+		// Each peer finds the neighbors started before it, and the later
+		// ones find it, as when a network is started by hand
+		peers = new Peer[n + 1];
+		for (int id = 1; id <= n; id++) {
+			Peer peer = new Peer(id, ttr, new SimulatedEnvironment(new File(
+					directory, "peer" + id), random.nextLong()));
+			peer.setTimeToLive(intOption("ttl", Peer.TIME_TO_LIVE));
+			peer.setStaleGrace(intOption("staleGrace", 0));
+			peer.setTargetStaleness(doubleOption("ttrStaleness",
+					AdaptiveTTR.DEFAULT_TARGET_STALENESS));
+
+			PeerBinder binder = new PeerBinder(peer);
+			// Calls go through the transport, not through RMI
+			UnicastRemoteObject.unexportObject(binder, true);
+			transport.bind(id, binder);
+			peers[id] = peer;
+		}
+	}
+
+	private void writeFile(File file, int size) throws IOException {
+		StringBuilder content = new StringBuilder();
+		while (content.length() < size) {
+			content.append(file.getName()).append(" line ")
+					.append(content.length()).append('\n');
+		}
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.substring(0, size).getBytes());
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Gives each file a random rank of popularity, so popular files are spread
+	 * over the network, and the probability of reading the file of rank r is
+	 * proportional to 1 / r^skew
+	 */
+	private void rankFiles(double skew) {
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < files.length; i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order, random);
+
+		popularity = new double[files.length];
+		double total = 0;
+		for (int rank = 0; rank < files.length; rank++) {
+			total += 1 / Math.pow(rank + 1, skew);
+			popularity[order.get(rank)] = 1 / Math.pow(rank + 1, skew);
+		}
+		double cumulative = 0;
+		for (int i = 0; i < files.length; i++) {
+			cumulative += popularity[i] / total;
+			popularity[i] = cumulative;
+		}
+	}
+
+	/**
+	 * @return The index of a file drawn by popularity
+	 */
+	private int pickFile() {
+		int i = Arrays.binarySearch(popularity, random.nextDouble());
+		if (i < 0) {
+			i = -i - 1;
+		}
+		return Math.min(i, files.length - 1);
+	}
+
+	/**
+	 * @param mean
+	 * @return An exponentially distributed time (ms) with that mean
+	 */
+	private long exponential(double mean) {
+		return Math.round(-Math.log(1 - random.nextDouble()) * mean);
+	}
+
+	/**
+	 * Schedules the first read of every peer and the first modification of
+	 * every file. Each event schedules the next one.
+	 */
+	private void scheduleWorkload() {
+		final double queryInterval = doubleOption("queryInterval", 10000);
+		double modifyInterval = doubleOption("modifyInterval", 60000);
+		double modifySpread = doubleOption("modifySpread", 1);
+
+		for (int id = 1; id < peers.length; id++) {
+			final int peerId = id;
+			clock.schedule(new Runnable() {
+				@Override
+				public void run() {
+					read(peers[peerId]);
+					clock.schedule(this, exponential(queryInterval));
+				}
+			}, exponential(queryInterval));
+		}
+
+		for (int i = 0; i < files.length; i++) {
+			final int file = i;
+			final double interval = (modifySpread > 1) ? modifyInterval
+					* Math.pow(modifySpread, 2 * random.nextDouble() - 1)
+					: modifyInterval;
+			clock.schedule(new Runnable() {
+				@Override
+				public void run() {
+					modify(file);
+					clock.schedule(this, exponential(interval));
+				}
+			}, exponential(interval));
+		}
+	}
+
+	private boolean measuring() {
+		return clock.currentTimeMillis() >= warmup;
+	}
+
+	/**
+	 * A peer reads a file of another peer. A valid local copy is read in
+	 * place; otherwise the file is searched and downloaded from one of the
+	 * sources found with the newest version.
+	 */
+	private void read(Peer peer) {
+		int file = pickFile();
+		if (masters[file] == peer.getId()) {
+			return;
+		}
+		String filename = files[file];
+		boolean measured = measuring();
+		if (measured) {
+			reads++;
+		}
+
+		if (peer.hasFile(filename) == Peer.FILE_VALID) {
+			if (measured) {
+				localReads++;
+				if (isStale(peer, filename)) {
+					staleReads++;
+					staleness.record(age(peer, filename));
+				}
+			}
+			return;
+		}
+
+		QueryHits sources = peer.search(filename);
+		if (measured) {
+			searches++;
+			hits += sources.size();
+			for (Integer sourceId : sources.getSources()) {
+				if (isStale(peers[sourceId], filename)) {
+					staleHits++;
+				}
+			}
+		}
+		if (sources.isEmpty()) {
+			if (measured) {
+				unresolvedSearches++;
+			}
+			return;
+		}
+
+		// Any of the sources with the newest version, which are ranked, so
+		// the source chosen only depends on the seed
+		QueryHits newest = sources.newest();
+		int sourceId = newest.getSource(random.nextInt(newest.size()));
+		boolean downloaded = new FileDownloader(peer).download(filename,
+				sourceId);
+		if (measured) {
+			if (!downloaded) {
+				failedDownloads++;
+			} else {
+				downloads++;
+				if (isStale(peer, filename)) {
+					staleDownloads++;
+					staleness.record(age(peer, filename));
+				}
+			}
+		}
+	}
+
+	private void modify(int file) {
+		Peer master = peers[masters[file]];
+		replaced.get(files[file]).add(clock.currentTimeMillis());
+		master.modifyMasterFile(files[file]);
+		if (measuring()) {
+			modifications++;
+		}
+	}
+
+	/**
+	 * @return true if the copy of a file in a peer is older than its master
+	 */
+	private boolean isStale(Peer peer, String filename) {
+		return !peer.isMaster(filename)
+				&& (peer.getVersion(filename) < replaced.get(filename).size());
+	}
+
+	/**
+	 * @return Time (ms) since the version of a file in a peer was replaced
+	 */
+	private long age(Peer peer, String filename) {
+		int version = Math.max(peer.getVersion(filename), 0);
+		return clock.currentTimeMillis() - replaced.get(filename).get(version);
+	}
+
+	/**
+	 * Starts measuring: forgets the messages sent so far and keeps the
+	 * counters of the peers to subtract them at the end
+	 */
+	private void endWarmup() {
+		transport.resetMessageCounts();
+		countersAtWarmup = sumCounters();
+	}
+
+	/**
+	 * @return The counters of all the peers added up, without the latency
+	 *         histograms
+	 */
+	private Map<String, Long> sumCounters() {
+		Map<String, Long> sums = new TreeMap<String, Long>();
+		for (int id = 1; id < peers.length; id++) {
+			for (Map.Entry<String, Long> entry : peers[id].getMetrics()
+					.getStatistics().entrySet()) {
+				String name = entry.getKey();
+				if (name.endsWith(".mean") || name.endsWith(".p50")
+						|| name.endsWith(".p99") || name.endsWith(".max")) {
+					continue;
+				}
+				Long sum = sums.get(name);
+				sums.put(name, ((sum == null) ? 0 : sum) + entry.getValue());
+			}
+		}
+		return sums;
+	}
+
+	private static String percent(long part, long total) {
+		return (total == 0) ? "0%" : String.format("%.2f%%", 100.0 * part
+				/ total);
+	}
+
+	private void printReport(long setupMillis, long runMillis, long duration) {
+		System.out.println("SIMULATION");
+		for (String name : OPTIONS) {
+			if (options.containsKey(name)) {
+				System.out.println(name + ": " + options.getProperty(name));
+			}
+		}
+		System.out.println("Peers: " + (peers.length - 1) + ", files: "
+				+ files.length);
+		System.out.println("Virtual time measured: " + (duration - warmup)
+				+ " ms");
+		System.out.println("Events: " + clock.getExecuted() + ", setup: "
+				+ setupMillis + " ms, run: " + runMillis + " ms");
+
+		System.out.println();
+		System.out.println("MESSAGES");
+		long total = 0;
+		Map<String, Long> messages = transport.getMessageCounts();
+		for (Map.Entry<String, Long> entry : messages.entrySet()) {
+			System.out.println(entry.getKey() + ": " + entry.getValue());
+			total += entry.getValue();
+		}
+		System.out.println("Total: " + total);
+		if (searches > 0) {
+			System.out.println(String.format("Queries per search: %.1f",
+					(double) count(messages, "queryServer") / searches));
+		}
+		if (modifications > 0) {
+			System.out.println(String.format(
+					"Invalidation batches per modification: %.1f",
+					(double) (count(messages, "invalidateBatch") + count(
+							messages, "revokeLeases")) / modifications));
+		}
+
+		System.out.println();
+		System.out.println("REQUESTS");
+		Map<String, Long> counters = sumCounters();
+		for (Map.Entry<String, Long> entry : counters.entrySet()) {
+			System.out.println(entry.getKey() + ": "
+					+ (entry.getValue() - count(countersAtWarmup,
+							entry.getKey())));
+		}
+		long requests = count(counters, "requests.total")
+				- count(countersAtWarmup, "requests.total");
+		long invalid = count(counters, "requests.invalid")
+				- count(countersAtWarmup, "requests.invalid");
+		System.out.println("Percentage of invalid requests: "
+				+ percent(invalid, requests));
+
+		System.out.println();
+		System.out.println("STALENESS");
+		System.out.println("Reads: " + reads + ", from a local copy: "
+				+ localReads + ", stale: " + staleReads + " ("
+				+ percent(staleReads, localReads) + ")");
+		System.out.println("Searches: " + searches + ", without sources: "
+				+ unresolvedSearches + " ("
+				+ percent(unresolvedSearches, searches) + ")");
+		System.out.println("Hits: " + hits + ", stale: " + staleHits + " ("
+				+ percent(staleHits, hits) + ")");
+		System.out.println("Downloads: " + downloads + ", failed: "
+				+ failedDownloads + ", stale: " + staleDownloads + " ("
+				+ percent(staleDownloads, downloads) + ")");
+		System.out.println("Modifications: " + modifications);
+		System.out.println("Staleness of stale copies (ms): mean "
+				+ staleness.getMean() + ", p50 "
+				+ staleness.getPercentile(50) + ", p99 "
+				+ staleness.getPercentile(99) + ", max " + staleness.getMax());
+	}
+
+	private static long count(Map<String, Long> counts, String name) {
+		Long count = counts.get(name);
+		return (count == null) ? 0 : count;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Environment of a simulated peer: its own directory and the shared
+	 * virtual clock, transport and executor
+	 */
+	private class SimulatedEnvironment extends PeerEnvironment {
+
+		private File peerDirectory;
+
+		private long seed;
+
+		public SimulatedEnvironment(File peerDirectory, long seed) {
+			this.peerDirectory = peerDirectory;
+			this.seed = seed;
+		}
+
+		@Override
+		public File getDirectory() {
+			return peerDirectory;
+		}
+
+		@Override
+		public Clock getClock() {
+			return clock;
+		}
+
+		@Override
+		public Clock newTimer(String name) {
+			return clock;
+		}
+
+		@Override
+		public PeerTransport getTransport() {
+			return transport;
+		}
+
+		@Override
+		public PeerLog getLog() {
+			return log;
+		}
+
+		@Override
+		public ExecutorService newExecutor(String name) {
+			return executor;
+		}
+
+		@Override
+		public <T> BlockingQueue<Future<T>> newCompletionQueue() {
+			return new CompletionQueue<T>();
+		}
+
+		@Override
+		public Random getRandom() {
+			return new Random(seed);
+		}
+
+		@Override
+		public boolean isStandalone() {
+			return false;
+		}
+
+		@Override
+		public boolean isPublishingSummaries() {
+			return booleanOption("summaries", true);
+		}
+
+	}
+
+	/**
+	 * Executor of all the peers. The tasks are queued in the order they are
+	 * submitted and run by the simulation thread: when a peer waits for the
+	 * answers of its neighbors (see CompletionQueue), or else right after the
+	 * current event, at the same virtual time.
+	 */
+	private class SimulatedExecutor extends AbstractExecutorService {
+
+		private Deque<Runnable> tasks = new ArrayDeque<Runnable>();
+
+		private boolean drainScheduled = false;
+
+		private boolean shutdown = false;
+
+		@Override
+		public void execute(Runnable command) {
+			tasks.add(command);
+			if (!drainScheduled) {
+				drainScheduled = true;
+				clock.schedule(new Runnable() {
+					@Override
+					public void run() {
+						drainScheduled = false;
+						while (runNext()) {
+						}
+					}
+				}, 0);
+			}
+		}
+
+		/**
+		 * Runs the oldest task in the queue
+		 * 
+		 * @return false if the queue was empty
+		 */
+		public boolean runNext() {
+			Runnable task = tasks.poll();
+			if (task == null) {
+				return false;
+			}
+			task.run();
+			return true;
+		}
+
+		@Override
+		public void shutdown() {
+			shutdown = true;
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			shutdown = true;
+			return new ArrayList<Runnable>();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return shutdown;
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return shutdown;
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) {
+			return true;
+		}
+
+	}
+
+	/**
+	 * Queue of the answers a peer waits for. Waiting runs the queued tasks of
+	 * all the peers until an answer arrives. The tasks of the peer are always
+	 * queued or done while it waits, so the wait never blocks.
+	 */
+	private class CompletionQueue<T> extends LinkedBlockingQueue<Future<T>> {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Future<T> poll(long timeout, TimeUnit unit) {
+			while (isEmpty() && executor.runNext()) {
+			}
+			return poll();
+		}
+
+	}
+
+}
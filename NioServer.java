@@ -0,0 +1,341 @@
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Server side of the NIO transport: serves the calls of PeerServerInterface
+ * in the binary protocol of PeerProtocol, next to the RMI registry of the
+ * peer, so other peers can use either transport.
+ * 
+ * A single thread does all the network I/O with a Selector. The requests read
+ * from a connection are run by a pool of workers, so a slow call (e.g. a
+ * search which waits for the neighbors) does not hold the others sent on the
+ * same connection, and each worker queues its response on the connection,
+ * where the selector thread writes it as soon as the socket accepts it.
+ * 
+ * @author palvare3
+ * 
+ */
+public class NioServer implements Runnable, Closeable {
+
+	// Offset of the protocol port over the RMI port of a peer
+	public static final int PROTOCOL_PORT_OFFSET = 2000;
+
+	// Longer error messages are truncated, writeUTF() takes up to 64KB
+	private static final int MAX_MESSAGE_LENGTH = 1024;
+
+	private PeerServerInterface server;
+
+	private ServerSocketChannel acceptor;
+
+	private Selector selector;
+
+	private ExecutorService workers;
+
+	// Connections with responses waiting to be written
+	private Queue<Connection> writable = new ConcurrentLinkedQueue<Connection>();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Binds the protocol port
+	 * 
+	 * @param server
+	 *            Server side of the peer, which runs the calls
+	 * @param port
+	 * @throws IOException
+	 *             if the port cannot be bound
+	 */
+	public NioServer(PeerServerInterface server, int port) throws IOException {
+		this.server = server;
+		this.selector = Selector.open();
+		this.acceptor = ServerSocketChannel.open();
+		acceptor.socket().setReuseAddress(true);
+		acceptor.socket().bind(new InetSocketAddress(port));
+		acceptor.configureBlocking(false);
+		acceptor.register(selector, SelectionKey.OP_ACCEPT);
+		this.workers = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "protocol-server");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * @param peerId
+	 * @return The protocol port of a peer
+	 */
+	public static int getPort(int peerId) {
+		return Peer.BASE_RMI_PORT + peerId + PROTOCOL_PORT_OFFSET;
+	}
+
+	/**
+	 * @return Port the server is bound to, which is chosen by the system if
+	 *         the server was created with port 0
+	 */
+	public int getLocalPort() {
+		return acceptor.socket().getLocalPort();
+	}
+
+	@Override
+	public void run() {
+		System.out.println("Protocol port: " + getLocalPort());
+		try {
+			while (!closed) {
+				selector.select();
+
+				Connection connection;
+				while ((connection = writable.poll()) != null) {
+					if (connection.key.isValid()) {
+						connection.key.interestOps(SelectionKey.OP_READ
+								| SelectionKey.OP_WRITE);
+					}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					connection = (Connection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.write();
+						}
+					} catch (IOException e) {
+						// The client went down or sent a corrupt frame
+						connection.close();
+					}
+				}
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				e.printStackTrace();
+			}
+		} finally {
+			workers.shutdown();
+			shutdown();
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = acceptor.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Connection connection = new Connection(channel);
+		connection.key = channel.register(selector, SelectionKey.OP_READ,
+				connection);
+	}
+
+	/**
+	 * Stops the server. The selector thread closes the connections when it
+	 * wakes up.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		selector.wakeup();
+		workers.shutdown();
+	}
+
+	/**
+	 * Closes the port and the connections, called by the selector thread
+	 */
+	private void shutdown() {
+		try {
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Runs a request and builds its response
+	 * 
+	 * @param frame
+	 *            Request without its length
+	 * @return The response
+	 */
+	private PeerProtocol.Frame dispatch(ByteBuffer frame) {
+		int requestId = frame.getInt();
+		byte method = frame.get();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				frame.array(), frame.position(), frame.remaining()));
+
+		PeerProtocol.Frame out = new PeerProtocol.Frame(requestId,
+				PeerProtocol.STATUS_OK);
+		try {
+			switch (method) {
+			case PeerProtocol.OPEN_TRANSFER:
+				server.openTransfer(in.readUTF()).write(out);
+				break;
+			case PeerProtocol.READ_CHUNK:
+				PeerProtocol.writeBytes(out, server.readChunk(in.readInt(),
+						in.readLong(), in.readInt()));
+				break;
+			case PeerProtocol.CLOSE_TRANSFER:
+				server.closeTransfer(in.readInt());
+				break;
+			case PeerProtocol.NOTIFY_CONNECTION:
+				out.writeInt(server.notifyConnection(in.readInt()));
+				break;
+			case PeerProtocol.QUERY_SERVER:
+				server.queryServer(in.readLong(), in.readInt(), in.readUTF(),
+						in.readInt(), in.readInt(), in.readInt()).write(out);
+				break;
+			case PeerProtocol.INVALIDATE_BATCH:
+				server.invalidateBatch(in.readLong(), in.readInt(),
+						in.readInt(), PeerProtocol.readVersions(in),
+						in.readInt());
+				break;
+			case PeerProtocol.QUERY_HIT:
+				server.queryHit(in.readLong(), in.readUTF(),
+						QueryHits.read(in));
+				break;
+			case PeerProtocol.UPDATE_SUMMARY:
+				server.updateSummary(in.readInt(), SummaryDelta.read(in));
+				break;
+			case PeerProtocol.OBTAIN_IF_NEWER:
+				server.obtainIfNewer(in.readUTF(), in.readInt(), in.readInt(),
+						in.readInt(), PeerProtocol.readLongs(in)).write(out);
+				break;
+			case PeerProtocol.GET_STATISTICS:
+				PeerProtocol.writeStatistics(out, server.getStatistics());
+				break;
+			case PeerProtocol.CHECK_METADATA:
+				PeerProtocol.writeInts(out, server.checkMetadata(in.readUTF(),
+						in.readInt()));
+				break;
+			case PeerProtocol.RECEIVE_NEIGHBORS:
+				server.receiveNeighborsForInvalidation(PeerProtocol
+						.readNeighbors(in));
+				break;
+			case PeerProtocol.REVOKE_LEASES:
+				server.revokeLeases(in.readInt(), PeerProtocol.readVersions(in));
+				break;
+			default:
+				throw new IOException("Unknown method " + method);
+			}
+			return out;
+		} catch (Exception e) {
+			// Sent back to the caller, as RMI does with the exceptions thrown
+			// by the server
+			out = new PeerProtocol.Frame(requestId, PeerProtocol.STATUS_ERROR);
+			String message = e.getMessage() != null ? e.getMessage() : e
+					.toString();
+			if (message.length() > MAX_MESSAGE_LENGTH) {
+				message = message.substring(0, MAX_MESSAGE_LENGTH);
+			}
+			try {
+				PeerProtocol.writeString(out, message);
+			} catch (IOException ignored) {
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * Connection of a client
+	 */
+	private class Connection {
+
+		private SocketChannel channel;
+
+		private SelectionKey key;
+
+		private PeerProtocol.FrameReader reader = new PeerProtocol.FrameReader();
+
+		// Responses waiting to be written, in the order they were completed
+		private Queue<ByteBuffer> output = new ConcurrentLinkedQueue<ByteBuffer>();
+
+		public Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Reads the available bytes and hands the complete requests to the
+		 * workers
+		 */
+		public void read() throws IOException {
+			reader.read(channel);
+			ByteBuffer frame;
+			while ((frame = reader.next()) != null) {
+				final ByteBuffer request = frame;
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						respond(dispatch(request).toBuffer());
+					}
+				});
+			}
+		}
+
+		/**
+		 * Called by the workers: queues a response and wakes up the selector
+		 * thread to write it
+		 */
+		private void respond(ByteBuffer response) {
+			output.add(response);
+			writable.add(this);
+			selector.wakeup();
+		}
+
+		/**
+		 * Writes the queued responses while the socket accepts them
+		 */
+		public void write() throws IOException {
+			ByteBuffer response;
+			while ((response = output.peek()) != null) {
+				channel.write(response);
+				if (response.hasRemaining()) {
+					// The socket buffer is full, the rest is written when the
+					// selector says it is writable again
+					return;
+				}
+				output.poll();
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		public void close() {
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+
+	}
+
+}
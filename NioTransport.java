@@ -0,0 +1,507 @@
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport which talks to the protocol port of the other peers (see
+ * NioServer) instead of their RMI registry. There is one connection per peer,
+ * opened by the first lookup and kept open; all the threads of the peer send
+ * their calls over it at the same time. A writer thread sends the requests,
+ * batching the ones made together, and a reader thread hands each response to
+ * the call with the same request id.
+ * 
+ * When a connection fails, the calls waiting on it get a RemoteException, as
+ * with RMI, so the peer evicts the stub from its StubCache and the next lookup
+ * opens a new connection.
+ * 
+ * @author palvare3
+ * 
+ */
+public class NioTransport implements PeerTransport, Closeable {
+
+	// Requests written at once by a connection
+	private static final int MAX_BATCH = 64;
+
+	private ConcurrentMap<Integer, Connection> connections = new ConcurrentHashMap<Integer, Connection>();
+
+	@Override
+	public PeerServerInterface lookup(int peerId) throws RemoteException {
+		Connection connection = connections.get(peerId);
+		while (connection == null || connection.isClosed()) {
+			Connection opened = connectTo("localhost",
+					NioServer.getPort(peerId));
+			boolean installed = (connection == null) ? (connections
+					.putIfAbsent(peerId, opened) == null) : connections
+					.replace(peerId, connection, opened);
+			if (installed) {
+				return opened.stub;
+			}
+
+			// Another thread installed its connection first, which may
+			// already be in use, so the one opened here is the one closed
+			opened.close();
+			connection = connections.get(peerId);
+		}
+		return connection.stub;
+	}
+
+	/**
+	 * Opens a connection to a protocol port, outside the connections kept by
+	 * lookup()
+	 * 
+	 * @param host
+	 * @param port
+	 * @return The server interface behind the port
+	 * @throws ConnectException
+	 *             if the port cannot be reached
+	 */
+	public PeerServerInterface connect(String host, int port)
+			throws RemoteException {
+		return connectTo(host, port).stub;
+	}
+
+	private Connection connectTo(String host, int port) throws RemoteException {
+		try {
+			SocketChannel channel = SocketChannel.open(new InetSocketAddress(
+					host, port));
+			channel.socket().setTcpNoDelay(true);
+			Connection connection = new Connection(channel, host + ":" + port);
+			connection.start("protocol-client-" + port);
+			return connection;
+		} catch (IOException e) {
+			throw new ConnectException("Connection refused to " + host + ":"
+					+ port, e);
+		}
+	}
+
+	/**
+	 * Closes the connections to all the peers
+	 */
+	@Override
+	public void close() {
+		for (Connection connection : connections.values()) {
+			connection.close();
+		}
+		connections.clear();
+	}
+
+	/**
+	 * Call waiting for its response
+	 */
+	private static class Call {
+
+		private CountDownLatch done = new CountDownLatch(1);
+
+		private ByteBuffer response;
+
+		private IOException failure;
+
+	}
+
+	/**
+	 * Persistent connection to the protocol port of a peer
+	 */
+	private static class Connection {
+
+		private SocketChannel channel;
+
+		private String address;
+
+		private Stub stub = new Stub(this);
+
+		private AtomicInteger nextRequestId = new AtomicInteger();
+
+		private ConcurrentMap<Integer, Call> calls = new ConcurrentHashMap<Integer, Call>();
+
+		// Requests waiting to be written by the writer thread, so the threads
+		// making the calls never touch the channel: interrupting one of them
+		// while it writes would close the channel for all the others
+		private BlockingQueue<ByteBuffer> output = new LinkedBlockingQueue<ByteBuffer>();
+
+		private Thread writer;
+
+		private volatile IOException failure;
+
+		public Connection(SocketChannel channel, String address) {
+			this.channel = channel;
+			this.address = address;
+		}
+
+		public void start(String name) {
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					readResponses();
+				}
+			}, name + "-reader");
+			writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					writeRequests();
+				}
+			}, name + "-writer");
+			reader.setDaemon(true);
+			writer.setDaemon(true);
+			reader.start();
+			writer.start();
+		}
+
+		public boolean isClosed() {
+			return failure != null;
+		}
+
+		public PeerProtocol.Frame newRequest(byte method) {
+			return new PeerProtocol.Frame(nextRequestId.incrementAndGet(),
+					method);
+		}
+
+		/**
+		 * Sends a request and waits for its response
+		 * 
+		 * @param request
+		 * @return Payload of the response
+		 * @throws RemoteException
+		 *             if the server threw an exception or the connection
+		 *             failed
+		 */
+		public DataInputStream call(PeerProtocol.Frame request)
+				throws RemoteException {
+			Call call = new Call();
+			calls.put(request.getRequestId(), call);
+			try {
+				if (failure != null) {
+					throw new RemoteException("Connection to " + address
+							+ " failed", failure);
+				}
+				output.add(request.toBuffer());
+				call.done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RemoteException("Call to " + address
+						+ " interrupted");
+			} finally {
+				calls.remove(request.getRequestId());
+			}
+
+			if (call.failure != null) {
+				throw new RemoteException("Connection to " + address
+						+ " failed", call.failure);
+			}
+			ByteBuffer response = call.response;
+			byte status = response.get();
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					response.array(), response.position(), response
+							.remaining()));
+			if (status != PeerProtocol.STATUS_OK) {
+				String message;
+				try {
+					message = PeerProtocol.readString(in);
+				} catch (IOException e) {
+					message = null;
+				}
+				throw new RemoteException(message);
+			}
+			return in;
+		}
+
+		/**
+		 * Writes the queued requests, all the ones queued at the same time
+		 * with a single gathering write
+		 */
+		private void writeRequests() {
+			List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+			try {
+				while (true) {
+					batch.add(output.take());
+					output.drainTo(batch, MAX_BATCH - 1);
+					ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch
+							.size()]);
+					while (buffers[buffers.length - 1].hasRemaining()) {
+						channel.write(buffers);
+					}
+					batch.clear();
+				}
+			} catch (IOException e) {
+				fail(e);
+			} catch (InterruptedException e) {
+				// Closed by fail()
+			}
+		}
+
+		/**
+		 * Reads the responses and hands them to the calls
+		 */
+		private void readResponses() {
+			PeerProtocol.FrameReader frames = new PeerProtocol.FrameReader();
+			try {
+				while (true) {
+					frames.read(channel);
+					ByteBuffer frame;
+					while ((frame = frames.next()) != null) {
+						Call call = calls.remove(frame.getInt());
+						if (call != null) {
+							call.response = frame;
+							call.done.countDown();
+						}
+					}
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		/**
+		 * Closes the connection and fails the calls waiting on it
+		 */
+		private void fail(IOException e) {
+			if (failure == null) {
+				failure = e;
+			}
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+			}
+			if (writer != null) {
+				writer.interrupt();
+			}
+			for (Call call : calls.values()) {
+				call.failure = failure;
+				call.done.countDown();
+			}
+		}
+
+		public void close() {
+			fail(new IOException("Connection closed"));
+		}
+
+	}
+
+	/**
+	 * Client side of PeerServerInterface: encodes each call as a request frame
+	 */
+	private static class Stub implements PeerServerInterface {
+
+		private Connection connection;
+
+		public Stub(Connection connection) {
+			this.connection = connection;
+		}
+
+		private static RemoteException malformed(IOException e) {
+			if (e instanceof RemoteException) {
+				return (RemoteException) e;
+			}
+			return new RemoteException("Malformed message", e);
+		}
+
+		@Override
+		public TransferInfo openTransfer(String filename)
+				throws RemoteException {
+			PeerProtocol.Frame request = connection
+					.newRequest(PeerProtocol.OPEN_TRANSFER);
+			try {
+				request.writeUTF(filename);
+				return TransferInfo.read(connection.call(request));
+			} catch (IOException e) {
+				throw malformed(e);
+			}
+		}
+
+		@Override
+		public byte[] readChunk(int transferId, long offset, int length)
+				throws RemoteException {
+			PeerProtocol.Frame request = connection
+					.newRequest(PeerProtocol.READ_CHUNK);
+			try {
+				request.writeInt(transferId);
+				request.writeLong(offset);
+				request.writeInt(length);
+				return PeerProtocol.readBytes(connection.call(request));
+			} catch (IOException e) {
+				throw malformed(e);
+			}
+		}
+
+		@Override
+		public void closeTransfer(int transferId) throws RemoteException {
+			PeerProtocol.Frame request = connection
+					.newRequest(PeerProtocol.CLOSE_TRANSFER);
+			try {
+				request.writeInt(transferId);
+				connection.call(request);
+			} catch (IOException e) {
+				throw malformed(e);
+			}
+		}
+
+		@Override
+		public int notifyConnection(int id) throws RemoteException {
+			PeerProtocol.Frame request = connection
+					.newRequest(PeerProtocol.NOTIFY_CONNECTION);
+			try {
+				request.writeInt(id);
+				return connection.call(request).readInt();
+			} catch (IOException e) {
+				throw malformed(e);
+			}
+		}
+
+		@Override
+		public QueryHits queryServer(long queryId, int senderId,
+				String filename, int ttl, int requestingId, int requestCode)
+				throws RemoteException {
+			PeerProtocol.Frame request = connection
+					.newRequest(PeerProtocol.QUERY_SERVER);
+			try {
+				request.writeLong(queryId);
+				request.writeInt(senderId);
+				request.writeUTF(filename);
+				request.writeInt(ttl);
+				request.writeInt(requestingId);
+				request.writeInt(requestCode);
+				return QueryHits.read(connection.call(request));
+			} catch (IOException e) {
+				throw malformed(e);
+			}
+		}
+
+		@Override
+		public void invalidateBatch(long queryId, int senderId, int masterId,
+				Map<String, Integer> versions, int ttl) throws RemoteException {
+			PeerProtocol.Frame request = connection
+					.newRequest(PeerProtocol.INVALIDATE_BATCH);
+			try {
+				request.writeLong(queryId);
+				request.writeInt(senderId);
+				request.writeInt(masterId);
+				PeerProtocol.writeVersions(request, versions);
+				request.writeInt(ttl);
+				connection.call(request);
+			} catch (IOException e) {
+				throw malformed(e);
+			}
+		}
+
+		@Override
+		public void queryHit(long queryId, String filename, QueryHits hits)
+				throws RemoteException {
+			PeerProtocol.Frame request = connection
+					.newRequest(PeerProtocol.QUERY_HIT);
+			try {
+				request.writeLong(queryId);
+				request.writeUTF(filename);
+				hits.write(request);
+				connection.call(request);
+			} catch (IOException e) {
+				throw malformed(e);
+			}
+		}
+
+		@Override
+		public void updateSummary(int senderId, SummaryDelta delta)
+				throws RemoteException {
+			PeerProtocol.Frame request = connection
+					.newRequest(PeerProtocol.UPDATE_SUMMARY);
+			try {
+				request.writeInt(senderId);
+				delta.write(request);
+				connection.call(request);
+			} catch (IOException e) {
+				throw malformed(e);
+			}
+		}
+
+		@Override
+		public ObtainResult obtainIfNewer(String filename, int haveVersion,
+				int codecs, int holderId, long[] checksums)
+				throws RemoteException {
+			PeerProtocol.Frame request = connection
+					.newRequest(PeerProtocol.OBTAIN_IF_NEWER);
+			try {
+				request.writeUTF(filename);
+				request.writeInt(haveVersion);
+				request.writeInt(codecs);
+				request.writeInt(holderId);
+				PeerProtocol.writeLongs(request, checksums);
+				return ObtainResult.read(connection.call(request));
+			} catch (IOException e) {
+				throw malformed(e);
+			}
+		}
+
+		@Override
+		public Map<String, Long> getStatistics() throws RemoteException {
+			PeerProtocol.Frame request = connection
+					.newRequest(PeerProtocol.GET_STATISTICS);
+			try {
+				return PeerProtocol.readStatistics(connection.call(request));
+			} catch (IOException e) {
+				throw malformed(e);
+			}
+		}
+
+		@Override
+		public int[] checkMetadata(String result, int holderId)
+				throws RemoteException {
+			PeerProtocol.Frame request = connection
+					.newRequest(PeerProtocol.CHECK_METADATA);
+			try {
+				request.writeUTF(result);
+				request.writeInt(holderId);
+				return PeerProtocol.readInts(connection.call(request));
+			} catch (IOException e) {
+				throw malformed(e);
+			}
+		}
+
+		@Override
+		public void revokeLeases(int masterId, Map<String, Integer> versions)
+				throws RemoteException {
+			PeerProtocol.Frame request = connection
+					.newRequest(PeerProtocol.REVOKE_LEASES);
+			try {
+				request.writeInt(masterId);
+				PeerProtocol.writeVersions(request, versions);
+				connection.call(request);
+			} catch (IOException e) {
+				throw malformed(e);
+			}
+		}
+
+		@Override
+		public void receiveNeighborsForInvalidation(
+				Map<Integer, Boolean> connectedNeighbors)
+				throws RemoteException {
+			PeerProtocol.Frame request = connection
+					.newRequest(PeerProtocol.RECEIVE_NEIGHBORS);
+			try {
+				PeerProtocol.writeNeighbors(request, connectedNeighbors);
+				connection.call(request);
+			} catch (IOException e) {
+				throw malformed(e);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "NioStub[" + connection.address + "]";
+		}
+
+	}
+
+}
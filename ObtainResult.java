@@ -0,0 +1,167 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Answer of PeerServerInterface.obtainIfNewer(). Either tells the caller its
+ * version is up to date, or carries the new content: the first chunk inline
+ * and, if the file does not fit in it, a transfer opened at the same time the
+ * metadata was read, so the content and the metadata always belong to the
+ * same version. If the transfer is compressed, the first chunk and the ones
+ * read from the transfer are frames (see Compression). A caller which sent
+ * the checksums of its copy may get a patch of that copy instead.
+ * 
+ * @author palvare3
+ * 
+ */
+public class ObtainResult implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private int[] metadata;
+
+	private boolean modified;
+
+	private long length;
+
+	private int codec;
+
+	private byte[] data;
+
+	private TransferInfo transfer;
+
+	private DeltaPatch patch;
+
+	private ObtainResult(int[] metadata, boolean modified, long length,
+			int codec, byte[] data, TransferInfo transfer, DeltaPatch patch) {
+		this.metadata = metadata;
+		this.modified = modified;
+		this.length = length;
+		this.codec = codec;
+		this.data = data;
+		this.transfer = transfer;
+		this.patch = patch;
+	}
+
+	/**
+	 * @param metadata
+	 *            Current metadata of the file in the source
+	 * @return A result telling the caller its version is up to date
+	 */
+	public static ObtainResult notModified(int[] metadata) {
+		return new ObtainResult(metadata, false, 0, Compression.NONE,
+				new byte[0], null, null);
+	}
+
+	/**
+	 * @param metadata
+	 *            Metadata of the file in the source
+	 * @param length
+	 *            Length of the file
+	 * @param codec
+	 *            Codec of the transfer, see Compression
+	 * @param data
+	 *            First chunk of the file
+	 * @param transfer
+	 *            Transfer to read the rest of the file, null if it fits in the
+	 *            first chunk
+	 * @return A result carrying the new content
+	 */
+	public static ObtainResult modified(int[] metadata, long length,
+			int codec, byte[] data, TransferInfo transfer) {
+		return new ObtainResult(metadata, true, length, codec, data,
+				transfer, null);
+	}
+
+	/**
+	 * @param patch
+	 *            Complete patch of the caller's copy, see DeltaPatch
+	 * @return A result carrying the changed blocks instead of the content
+	 */
+	public static ObtainResult patched(DeltaPatch patch) {
+		return new ObtainResult(patch.getMetadata(), true, patch.getLength(),
+				Compression.NONE, new byte[0], null, patch);
+	}
+
+	/**
+	 * @return Metadata of the file in the source, see Peer.getMetadata()
+	 */
+	public int[] getMetadata() {
+		return metadata;
+	}
+
+	/**
+	 * @return false if the version of the caller is up to date
+	 */
+	public boolean isModified() {
+		return modified;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return Codec of the transfer, Compression.NONE if it is not compressed
+	 */
+	public int getCodec() {
+		return codec;
+	}
+
+	/**
+	 * @return First chunk of the file, a frame if the transfer is compressed
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return Transfer to read the rest of the file, null if it fits in the
+	 *         first chunk. The caller has to close it.
+	 */
+	public TransferInfo getTransfer() {
+		return transfer;
+	}
+
+	/**
+	 * @return Patch of the caller's copy, null if the result carries the
+	 *         content
+	 */
+	public DeltaPatch getPatch() {
+		return patch;
+	}
+
+	/**
+	 * Writes the result in the binary form of PeerProtocol
+	 */
+	public void write(DataOutput out) throws IOException {
+		PeerProtocol.writeInts(out, metadata);
+		out.writeBoolean(modified);
+		out.writeLong(length);
+		out.writeInt(codec);
+		PeerProtocol.writeBytes(out, data);
+		out.writeBoolean(transfer != null);
+		if (transfer != null) {
+			transfer.write(out);
+		}
+		out.writeBoolean(patch != null);
+		if (patch != null) {
+			patch.write(out);
+		}
+	}
+
+	public static ObtainResult read(DataInput in) throws IOException {
+		int[] metadata = PeerProtocol.readInts(in);
+		boolean modified = in.readBoolean();
+		long length = in.readLong();
+		int codec = in.readInt();
+		byte[] data = PeerProtocol.readBytes(in);
+		TransferInfo transfer = in.readBoolean() ? TransferInfo.read(in)
+				: null;
+		DeltaPatch patch = in.readBoolean() ? DeltaPatch.read(in) : null;
+		return new ObtainResult(metadata, modified, length, codec, data,
+				transfer, patch);
+	}
+
+}
@@ -0,0 +1,327 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * A download in progress. The data is written to a partial file in the
+ * partial directory, next to a sidecar which records the ranges already
+ * written and the version being downloaded. The sidecar is only written after
+ * the data has been forced to disk, so after a failure or a restart the
+ * download can go on from the ranges it lists, from any peer serving the same
+ * version. Once the file is complete it is moved into the downloads
+ * directory.
+ * 
+ * @author palvare3
+ * 
+ */
+public class PartialDownload {
+
+	public static final String PARTIAL_DIRECTORY = "./partial/";
+
+	// Bytes written between two checkpoints of the sidecar
+	public static final long CHECKPOINT_INTERVAL = 16 * Peer.CHUNK_SIZE;
+
+	private String filename;
+
+	private File data;
+
+	private File sidecar;
+
+	private int version;
+
+	private int master;
+
+	private long length;
+
+	// Completed ranges, start -> end (exclusive), merged and not overlapping
+	private TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+
+	private long uncheckpointed = 0;
+
+	private RandomAccessFile raf;
+
+	private File target;
+
+	private PartialDownload(Peer peer, String filename, int[] metadata,
+			long length) {
+		this.filename = filename;
+		this.data = peer.getFile(PARTIAL_DIRECTORY + filename + ".part");
+		this.sidecar = peer.getFile(PARTIAL_DIRECTORY + filename
+				+ ".properties");
+		this.target = peer.getFile("./downloads/" + filename);
+		this.version = metadata[0];
+		this.master = metadata[1];
+		this.length = length;
+	}
+
+	/**
+	 * Opens the partial download of a file. The ranges of a previous attempt
+	 * are kept if it was downloading the same version of the file, otherwise
+	 * the download starts from scratch.
+	 * 
+	 * @param peer
+	 *            Peer in whose directory the file is downloaded
+	 * @param filename
+	 * @param metadata
+	 *            Metadata of the file in the source, see Peer.getMetadata()
+	 * @param length
+	 *            Length of the file in the source
+	 * @return The partial download
+	 * @throws IOException
+	 *             if the partial file cannot be created
+	 */
+	public static PartialDownload open(Peer peer, String filename,
+			int[] metadata, long length) throws IOException {
+		PartialDownload partial = new PartialDownload(peer, filename,
+				metadata, length);
+		partial.data.getParentFile().mkdirs();
+
+		if (!partial.load()) {
+			partial.data.delete();
+			partial.sidecar.delete();
+		} else {
+			System.out.println("Resuming " + filename + " from "
+					+ partial.getCompletedBytes() + " bytes");
+		}
+
+		partial.raf = new RandomAccessFile(partial.data, "rw");
+		partial.raf.setLength(length);
+		return partial;
+	}
+
+	/**
+	 * Reads the sidecar of a previous attempt
+	 * 
+	 * @return true if it belongs to the same version of the file
+	 */
+	private boolean load() {
+		if (!sidecar.exists() || !data.exists()) {
+			return false;
+		}
+
+		Properties properties = new Properties();
+		try {
+			FileInputStream in = new FileInputStream(sidecar);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+
+			if ((Integer.parseInt(properties.getProperty("version")) != version)
+					|| (Integer.parseInt(properties.getProperty("master")) != master)
+					|| (Long.parseLong(properties.getProperty("length")) != length)) {
+				return false;
+			}
+
+			String s = properties.getProperty("ranges", "");
+			if (s.length() > 0) {
+				for (String range : s.split(",")) {
+					String[] bounds = range.split("-");
+					markCompleted(Long.parseLong(bounds[0]),
+							Long.parseLong(bounds[1]));
+				}
+			}
+			return true;
+		} catch (Exception e) {
+			// A damaged sidecar is the same as no sidecar
+			ranges.clear();
+			return false;
+		}
+	}
+
+	/**
+	 * @return Channel of the partial file, to write the received data
+	 */
+	public FileChannel getChannel() {
+		return raf.getChannel();
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return Offset of the first byte which has not been written yet
+	 */
+	public synchronized long getResumeOffset() {
+		Long end = ranges.get(0L);
+		return (end == null) ? 0 : end;
+	}
+
+	public synchronized long getCompletedBytes() {
+		long completed = 0;
+		for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+			completed += range.getValue() - range.getKey();
+		}
+		return completed;
+	}
+
+	/**
+	 * @return true if all the bytes between start and end have been written
+	 */
+	public synchronized boolean isCompleted(long start, long end) {
+		Map.Entry<Long, Long> range = ranges.floorEntry(start);
+		return (range != null) && (range.getValue() >= end);
+	}
+
+	public synchronized boolean isComplete() {
+		return (length == 0) || isCompleted(0, length);
+	}
+
+	/**
+	 * Records that the bytes between start and end have been written. The
+	 * sidecar is checkpointed every CHECKPOINT_INTERVAL bytes.
+	 * 
+	 * @param start
+	 * @param end
+	 *            Exclusive
+	 * @throws IOException
+	 *             if the checkpoint fails
+	 */
+	public synchronized void markCompleted(long start, long end)
+			throws IOException {
+		if (start >= end) {
+			return;
+		}
+
+		long written = end - start;
+
+		// Merges the range with the ones it overlaps or touches
+		Map.Entry<Long, Long> previous = ranges.floorEntry(start);
+		if ((previous != null) && (previous.getValue() >= start)) {
+			start = previous.getKey();
+			end = Math.max(end, previous.getValue());
+		}
+		Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+		while ((next != null) && (next.getKey() <= end)) {
+			end = Math.max(end, next.getValue());
+			ranges.remove(next.getKey());
+			next = ranges.ceilingEntry(start);
+		}
+		ranges.put(start, end);
+
+		if (raf != null) {
+			uncheckpointed += written;
+			if (uncheckpointed >= CHECKPOINT_INTERVAL) {
+				checkpoint();
+			}
+		}
+	}
+
+	/**
+	 * Forces the partial file to disk and then writes the sidecar, so it
+	 * never lists data which could be lost
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void checkpoint() throws IOException {
+		raf.getChannel().force(false);
+
+		StringBuilder s = new StringBuilder();
+		for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+			if (s.length() > 0) {
+				s.append(',');
+			}
+			s.append(range.getKey()).append('-').append(range.getValue());
+		}
+
+		Properties properties = new Properties();
+		properties.setProperty("filename", filename);
+		properties.setProperty("version", Integer.toString(version));
+		properties.setProperty("master", Integer.toString(master));
+		properties.setProperty("length", Long.toString(length));
+		properties.setProperty("ranges", s.toString());
+
+		// Written aside and renamed, so a crash leaves the old sidecar
+		File tmp = new File(sidecar.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			properties.store(out, "Partial download of " + filename);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		move(tmp, sidecar);
+		uncheckpointed = 0;
+	}
+
+	/**
+	 * Moves the complete file into the downloads directory and removes the
+	 * sidecar
+	 * 
+	 * @throws IOException
+	 *             if the file is not complete or cannot be moved
+	 */
+	public synchronized void complete() throws IOException {
+		if (!isComplete()) {
+			throw new IOException("Download of " + filename + " not complete");
+		}
+		raf.getChannel().force(false);
+		raf.close();
+
+		// Readers of the previous copy see either it or the new one, never a
+		// missing file
+		move(data, target);
+		sidecar.delete();
+	}
+
+	/**
+	 * Moves a file over another one atomically, where the file system allows
+	 * it
+	 * 
+	 * @param source
+	 * @param target
+	 *            File replaced, if it exists
+	 * @throws IOException
+	 *             if the file cannot be moved
+	 */
+	public static void move(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Closes the partial download, keeping what has been written so far to
+	 * resume it later
+	 */
+	public synchronized void close() {
+		try {
+			if (raf.getChannel().isOpen()) {
+				checkpoint();
+				raf.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Could not checkpoint " + filename + ": "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Closes the partial download and deletes it
+	 */
+	public synchronized void discard() {
+		try {
+			raf.close();
+		} catch (IOException e) {
+		}
+		data.delete();
+		sidecar.delete();
+	}
+
+}
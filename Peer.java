@@ -4,14 +4,23 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
-import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -25,10 +34,17 @@ import java.util.logging.Logger;
  */
 public class Peer {
 
-	private static final int TIME_TO_LIVE = 6;
+	public static final int TIME_TO_LIVE = 6;
 
 	public static final int BASE_RMI_PORT = 1099;
 
+	// Maximum number of bytes requested in a single chunk of a transfer
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	// Time (ms) a peer waits for the answers of its neighbors for each unit of
+	// TTL left, so every hop returns before the deadline of the previous one
+	private static final long HOP_TIMEOUT = 1000;
+
 	/*--------- start change ----------*/
 
 	// Constants for validity
@@ -40,11 +56,14 @@ public class Peer {
 	public static final int SEARCH_REQUEST = 0;
 	public static final int INVALIDATION_REQUEST = 1;
 
-	// Constants for fields in downloads table
-	private static final int VERSION_FIELD = 0;
-	private static final int VALIDITY_FIELD = 1;
-	private static final int MASTER_FIELD = 2;
-	private static final int TTR_FIELD = 3;
+	// Version in an invalidation which invalidates any copy of the file
+	public static final int ANY_VERSION = -1;
+
+	// Version of a file the peer does not have yet
+	public static final int NO_VERSION = -1;
+
+	// Maximum number of files in an invalidation batch
+	private static final int MAX_BATCH_SIZE = 1000;
 
 	/*--------- end change ----------*/
 
@@ -54,33 +73,85 @@ public class Peer {
 	 */
 	private Map<Integer, Boolean> connectedNeighbors;
 
+	/**
+	 * Stubs of the peers contacted so far, so the RMI registry is not queried
+	 * on every call
+	 */
+	private StubCache stubs;
+
+	// Directory, clock, transport and threads of the peer
+	private PeerEnvironment environment;
+
+	private Clock clock;
+
 	/*--------- start change ----------*/
 
-	// Files tables:
-	// masterFiles has filename as key and version no. as value
-	// downloadedFiles has filename as key and its values are comprised in an
-	// Integer array.
-	// [0] for version
-	// [1] for validity
-	// [2] for master
-	// [3] for TTR
-	private Map<String, Integer> masterFiles;
-	private Map<String, Integer[]> downloadedFiles;
+	// Files table: version, validity, master and TTR deadline of the master
+	// and downloaded files
+	private FileMetadataStore files = new FileMetadataStore();
 
 	private int id;
 	private int timeToRefresh;
 
-	// Each modification to metadata sets this timestamp
-	private long timestamp = 0;
+	// TTR of each master file, from how often it is modified
+	private AdaptiveTTR adaptiveTTR;
+
+	// Peers with a copy of each master file in lease mode
+	private LeaseTable leases;
+
+	// Hops travelled by the searches and invalidations started by this peer
+	private int timeToLive = TIME_TO_LIVE;
+
+	// Bloom filters of the files reachable through each neighbor
+	private ContentSummaries summaries;
 
-	private int totalRequests;
+	// Serializes the modifications of master files with the patches sent to
+	// replicas
+	private final Object masterLock = new Object();
 
-	private int invalidRequests;
+	// Persists the metadata of the downloaded files between restarts
+	private MetadataJournal journal;
+
+	// Tracks the TTR deadline of each downloaded file in pull mode
+	private TTRScheduler ttrScheduler;
+
+	// Compressed chunks of the master files served, until their version
+	// changes
+	private CompressedChunkCache compressedChunks = new CompressedChunkCache();
+
+	// Revalidates expired files in the background, one refresh per file
+	private LazyRefresher refresher;
+
+	// Counters and latency histograms, readable through JMX and RMI
+	private PeerMetrics metrics = new PeerMetrics();
 
 	private Logger logger;
 
+	// Events of the server side, written in the background
+	private PeerLog log;
+
 	/*--------- end change ----------*/
 
+	/**
+	 * Coalesces the invalidations of modified master files in push mode
+	 */
+	private InvalidationBatcher invalidationBatcher;
+
+	/**
+	 * Sequence of the ids of the queries started by this peer
+	 */
+	private AtomicInteger querySequence;
+
+	/**
+	 * Searches started by this peer which are waiting for hits, by query id
+	 */
+	private Map<Long, ActiveSearch> activeSearches = new ConcurrentHashMap<Long, ActiveSearch>();
+
+	/**
+	 * Threads which send the queries to the neighbors in parallel
+	 */
+	private ExecutorService queryExecutor;
+
 	/**
 	 * Peer constructor. Takes the peer id as a parameter, registers files and
 	 * looks for neighbors.
@@ -90,18 +161,45 @@ public class Peer {
 	 * @param ttr
 	 */
 	public Peer(int id, int ttr) {
+		this(id, ttr, new PeerEnvironment());
+	}
+
+	/**
+	 * Creates a peer which runs in the given environment, see PeerEnvironment
+	 * 
+	 * @param id
+	 *            of the peer
+	 * @param ttr
+	 * @param environment
+	 */
+	public Peer(int id, int ttr, PeerEnvironment environment) {
 		this.id = id;
 		this.timeToRefresh = ttr;
+		this.environment = environment;
+		this.clock = environment.getClock();
+		this.log = environment.getLog();
+		this.adaptiveTTR = new AdaptiveTTR(ttr, clock);
+		this.leases = new LeaseTable(clock);
+
+		stubs = new StubCache(environment.getTransport());
+		summaries = new ContentSummaries(this,
+				environment.newTimer("summary-publisher"));
+		ttrScheduler = new TTRScheduler(this,
+				environment.newTimer("ttr-scheduler"));
+		queryExecutor = environment.newExecutor("query-forwarder");
+		refresher = new LazyRefresher(this, clock,
+				environment.newExecutor("lazy-refresher"));
+		invalidationBatcher = new InvalidationBatcher(this,
+				environment.newTimer("invalidation-batcher"));
+		querySequence = new AtomicInteger(environment.getRandom().nextInt());
+		if (environment.isStandalone()) {
+			metrics.register(id);
+		}
 
-		connectedNeighbors = new HashMap<Integer, Boolean>();
-
-		/*--------- start change ----------*/
-		masterFiles = new HashMap<String, Integer>();
-		downloadedFiles = new HashMap<String, Integer[]>();
-		/*--------- end change ----------*/
+		connectedNeighbors = new ConcurrentHashMap<Integer, Boolean>();
 
 		// For all files present in files directory, register with id
-		File dir = new File("./files/");
+		File dir = getFile("./files/");
 		File[] fileList = dir.listFiles();
 
 		for (File f : fileList) {
@@ -109,46 +207,138 @@ public class Peer {
 			// Does not register .DS_Store, a hidden file in Mac OS X file
 			// system
 			if (!f.getName().equals(".DS_Store")) {
-				masterFiles.put(f.getName(), 0);
+				files.putMaster(f.getName(), 0);
+				adaptiveTTR.register(f.getName());
 				System.out.println("Registered " + f.getName());
 			}
 			/*--------- end change ----------*/
 		}
 
+		// The metadata of the downloads before the last shutdown is found in
+		// the journal
+		Map<String, MetadataJournal.Entry> journaled = new HashMap<String, MetadataJournal.Entry>();
+		if (environment.isStandalone()) {
+			try {
+				journal = new MetadataJournal(getFile("peer" + id + ".journal")
+						.getPath());
+				journaled = journal.getEntries();
+			} catch (IOException e) {
+				System.out.println("Metadata journal not available");
+				e.printStackTrace();
+			}
+		}
+
 		// For all files present in downloads directory, register with id
-		dir = new File("./downloads/");
+		dir = getFile("./downloads/");
 		fileList = dir.listFiles();
 
 		/*--------- start change ----------*/
 
 		for (File f : fileList) {
 			if (!f.getName().equals(".DS_Store")) {
-				// To simplify, invalidate all downloaded files
-				// -1 for version number at the beginning
-				Integer master = 0; // 0 as default, lost contact with master
-				Integer[] fileProperties = { -1, FILE_INVALID, master, 0 };
-				downloadedFiles.put(f.getName(), fileProperties);
+				MetadataJournal.Entry entry = journaled.remove(f.getName());
+				if ((entry != null) && (entry.validity != FILE_INVALID)) {
+					restoreDownload(f.getName(), entry);
+				} else {
+					// Downloads without valid metadata are invalidated
+					// -1 for version number at the beginning
+					int master = 0; // 0 as default, lost contact with master
+					files.putDownloaded(f.getName(), -1, FILE_INVALID,
+							master, 0);
+				}
 				System.out.println("Registered downloaded " + f.getName());
 			}
 		}
 
 		/*--------- end change ----------*/
 
+		if (journal != null) {
+			// Forgets the files which are not in the downloads directory
+			// anymore and leaves a single record per file
+			for (String filename : journaled.keySet()) {
+				journal.append(filename, 0, 0, 0, MetadataJournal.REMOVED);
+			}
+			try {
+				journal.compact();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
 		findNeighbors();
-		
-		try {
-		    // Create an appending file handler
-		    boolean append = true;
-		    FileHandler handler = new FileHandler("peer" + id + ".log", append);
-
-		    // Add to the desired logger
-		    logger = Logger.getLogger("Peers");
-		    logger.addHandler(handler);
-		    
-		} catch (IOException e) {
+		if (environment.isPublishingSummaries()) {
+			summaries.start();
+		}
+
+		logger = Logger.getLogger("Peers");
+		if (environment.isStandalone()) {
+			try {
+			    // Create an appending file handler
+			    boolean append = true;
+			    FileHandler handler = new FileHandler(getFile(
+			    		"peer" + id + ".log").getPath(), append);
+
+			    // Add to the desired logger. The console gets the events
+			    // from the PeerLog, not from the parent handlers.
+			    logger.addHandler(handler);
+			    logger.setUseParentHandlers(false);
+
+			} catch (IOException e) {
+			}
 		}
 	}
 
+	/**
+	 * Registers a download with the metadata it had before the peer was
+	 * restarted. In pull mode it is valid until the rest of its TTR passes. In
+	 * push mode invalidations may have been missed while the peer was down, so
+	 * it is marked as expired and revalidated with its master on the first
+	 * query.
+	 * 
+	 * @param filename
+	 * @param entry
+	 *            Last metadata of the file in the journal
+	 */
+	private void restoreDownload(String filename, MetadataJournal.Entry entry) {
+		long remaining = entry.ttrDeadline - clock.currentTimeMillis();
+		int validity = FILE_TTR_EXPIRED;
+		if ((PeerMain.MODE == PeerMain.MODE_PULL) && (remaining > 0)) {
+			validity = FILE_VALID;
+		} else {
+			remaining = 0;
+		}
+
+		files.putDownloaded(filename, entry.version, validity, entry.master,
+				clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(remaining));
+		if (validity == FILE_VALID) {
+			scheduleTTR(filename, (int) remaining);
+		}
+		summaries.fileAdded(filename);
+	}
+
+	/**
+	 * Writes the current metadata of a downloaded file to the journal
+	 * 
+	 * @param filename
+	 * @param validity
+	 *            Validity of the file, or MetadataJournal.REMOVED
+	 */
+	private void journal(String filename, int validity) {
+		if (journal == null) {
+			return;
+		}
+		int[] snapshot = files.getSnapshot(filename);
+		if (snapshot == null) {
+			snapshot = new int[3];
+		}
+		long remaining = files.getTTRDeadline(filename) - clock.nanoTime();
+		long ttrDeadline = clock.currentTimeMillis()
+				+ TimeUnit.NANOSECONDS.toMillis(remaining);
+
+		journal.append(filename, snapshot[0], snapshot[1], ttrDeadline,
+				validity);
+	}
+
 	/**
 	 * Looks for neighbors within the network
 	 */
@@ -157,7 +347,7 @@ public class Peer {
 		Properties properties = new Properties();
 
 		try {
-			properties.load(new FileInputStream("peer.properties"));
+			properties.load(new FileInputStream(getFile("peer.properties")));
 			String[] s = properties.getProperty("neighbors").split(",");
 
 			for (String idN : s) {
@@ -165,13 +355,7 @@ public class Peer {
 				int port = BASE_RMI_PORT + neighborId;
 				System.out.println("Searching for neighbor in port: " + port);
 				try {
-					PeerServerInterface neighborServer = null;
-					String namePeerServer = "//localhost:" + port
-							+ "/PeerServer" + neighborId;
-					System.out.println(namePeerServer);
-
-					neighborServer = (PeerServerInterface) Naming
-							.lookup(namePeerServer);
+					PeerServerInterface neighborServer = getPeerInterface(neighborId);
 					connectedNeighbors.put(neighborId, true);
 
 					/*--------- start change ----------*/
@@ -210,41 +394,236 @@ public class Peer {
 	 * 
 	 * @param filename
 	 *            requested
-	 * @return The set of neighbor ids that have the file
+	 * @return The hits of the peers that have the file, ranked from the
+	 *         freshest, see QueryHits.rank()
 	 */
+	public QueryHits search(String filename) {
+		return search(filename, null);
+	}
+
 	/**
-	 * Method called to start a search request for a file in the network
+	 * Method called to start a search request for a file in the network. The
+	 * peers which find the file send the hit straight to this peer, so the
+	 * listener receives each source as soon as it is found.
 	 * 
 	 * @param filename
 	 *            requested
-	 * @return The set of neighbor ids that have the file
+	 * @param listener
+	 *            Receives the hits while the search is running, can be null
+	 * @return The hits of the peers that have the file, ranked from the
+	 *         freshest, see QueryHits.rank()
 	 */
-	public Set<Integer> search(String filename) {
-
-		Set<Integer> sources = new HashSet<Integer>();
+	public QueryHits search(String filename, QueryHitListener listener) {
 
 		// Sends the request to all neighbors
 		System.out.println("Searching on the network for... " + filename);
-		Object[] neighbors = connectedNeighbors.keySet().toArray();
 
-		for (int i = 0; i < connectedNeighbors.size(); i++) {
-			if (connectedNeighbors.get((Integer) neighbors[i])) {
+		long queryId = newQueryId();
+		long start = clock.nanoTime();
+		ActiveSearch search = null;
+		if (listener != null) {
+			search = new ActiveSearch(filename, listener, metrics, clock);
+			activeSearches.put(queryId, search);
+		}
+
+		try {
+			QueryHits hits = floodQuery(queryId, connectedNeighbors.keySet(),
+					filename, timeToLive, id, SEARCH_REQUEST);
+
+			// Hits which could not be sent straight to this peer arrive with
+			// the result of the flood
+			if (search != null) {
+				search.deliver(hits);
+			}
+			hits.rank();
+			return hits;
+		} finally {
+			metrics.searchCompleted(clock.nanoTime() - start);
+			if (search != null) {
+				activeSearches.remove(queryId);
+			}
+		}
+	}
+
+	/**
+	 * Starts a search in the background
+	 * 
+	 * @param filename
+	 *            requested
+	 * @param listener
+	 *            Receives the hits while the search is running
+	 * @return The future result of search(filename, listener)
+	 */
+	public Future<QueryHits> searchAsync(final String filename,
+			final QueryHitListener listener) {
+		return queryExecutor.submit(new Callable<QueryHits>() {
+			@Override
+			public QueryHits call() throws Exception {
+				return search(filename, listener);
+			}
+		});
+	}
+
+	/**
+	 * Delivers a hit sent by another peer to the search which requested it.
+	 * Hits of searches which have already finished are ignored.
+	 * 
+	 * @param queryId
+	 * @param hits
+	 *            Hit of the peer which has the file
+	 */
+	public void receiveQueryHit(long queryId, QueryHits hits) {
+		ActiveSearch search = activeSearches.get(queryId);
+		if (search != null) {
+			search.deliver(hits);
+		}
+	}
+
+	/**
+	 * @param filename
+	 * @return The hit of this peer for a file, with the metadata and the
+	 *         length of its copy, empty if the file is not here
+	 */
+	public QueryHits newQueryHit(String filename) {
+		QueryHits hit = new QueryHits();
+		// Master files cannot change between the metadata and the length
+		synchronized (masterLock) {
+			int[] metadata = getMetadata(filename);
+			if (metadata != null) {
+				File file = getFile((isMaster(filename) ? "./files/"
+						: "./downloads/") + filename);
+				hit.add(id, metadata, file.length());
+			}
+		}
+		return hit;
+	}
+
+	/**
+	 * Sends a hit straight to the peer which started a search, without
+	 * waiting for the answer
+	 * 
+	 * @param queryId
+	 * @param requestingId
+	 *            Peer that made the original request
+	 * @param filename
+	 * @param hit
+	 *            Hit of this peer, see newQueryHit()
+	 */
+	public void sendQueryHit(final long queryId, final int requestingId,
+			final String filename, final QueryHits hit) {
+		queryExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
 				try {
-					PeerServerInterface neighborServer = getNeighborInterface((Integer) neighbors[i]);
-					System.out.println("Querying server "
-							+ (Integer) neighbors[i]);
-					Set<Integer> destinations = neighborServer.queryServer(id,
-							filename, TIME_TO_LIVE, id, SEARCH_REQUEST);
-
-					// Merges the current sources with the result of the last
-					// query
-					sources.addAll(destinations);
+					getPeerInterface(requestingId).queryHit(queryId, filename,
+							hit);
 				} catch (Exception e) {
-					disconnectNeighbor((Integer) neighbors[i]);
+					// The hit still travels back with the result of the query
+					stubs.evict(requestingId);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return A new query id, unique in the network: the peer id in the high
+	 *         32 bits and a sequence number in the low ones. The sequence
+	 *         starts at a random value so ids are not repeated after a restart.
+	 */
+	public long newQueryId() {
+		return ((long) id << 32) | (querySequence.incrementAndGet() & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Sends a query to a group of neighbors in parallel. The results are
+	 * merged as they arrive, and the ones collected when the deadline for this
+	 * hop (ttl * HOP_TIMEOUT) expires are returned, so the latency of a query
+	 * is the one of the slowest neighbor instead of the sum of all of them.
+	 * Searches skip the neighbors whose content summary shows they cannot
+	 * reach the file.
+	 * 
+	 * @param queryId
+	 *            Unique id of the query, see newQueryId()
+	 * @param neighbors
+	 *            Ids of the neighbors to query. Disconnected ones are skipped
+	 * @param filename
+	 * @param ttl
+	 *            Time to Live of the forwarded query
+	 * @param requestingId
+	 *            Peer that made the original request
+	 * @param requestCode
+	 *            SEARCH_REQUEST or INVALIDATION_REQUEST
+	 * @return The hits of the peers that have the file
+	 */
+	public QueryHits floodQuery(final long queryId,
+			Collection<Integer> neighbors, final String filename,
+			final int ttl, final int requestingId, final int requestCode) {
+		QueryHits sources = new QueryHits();
+
+		CompletionService<QueryHits> completion = new ExecutorCompletionService<QueryHits>(
+				queryExecutor, environment.<QueryHits> newCompletionQueue());
+		Map<Future<QueryHits>, Integer> pending = new HashMap<Future<QueryHits>, Integer>();
+
+		for (final Integer neighborId : neighbors.toArray(new Integer[0])) {
+			if (!isConnected(neighborId)) {
+				continue;
+			}
+			// Searches are not sent to neighbors which surely cannot reach
+			// the file
+			if ((requestCode == SEARCH_REQUEST)
+					&& !summaries.mightReach(neighborId, filename, ttl)) {
+				continue;
+			}
+			Future<QueryHits> future = completion
+					.submit(new Callable<QueryHits>() {
+						@Override
+						public QueryHits call() throws Exception {
+							PeerServerInterface neighborServer = getNeighborInterface(neighborId);
+							return neighborServer.queryServer(queryId, id,
+									filename, ttl, requestingId, requestCode);
+						}
+					});
+			pending.put(future, neighborId);
+		}
+		metrics.queryForwarded(pending.size());
+
+		long deadline = clock.currentTimeMillis() + ttl * HOP_TIMEOUT;
+
+		while (!pending.isEmpty()) {
+			long wait = deadline - clock.currentTimeMillis();
+			Future<QueryHits> future = null;
+			try {
+				if (wait > 0) {
+					future = completion.poll(wait, TimeUnit.MILLISECONDS);
 				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (future == null) {
+				break;
+			}
+
+			Integer neighborId = pending.remove(future);
+			try {
+				// Merges the current sources with the result of the
+				// neighbor
+				sources.addAll(future.get());
+			} catch (Exception e) {
+				log.log(PeerLog.NEIGHBOR, Level.INFO,
+						"The server with id={} is not currently available.",
+						neighborId);
+				disconnectNeighbor(neighborId);
 			}
 		}
 
+		// The neighbors which have not answered in time are not waited for
+		for (Future<QueryHits> future : pending.keySet()) {
+			log.log(PeerLog.QUERY, Level.INFO,
+					"The server with id={} did not answer in time.",
+					pending.get(future));
+			future.cancel(true);
+		}
+
 		return sources;
 	}
 
@@ -257,7 +636,8 @@ public class Peer {
 
 	/*--------- start change ----------*/
 	/**
-	 * @return This peer's Time To Refresh as found in config file
+	 * @return This peer's Time To Refresh as found in config file, see
+	 *         getMetadata() for the TTR of each master file
 	 */
 	public int getTTR() {
 		return this.timeToRefresh;
@@ -271,25 +651,7 @@ public class Peer {
 	 *         FILE_INVALID (2) in other cases
 	 */
 	public int hasFile(String filename) {
-		Object[] filenames = masterFiles.keySet().toArray();
-		// Check for master files
-		for (Object f : filenames) {
-			if (filename.equals((String) f))
-				return FILE_VALID;
-		}
-
-		// Check for downloaded files
-		filenames = downloadedFiles.keySet().toArray();
-		for (Object f : filenames) {
-			if (filename.equals((String) f)
-					&& (downloadedFiles.get(f)[VALIDITY_FIELD] == FILE_VALID)) {
-				return FILE_VALID;
-			} else if (filename.equals((String) f)
-					&& (downloadedFiles.get(f)[VALIDITY_FIELD] == FILE_TTR_EXPIRED)) {
-				return FILE_TTR_EXPIRED;
-			}
-		}
-		return FILE_INVALID;
+		return files.getValidity(filename);
 	}
 
 	/**
@@ -298,32 +660,73 @@ public class Peer {
 	 * @param filename
 	 */
 	public void addFile(String filename, int[] metadata) {
-		Integer[] fileProperties = new Integer[4];
-		fileProperties[VERSION_FIELD] = metadata[0];
-		fileProperties[VALIDITY_FIELD] = FILE_VALID;
-		fileProperties[MASTER_FIELD] = metadata[1];
-		fileProperties[TTR_FIELD] = metadata[2];
-
-		System.out.println("Adding metadata of " + filename + ": "
-				+ metadata.toString());
+		log.log(PeerLog.REFRESH, Level.INFO, "Adding metadata of {}, version {}",
+				filename, metadata[0]);
 
 		// Insert metadata
-		downloadedFiles.put(filename, fileProperties);
+		updateMetadata(filename, metadata);
+	}
 
-		// Updates the timestamp for the first modification of metadata at init
-		if (timestamp == 0) {
-			timestamp = System.currentTimeMillis();
-			System.out.println("Timestamp set to " + timestamp);
+	/**
+	 * Starts counting the TTR of a downloaded file in pull mode, or its lease
+	 * in lease mode
+	 * 
+	 * @param filename
+	 * @param ttr
+	 *            Time (ms) until the file has to be refreshed
+	 */
+	private void scheduleTTR(String filename, int ttr) {
+		if ((PeerMain.MODE == PeerMain.MODE_PULL)
+				|| (PeerMain.MODE == PeerMain.MODE_LEASE)) {
+			ttrScheduler.schedule(filename, ttr);
 		}
 	}
 
 	/**
-	 * Removes a file from the list of master files
+	 * Marks a downloaded file as expired once its TTR has passed, unless it
+	 * has already been invalidated
+	 * 
+	 * @param filename
+	 */
+	public void expireTTR(String filename) {
+		files.compareAndSetValidity(filename, FILE_VALID, FILE_TTR_EXPIRED);
+	}
+
+	/**
+	 * Removes a file from the files table
 	 * 
 	 * @param filename
 	 */
 	public void removeFile(String filename) {
-		masterFiles.remove(filename);
+		if (files.isDownloaded(filename)) {
+			journal(filename, MetadataJournal.REMOVED);
+		}
+		files.remove(filename);
+		adaptiveTTR.remove(filename);
+		leases.remove(filename);
+		ttrScheduler.cancel(filename);
+		summaries.fileRemoved();
+	}
+
+	/**
+	 * @return The names of the files this peer answers searches for: master
+	 *         files and downloads which have not been invalidated
+	 */
+	public List<String> getSharedFiles() {
+		List<String> shared = files.getMasterFiles();
+		for (String filename : files.getDownloadedFiles()) {
+			if (files.getValidity(filename) != FILE_INVALID) {
+				shared.add(filename);
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * @return The content summaries exchanged with the neighbors
+	 */
+	public ContentSummaries getContentSummaries() {
+		return summaries;
 	}
 
 	/*--------- end change ----------*/
@@ -344,6 +747,17 @@ public class Peer {
 	 */
 	public void disconnectNeighbor(int neighborId) {
 		connectedNeighbors.put(neighborId, false);
+		stubs.evict(neighborId);
+		summaries.reset(neighborId);
+	}
+
+	/**
+	 * @param neighborId
+	 * @return true if the neighbor is known and connected
+	 */
+	public boolean isConnected(int neighborId) {
+		Boolean connected = connectedNeighbors.get(neighborId);
+		return (connected != null) && connected;
 	}
 
 	/**
@@ -362,11 +776,7 @@ public class Peer {
 	 * @return Version of file
 	 */
 	public int getVersion(String result) {
-		if (masterFiles.get(result) != null) {
-			return masterFiles.get(result);
-		}
-
-		return downloadedFiles.get(result)[0];
+		return files.getVersion(result);
 	}
 
 	/**
@@ -376,10 +786,10 @@ public class Peer {
 	 *            to modify
 	 */
 	public void incrementVersion(String filename) {
-		int version = masterFiles.get(filename);
-		version++;
-
-		masterFiles.put(filename, version);
+		if (files.incrementVersion(filename) >= 0) {
+			adaptiveTTR.modified(filename);
+		}
+		compressedChunks.invalidate(filename);
 	}
 
 	/**
@@ -389,8 +799,12 @@ public class Peer {
 	 *            to invalidate
 	 */
 	public void invalidate(String filename) {
-		System.out.println("Invalidating downloaded file: " + filename);
-		downloadedFiles.get(filename)[VALIDITY_FIELD] = FILE_INVALID;
+		log.log(PeerLog.INVALIDATION, Level.INFO,
+				"Invalidating downloaded file: {}", filename);
+		files.compareAndSetValidity(filename, -1, FILE_INVALID);
+		ttrScheduler.cancel(filename);
+		summaries.fileRemoved();
+		journal(filename, FILE_INVALID);
 	}
 
 	/**
@@ -401,15 +815,18 @@ public class Peer {
 	 *            Id of the neighbor
 	 */
 	public void unregisterMasterFiles(int neighborId) {
-		Object[] files = masterFiles.keySet().toArray();
+		Map<String, Integer> versions = new HashMap<String, Integer>();
+		for (String filename : files.getMasterFiles()) {
+			versions.put(filename, ANY_VERSION);
+		}
 
 		try {
 			if (connectedNeighbors.get(neighborId)) {
 				PeerServerInterface neighborServer = getNeighborInterface(neighborId);
 
-				for (Object filename : files) {
-					neighborServer.queryServer(id, (String) filename,
-							TIME_TO_LIVE, id, INVALIDATION_REQUEST);
+				for (Map<String, Integer> batch : splitBatch(versions)) {
+					neighborServer.invalidateBatch(newQueryId(), id, id,
+							batch, timeToLive);
 				}
 				// Sends the neighbors of this peer to the neighbor, so it can
 				// handle invalidations
@@ -423,6 +840,191 @@ public class Peer {
 		}
 	}
 
+	/**
+	 * Broadcasts a batch of invalidations of master files to the network
+	 * 
+	 * @param versions
+	 *            New version of each modified file
+	 */
+	public void broadcastInvalidations(Map<String, Integer> versions) {
+		for (Map<String, Integer> batch : splitBatch(versions)) {
+			floodInvalidations(newQueryId(), connectedNeighbors.keySet(), id,
+					batch, timeToLive);
+		}
+	}
+
+	/**
+	 * Sends a batch of invalidations of master files to the peers with a lease
+	 * on an older version, each one only the files it holds. The leases are
+	 * dropped, and the holders take new ones when they revalidate.
+	 * 
+	 * @param versions
+	 *            New version of each modified file
+	 */
+	public void revokeLeases(Map<String, Integer> versions) {
+		Map<Integer, Map<String, Integer>> byHolder = new HashMap<Integer, Map<String, Integer>>();
+		for (String filename : versions.keySet()) {
+			int version = versions.get(filename);
+			for (Integer holderId : leases.revoke(filename, version)) {
+				Map<String, Integer> held = byHolder.get(holderId);
+				if (held == null) {
+					held = new HashMap<String, Integer>();
+					byHolder.put(holderId, held);
+				}
+				held.put(filename, version);
+			}
+		}
+
+		for (final Integer holderId : byHolder.keySet()) {
+			for (final Map<String, Integer> batch : splitBatch(byHolder
+					.get(holderId))) {
+				metrics.invalidationsSent(batch.size());
+				queryExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							getPeerInterface(holderId).revokeLeases(id, batch);
+						} catch (Exception e) {
+							// The lease expires by itself
+							log.log(PeerLog.INVALIDATION, Level.INFO,
+									"Lease holder {} not available", holderId);
+							stubs.evict(holderId);
+						}
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Gives a lease on a master file in lease mode, for as long as its TTR
+	 * 
+	 * @param filename
+	 * @param holderId
+	 *            Peer which gets the copy
+	 * @param metadata
+	 *            Metadata of the file sent to the holder
+	 */
+	public void grantLease(String filename, int holderId, int[] metadata) {
+		if ((PeerMain.MODE == PeerMain.MODE_LEASE) && (holderId != id)
+				&& isMaster(filename)) {
+			leases.grant(filename, holderId, metadata[0], metadata[2]);
+		}
+	}
+
+	/**
+	 * Takes a lease from the master on a copy obtained from another replica in
+	 * lease mode. Only the master can give a lease, so without one the master
+	 * would not invalidate the copy.
+	 * 
+	 * @param filename
+	 * @param metadata
+	 *            Metadata of the copy in the replica
+	 * @return The metadata to register: the one of the master, or with no TTR
+	 *         left if the copy is already outdated or the master cannot be
+	 *         reached, so it is revalidated on its next read
+	 */
+	public int[] acquireLease(String filename, int[] metadata) {
+		if (PeerMain.MODE != PeerMain.MODE_LEASE) {
+			return metadata;
+		}
+		int[] leased = metadata.clone();
+		leased[2] = 0;
+		try {
+			int[] m = getPeerInterface(metadata[1]).checkMetadata(filename, id);
+			if ((m != null) && (m[0] == metadata[0])) {
+				leased = m;
+			}
+		} catch (Exception e) {
+			log.log(PeerLog.REFRESH, Level.INFO,
+					"No lease on {}, master unreachable.", filename);
+			stubs.evict(metadata[1]);
+		}
+		return leased;
+	}
+
+	/**
+	 * Sends a batch of invalidations to a group of neighbors in parallel,
+	 * without waiting for them to propagate it
+	 * 
+	 * @param queryId
+	 *            Unique id of the batch, see newQueryId()
+	 * @param neighbors
+	 *            Ids of the neighbors. Disconnected ones are skipped
+	 * @param masterId
+	 *            Peer which owns the master copies
+	 * @param versions
+	 *            New version of each file
+	 * @param ttl
+	 *            Time to Live of the forwarded batch
+	 */
+	public void floodInvalidations(final long queryId,
+			Collection<Integer> neighbors, final int masterId,
+			final Map<String, Integer> versions, final int ttl) {
+		for (final Integer neighborId : neighbors.toArray(new Integer[0])) {
+			if (!isConnected(neighborId)) {
+				continue;
+			}
+			metrics.invalidationsSent(versions.size());
+			queryExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						getNeighborInterface(neighborId).invalidateBatch(
+								queryId, id, masterId, versions, ttl);
+					} catch (Exception e) {
+						log.log(PeerLog.NEIGHBOR, Level.INFO,
+								"The server with id={} is not currently available.",
+								neighborId);
+						disconnectNeighbor(neighborId);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Invalidates the downloaded copies of a batch of files which are older
+	 * than the versions announced by their master
+	 * 
+	 * @param versions
+	 *            New version of each file, or ANY_VERSION
+	 */
+	public void invalidateVersions(Map<String, Integer> versions) {
+		int invalidated = 0;
+		for (String filename : versions.keySet()) {
+			int version = versions.get(filename);
+			if (isDownloaded(filename)
+					&& (hasFile(filename) != FILE_INVALID)
+					&& ((version == ANY_VERSION) || (getVersion(filename) != version))) {
+				invalidate(filename);
+				invalidated++;
+			}
+		}
+		metrics.invalidationsReceived(invalidated);
+	}
+
+	/**
+	 * @param versions
+	 * @return The versions split in batches of at most MAX_BATCH_SIZE files
+	 */
+	private List<Map<String, Integer>> splitBatch(Map<String, Integer> versions) {
+		List<Map<String, Integer>> batches = new ArrayList<Map<String, Integer>>();
+		Map<String, Integer> batch = new HashMap<String, Integer>();
+
+		for (String filename : versions.keySet()) {
+			if (batch.size() == MAX_BATCH_SIZE) {
+				batches.add(batch);
+				batch = new HashMap<String, Integer>();
+			}
+			batch.put(filename, versions.get(filename));
+		}
+		if (!batch.isEmpty()) {
+			batches.add(batch);
+		}
+		return batches;
+	}
+
 	/**
 	 * @param neighborId
 	 *            Id of the neighbor
@@ -437,16 +1039,42 @@ public class Peer {
 
 		PeerServerInterface neighborServer = null;
 		if (connectedNeighbors.get(neighborId)) {
-			int port = BASE_RMI_PORT + neighborId;
-			String namePeerServer = "//localhost:" + port + "/PeerServer"
-					+ neighborId;
-
-			neighborServer = (PeerServerInterface) Naming
-					.lookup(namePeerServer);
+			neighborServer = stubs.get(neighborId);
 		}
 		return neighborServer;
 	}
 
+	/**
+	 * @param peerId
+	 *            Id of any peer of the network
+	 * @return The PeerServerInterface stub of the peer, from the stub cache
+	 * 
+	 * @throws MalformedURLException
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 */
+	public PeerServerInterface getPeerInterface(int peerId)
+			throws MalformedURLException, RemoteException, NotBoundException {
+		return stubs.get(peerId);
+	}
+
+	/**
+	 * Removes the cached stub of a peer after a failed call, so it is looked
+	 * up again the next time
+	 * 
+	 * @param peerId
+	 */
+	public void evictPeerInterface(int peerId) {
+		stubs.evict(peerId);
+	}
+
+	/**
+	 * @return The cache of stubs of other peers
+	 */
+	public StubCache getStubCache() {
+		return stubs;
+	}
+
 	/**
 	 * Modifies a master file and handles version control depending on the peer
 	 * mode.
@@ -457,14 +1085,18 @@ public class Peer {
 	public void modifyMasterFile(String filename) {
 		if (isMaster(filename)) {
 			try {
-				// Modification of file
-				RandomAccessFile raf = new RandomAccessFile("./files/"
-						+ filename, "rw");
-				raf.seek(raf.length());
-				raf.write(FileModifier.MODIFY_STRING.getBytes());
-				raf.close();
-
-				incrementVersion(filename);
+				// The content and the version change together, so patches
+				// never mix them
+				synchronized (masterLock) {
+					// Modification of file
+					RandomAccessFile raf = new RandomAccessFile(
+							getFile("./files/" + filename), "rw");
+					raf.seek(raf.length());
+					raf.write(FileModifier.MODIFY_STRING.getBytes());
+					raf.close();
+
+					incrementVersion(filename);
+				}
 				System.out.println("Version of " + filename + " modified to: "
 						+ getVersion(filename));
 			} catch (FileNotFoundException e) {
@@ -473,26 +1105,30 @@ public class Peer {
 				e.printStackTrace();
 			}
 
-			// If the mode is "push", broadcast the modification to the network
-			if (PeerMain.MODE == PeerMain.MODE_PUSH) {
-				connectedNeighbors.keySet().toArray();
-				for (Object neighborId : connectedNeighbors.keySet().toArray()) {
-					if (connectedNeighbors.get((Integer) neighborId)) {
-						try {
-							PeerServerInterface neighborServer = getNeighborInterface((Integer) neighborId);
-							neighborServer.queryServer(id, filename,
-									TIME_TO_LIVE, id, INVALIDATION_REQUEST);
-						} catch (Exception e) {
-							disconnectNeighbor((Integer) neighborId);
-						}
-					}
-				}
+			// If the mode is "push", broadcast the modification to the
+			// network, in "lease" mode send it to the lease holders.
+			// Modifications are coalesced in batches
+			if ((PeerMain.MODE == PeerMain.MODE_PUSH)
+					|| (PeerMain.MODE == PeerMain.MODE_LEASE)) {
+				invalidationBatcher.add(filename, getVersion(filename));
 			}
 		} else {
 			System.out.println("Can't modify the file");
 		}
 	}
 
+	public CompressedChunkCache getCompressedChunks() {
+		return compressedChunks;
+	}
+
+	/**
+	 * @return Lock held while a master file is modified. Holding it, the
+	 *         content of the master files matches their version.
+	 */
+	public Object getMasterLock() {
+		return masterLock;
+	}
+
 	/**
 	 * Checks if the file belongs to this peer
 	 * 
@@ -500,11 +1136,7 @@ public class Peer {
 	 * @return true if the filename is in this peer and is master copy
 	 */
 	public boolean isMaster(String filename) {
-		if (masterFiles.get(filename) != null) {
-			return true;
-		}
-
-		return false;
+		return files.isMaster(filename);
 	}
 
 	/**
@@ -514,11 +1146,7 @@ public class Peer {
 	 * @return true if the filename is in this peer and is a downloaded copy
 	 */
 	public boolean isDownloaded(String filename) {
-		if (downloadedFiles.get(filename) != null) {
-			return true;
-		}
-
-		return false;
+		return files.isDownloaded(filename);
 	}
 
 	/**
@@ -527,11 +1155,12 @@ public class Peer {
 	 * @param id
 	 */
 	public void invalidateFilesFromID(Integer id) {
-		Object[] downFilesArray = downloadedFiles.keySet().toArray();
-
-		for (Object filename : downFilesArray) {
-			if (downloadedFiles.get((String) filename)[MASTER_FIELD].equals(id)) {
-				downloadedFiles.get((String) filename)[VALIDITY_FIELD] = FILE_INVALID;
+		for (String filename : files.getDownloadedFiles()) {
+			if (files.getMaster(filename) == id) {
+				files.compareAndSetValidity(filename, -1, FILE_INVALID);
+				ttrScheduler.cancel(filename);
+				summaries.fileRemoved();
+				journal(filename, FILE_INVALID);
 			}
 		}
 
@@ -548,90 +1177,87 @@ public class Peer {
 	 */
 	public int[] getMetadata(String result) {
 
-		int[] metadata = new int[3];
-		if (masterFiles.get(result) != null) {
-			metadata[0] = masterFiles.get(result);
-			metadata[1] = id;
-			// If file is master copy, return TTR of the peer
-			metadata[2] = timeToRefresh;
-			return metadata;
+		// Version and master are read at once, so they belong to the same
+		// update of the file
+		int[] snapshot = files.getSnapshot(result);
+		if (snapshot == null) {
+			return null;
 		}
 
-		if (downloadedFiles.get(result) != null) {
-			metadata[0] = downloadedFiles.get(result)[VERSION_FIELD];
-			metadata[1] = downloadedFiles.get(result)[MASTER_FIELD];
-			// If file is downloaded, return TTR corrected by actual waiting
-			// time before new refresh
-			long currentTime = System.currentTimeMillis();
-			long timeDiff = currentTime - timestamp;
-			System.out.println("Time difference: " + timeDiff);
-			metadata[2] = downloadedFiles.get(result)[TTR_FIELD]
-					- (int) timeDiff;
-			return metadata;
+		int[] metadata = new int[3];
+		metadata[0] = snapshot[0];
+		if (files.isMaster(result)) {
+			metadata[1] = id;
+			// If file is master copy, return its TTR, which depends on how
+			// often it is modified
+			metadata[2] = adaptiveTTR.getTTR(result);
+		} else {
+			metadata[1] = snapshot[1];
+			// If file is downloaded, return the time left before its next
+			// refresh
+			long remaining = files.getTTRDeadline(result) - clock.nanoTime();
+			metadata[2] = (int) Math.max(
+					TimeUnit.NANOSECONDS.toMillis(remaining), 0);
 		}
-		return null;
+		return metadata;
 	}
 
 	/**
-	 * @return The minimum TTR present in the metadata of downloaded files, so a
-	 *         new timer to check TTRs can be set with the minimum TTR.
+	 * Starts the lazy update of an expired file in the background, unless one
+	 * is already in flight
+	 * 
+	 * @param filename
+	 * @param onRefreshed
+	 *            Run once the file is valid again, may be null
 	 */
-	public int getMinimumTTR() {
-		Object[] filesDown = downloadedFiles.keySet().toArray();
-
-		int minTTR = Integer.MAX_VALUE;
-
-		for (Object filename : filesDown) {
-			if ((downloadedFiles.get((String) filename)[3] > 0)
-					&& (downloadedFiles.get((String) filename)[3] < minTTR)) {
-				minTTR = downloadedFiles.get((String) filename)[3];
-			}
-		}
-		// If there aren't valid TTRs in the metadata, sets minTTR to a negative
-		// value in order not to initialize any timers.
-		if (minTTR == Integer.MAX_VALUE) {
-			minTTR = -1;
-		}
-		System.out.println("New TTR=" + minTTR);
-		return minTTR;
+	public void refreshExpired(String filename, Runnable onRefreshed) {
+		refresher.refresh(filename, onRefreshed);
 	}
 
 	/**
-	 * Refreshes metadata of downloaded files
-	 * 
-	 * @param waitingTime
-	 *            Time passed between refreshes
+	 * @param filename
+	 * @return true if the file has expired but can still be served while it is
+	 *         revalidated, because its TTR passed less than the stale grace
+	 *         period ago
 	 */
-	public synchronized void refreshDownloads(int waitingTime) {
-		Object[] filesDown = downloadedFiles.keySet().toArray();
-
-		for (Object filename : filesDown) {
-			// Updates TTRs by subtracting the time between last refresh and
-			// current
-			downloadedFiles.get((String) filename)[3] -= waitingTime;
-
-			if (downloadedFiles.get((String) filename)[3] <= 0) {
-				System.out.println("TTR expired!");
-				// Sets all expirations as TTR=0
-				downloadedFiles.get((String) filename)[3] = 0;
+	public boolean canServeStale(String filename) {
+		return (files.getValidity(filename) == FILE_TTR_EXPIRED)
+				&& refresher.isWithinGrace(files.getTTRDeadline(filename));
+	}
 
-				if (downloadedFiles.get((String) filename)[VALIDITY_FIELD] != FILE_INVALID) {
-					downloadedFiles.get((String) filename)[VALIDITY_FIELD] = FILE_TTR_EXPIRED;
-				}
-			}
-		}
+	/**
+	 * @param filename
+	 * @return true if the copy of a downloaded file can be sent to other peers:
+	 *         it is valid, or it has expired but is still advertised as a
+	 *         stale hit, see canServeStale()
+	 */
+	public boolean canServe(String filename) {
+		return (files.getValidity(filename) == FILE_VALID)
+				|| canServeStale(filename);
+	}
 
-		// Sets new timestamp and triggers a new TTRChecker
-		timestamp = System.currentTimeMillis();
-		System.out.println("New timestamp set at " + timestamp);
+	/**
+	 * @param staleGrace
+	 *            Time (ms) after its TTR during which an expired file is still
+	 *            served while it is revalidated, 0 to disable it
+	 */
+	public void setStaleGrace(long staleGrace) {
+		refresher.setStaleGrace(staleGrace);
+	}
 
-		TTRChecker checker = new TTRChecker(this);
-		Thread checkerThread = new Thread(checker);
-		checkerThread.start();
+	/**
+	 * @param targetStaleness
+	 *            Probability (0-1) that a copy of a master file is stale when
+	 *            its TTR is computed from the modifications of the file, 0 to
+	 *            give all of them the configured TTR. See AdaptiveTTR.
+	 */
+	public void setTargetStaleness(double targetStaleness) {
+		adaptiveTTR.setTargetStaleness(targetStaleness);
 	}
 
 	/**
-	 * Performs a lazy update in pull mode.
+	 * Performs a lazy update in pull mode. Called by the refresher, see
+	 * refreshExpired().
 	 * 
 	 * @param filename
 	 * @return if the update has been pulled out correctly
@@ -639,41 +1265,87 @@ public class Peer {
 	public boolean lazyUpdate(String filename) {
 		// Lazy update
 		int[] metadata = getMetadata(filename);
+		if (metadata == null) {
+			// The file was removed while the refresh was queued
+			return false;
+		}
+		int masterId = metadata[1];
+		long start = clock.nanoTime();
+		boolean updated = false;
 		try {
-			System.out.println("Querying " + metadata[1] + " for lazy update");
-			int port = BASE_RMI_PORT + metadata[1];
-			String namePeerServer = "//localhost:" + port + "/PeerServer"
-					+ metadata[1];
-
-			PeerServerInterface master = (PeerServerInterface) Naming
-					.lookup(namePeerServer);
-
-			int[] newMetadata = master.checkMetadata(filename);
-
-			if (getVersion(filename) != newMetadata[0]) {
-				master.obtain(filename);
-				System.out
-						.println("Version changed, downloading from master...");
+			log.log(PeerLog.REFRESH, Level.INFO, "Querying {} for lazy update",
+					masterId);
+			PeerServerInterface master = getPeerInterface(masterId);
+
+			// The master sends a patch of copies bigger than a chunk, smaller
+			// ones come whole with the answer
+			File local = getFile("./downloads/" + filename);
+			long[] checksums = (local.length() > CHUNK_SIZE) ? DeltaPatch
+					.checksums(local) : null;
+			ObtainResult result = master.obtainIfNewer(filename,
+					getVersion(filename), Compression.SUPPORTED, id, checksums);
+			metrics.obtainCompleted(clock.nanoTime() - start);
+			int[] newMetadata = result.getMetadata();
+
+			if (result.isModified()) {
+				newMetadata = synchronizeFile(filename, master, result);
 			} else {
 				// Just restablishes TTR of the file to its initial value
-				System.out.println("Version unchanged, refreshing TTR.");
+				log.log(PeerLog.REFRESH, Level.INFO,
+						"Version unchanged, refreshing TTR of {}.", filename);
 			}
 
 			updateMetadata(filename, newMetadata);
 
-			// Starts a new TTRChecker to trigger refreshes of the file
-			TTRChecker checker = new TTRChecker(this);
-			Thread checkerThread = new Thread(checker);
-			checkerThread.start();
-
+			updated = true;
 			return true;
 
 		} catch (Exception e) {
-			System.out.println("Lazy update not possible, master unreachable.");
-			e.printStackTrace();
+			log.log(PeerLog.REFRESH, Level.INFO,
+					"Lazy update of {} not possible, master unreachable: {}",
+					filename, e);
+			stubs.evict(masterId);
 			return false;
+		} finally {
+			metrics.lazyUpdateCompleted(updated, clock.nanoTime() - start);
+		}
+
+	}
+
+	/**
+	 * Brings a downloaded file up to date with its master. Files which fit in
+	 * a chunk already came with the answer of the master. For bigger files
+	 * the answer carries only the blocks which have changed, unless the
+	 * change was too big, in which case the rest of the file is read from the
+	 * transfer opened by the master.
+	 * 
+	 * @param filename
+	 * @param master
+	 *            Stub of the master
+	 * @param result
+	 *            Answer of the master to obtainIfNewer()
+	 * @return The metadata of the new version
+	 * @throws IOException
+	 *             if the file cannot be synchronized
+	 */
+	private int[] synchronizeFile(String filename, PeerServerInterface master,
+			ObtainResult result) throws IOException {
+		DeltaPatch patch = result.getPatch();
+		if (patch != null) {
+			File scratch = getFile(PartialDownload.PARTIAL_DIRECTORY
+					+ filename + ".patch");
+			scratch.getParentFile().mkdirs();
+			patch.apply(getFile("./downloads/" + filename), scratch);
+			log.log(PeerLog.REFRESH, Level.INFO,
+					"Version of {} changed, patched with {} bytes", filename,
+					patch.getPatchSize());
+			return patch.getMetadata();
 		}
 
+		log.log(PeerLog.REFRESH, Level.INFO,
+				"Version of {} changed, downloading from master...", filename);
+		new FileDownloader(this).receive(master, filename, result);
+		return result.getMetadata();
 	}
 
 	/**
@@ -682,10 +1354,14 @@ public class Peer {
 	 * @param filename
 	 * @param newMetadata
 	 */
-	private synchronized void updateMetadata(String filename, int[] newMetadata) {
-		Integer[] m = { newMetadata[0], FILE_VALID, newMetadata[1],
-				newMetadata[2] };
-		downloadedFiles.put(filename, m);
+	private void updateMetadata(String filename, int[] newMetadata) {
+		long ttrDeadline = clock.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(newMetadata[2]);
+		files.putDownloaded(filename, newMetadata[0], FILE_VALID,
+				newMetadata[1], ttrDeadline);
+		scheduleTTR(filename, newMetadata[2]);
+		summaries.fileAdded(filename);
+		journal(filename, FILE_VALID);
 	}
 
 	/**
@@ -696,12 +1372,11 @@ public class Peer {
 	 * @param isValid
 	 */
 	public void incrementTotalRequests(boolean isValid) {
-		// If the request is valid, just increment total number
-		totalRequests++;
+		metrics.requestAnswered(isValid);
+	}
 
-		if (!isValid) {
-			invalidRequests++;
-		}
+	public PeerMetrics getMetrics() {
+		return metrics;
 	}
 
 	/**
@@ -709,6 +1384,9 @@ public class Peer {
 	 */
 	public void printStatistics() {
 
+		long totalRequests = metrics.getTotalRequests();
+		long invalidRequests = metrics.getInvalidRequests();
+
 		System.out.println("FINAL STATS");
 		System.out.println("Total requests: " + totalRequests);
 		System.out.println("Invalid requests: " + invalidRequests);
@@ -720,18 +1398,111 @@ public class Peer {
 		
 		System.out.println("Percentage of invalid requests: " + percentage
 				+ "%");
+		System.out.println("Stub cache hits: " + stubs.getHits()
+				+ ", misses: " + stubs.getMisses());
+		System.out.println("Compressed chunk cache hits: "
+				+ compressedChunks.getHits() + ", misses: "
+				+ compressedChunks.getMisses());
 		logger.log(Level.INFO, "Total requests: " + totalRequests);
 		logger.log(Level.INFO, "Invalid requests: " + invalidRequests);
 		logger.log(Level.INFO, "Percentage of invalid requests: " + percentage);
-		
-		logger.getHandlers()[0].flush();
-		logger.getHandlers()[0].close();
+
+		// Writes the pending events before the log file is closed
+		log.close();
+
+		if (logger.getHandlers().length > 0) {
+			logger.getHandlers()[0].flush();
+			logger.getHandlers()[0].close();
+		}
 	}
 
 	public Logger getLogger() {
 		return logger;
 	}
 
+	public PeerLog getLog() {
+		return log;
+	}
+
+	public PeerEnvironment getEnvironment() {
+		return environment;
+	}
+
+	public Clock getClock() {
+		return clock;
+	}
+
+	/**
+	 * @param path
+	 *            Path relative to the directory of the peer, such as
+	 *            "./files/" + filename
+	 * @return The file in the directory of the peer
+	 */
+	public File getFile(String path) {
+		return new File(environment.getDirectory(), path);
+	}
+
+	/**
+	 * @return TTL of the searches and invalidations started by this peer
+	 */
+	public int getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * @param timeToLive
+	 *            TTL of the searches and invalidations started by this peer,
+	 *            TIME_TO_LIVE by default
+	 */
+	public void setTimeToLive(int timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
 	/*--------- end change ----------*/
 
+	/**
+	 * A search started by this peer, which delivers every source to the
+	 * listener only once
+	 */
+	private static class ActiveSearch {
+
+		private String filename;
+
+		private QueryHitListener listener;
+
+		private PeerMetrics metrics;
+
+		private Clock clock;
+
+		private long start;
+
+		private Set<Integer> delivered = ConcurrentHashMap.<Integer> newKeySet();
+
+		public ActiveSearch(String filename, QueryHitListener listener,
+				PeerMetrics metrics, Clock clock) {
+			this.filename = filename;
+			this.listener = listener;
+			this.metrics = metrics;
+			this.clock = clock;
+			this.start = clock.nanoTime();
+		}
+
+		public void deliver(QueryHits hits) {
+			QueryHits fresh = new QueryHits();
+			for (int i = 0; i < hits.size(); i++) {
+				if (delivered.add(hits.getSource(i))) {
+					if (delivered.size() == 1) {
+						metrics.firstHitReceived(clock.nanoTime() - start);
+					}
+					fresh.add(hits.getSource(i), hits.getMetadata(i),
+							hits.getLength(i));
+				}
+			}
+			if (!fresh.isEmpty()) {
+				listener.hitReceived(filename, fresh);
+			}
+		}
+
+	}
+
 }
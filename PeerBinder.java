@@ -1,21 +1,17 @@
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.rmi.Naming;
 import java.rmi.RMISecurityManager;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * Class that defines the server-side thread for all the peers. It implements
@@ -31,13 +27,26 @@ public class PeerBinder extends UnicastRemoteObject implements Runnable,
 
 	private Peer peer;
 
-	private boolean timerOn = false;
+	/**
+	 * Ids of the queries received recently. The inclusion of a query registry
+	 * boosts the performance of a peer, and by extension the whole network's:
+	 * if a query arrives again through another path, the peer does not forward
+	 * it again to its neighbors, saving a lot of load.
+	 */
+	private SeenQueries seenQueries;
+
+	private PeerLog log;
+
+	// Maximum number of transfers open at the same time, which bounds the
+	// memory used by clients downloading from this peer
+	private static final int MAX_OPEN_TRANSFERS = 64;
 
-	private Stack<RegistryItem> queryRegistry = new Stack<RegistryItem>();
+	// Transfers not read for this time (ms) are considered abandoned
+	public static final long TRANSFER_IDLE_TIMEOUT = 60000;
 
-	private int previousReqType = -1;
-	
-	private Logger logger;
+	private Map<Integer, FileTransfer> transfers = new ConcurrentHashMap<Integer, FileTransfer>();
+
+	private AtomicInteger nextTransferId = new AtomicInteger();
 
 	/**
 	 * Creates a new PeerBinder object
@@ -50,61 +59,164 @@ public class PeerBinder extends UnicastRemoteObject implements Runnable,
 	public PeerBinder(Peer p) throws RemoteException {
 		super();
 		this.peer = p;
-		this.logger = peer.getLogger();
+		this.log = peer.getLog();
+		this.seenQueries = new SeenQueries(peer.getClock());
 	}
 
 	@Override
-	public byte[] obtain(String filename) throws RemoteException {
+	public TransferInfo openTransfer(String filename) throws RemoteException {
+		return openTransfer(filename, Peer.NO_VERSION, Compression.NONE);
+	}
+
+	/**
+	 * Opens a transfer of a file
+	 * 
+	 * @param filename
+	 * @param version
+	 *            Version of the file being served, NO_VERSION if unknown
+	 * @param codec
+	 *            Codec of the chunks, see Compression
+	 * @return The transfer
+	 * @throws RemoteException
+	 *             if the file is not found or too many transfers are open
+	 */
+	private TransferInfo openTransfer(String filename, int version, int codec)
+			throws RemoteException {
 
 		String path;
-		InputStream is;
 
 		if (peer.isMaster(filename)) {
 			path = "./files/";
 		} else if (peer.isDownloaded(filename)) {
 			path = "./downloads/";
-			if (peer.hasFile(filename) != Peer.FILE_VALID) {
+			if (!peer.canServe(filename)) {
 				throw new RemoteException("File not up to date");
 			}
 		} else {
 			throw new RemoteException("File not found");
 		}
-		try {
-			is = new FileInputStream(path + filename);
 
-			File file = new File(path + filename);
-			// Get the size of the file
-			long length = file.length();
+		// Transfers abandoned by clients which went down are closed here
+		closeIdleTransfers();
 
-			// Create the byte array to hold the data
-			byte[] bytes = new byte[(int) length];
+		if (transfers.size() >= MAX_OPEN_TRANSFERS) {
+			throw new RemoteException("Too many open transfers");
+		}
 
-			// Read in the bytes
-			int offset = 0;
-			int numRead = 0;
-			while (offset < bytes.length
-					&& (numRead = is.read(bytes, offset, bytes.length - offset)) >= 0) {
-				offset += numRead;
-			}
-			// Ensure all the bytes have been read in
-			if (offset < bytes.length) {
-				throw new IOException("Could not completely read file "
-						+ file.getName());
-			}
+		try {
+			FileTransfer transfer = new FileTransfer(peer.getFile(
+					path + filename).getPath(), filename, version, codec,
+					peer.getClock());
+			int transferId = nextTransferId.incrementAndGet();
+			transfers.put(transferId, transfer);
 
-			// Close the input stream and return bytes
-			is.close();
-			return bytes;
+			return new TransferInfo(transferId, transfer.getLength());
 		} catch (FileNotFoundException f) {
 			// This is for the case in which a file has been unexpectedly erased
 			// from the computer, so it is unregistered in the peer
 			peer.removeFile(filename);
-			return null;
+			throw new RemoteException("File not found");
+		}
+	}
+
+	@Override
+	public byte[] readChunk(int transferId, long offset, int length)
+			throws RemoteException {
+		byte[] chunk = read(transferId, offset, length);
+		peer.getMetrics().bytesServed(chunk.length);
+		return chunk;
+	}
+
+	/**
+	 * Reads a chunk of a transfer without counting it as served, for chunks
+	 * which may not be sent
+	 * 
+	 * @param transferId
+	 * @param offset
+	 * @param length
+	 * @return The chunk, a frame if the transfer is compressed
+	 * @throws RemoteException
+	 *             if the transfer is not open or the file cannot be read
+	 */
+	private byte[] read(int transferId, long offset, int length)
+			throws RemoteException {
+		FileTransfer transfer = transfers.get(transferId);
+
+		if (transfer == null) {
+			throw new RemoteException("Transfer not open");
+		}
+
+		try {
+			if (transfer.getCodec() == Compression.NONE) {
+				return transfer.read(offset, length);
+			}
+			return readFrame(transfer, offset, length);
 		} catch (IOException e) {
-			e.printStackTrace();
-			return null;
+			log.log(PeerLog.QUERY, Level.WARNING, "Could not read {}: {}",
+					transfer.getFilename(), e);
+			closeTransfer(transferId);
+			throw new RemoteException("Could not read file", e);
 		}
+	}
 
+	/**
+	 * Reads a chunk of a compressed transfer. The frames of the chunks of
+	 * master files are cached until their version changes.
+	 * 
+	 * @param transfer
+	 * @param offset
+	 * @param length
+	 * @return The frame of the chunk, see Compression
+	 * @throws IOException
+	 */
+	private byte[] readFrame(FileTransfer transfer, long offset, int length)
+			throws IOException {
+		String filename = transfer.getFilename();
+		int version = transfer.getVersion();
+		boolean cacheable = peer.isMaster(filename)
+				&& (peer.getVersion(filename) == version);
+		CompressedChunkCache cache = peer.getCompressedChunks();
+
+		if (cacheable) {
+			byte[] frame = cache.get(filename, version, offset, length);
+			if (frame != null) {
+				return frame;
+			}
+		}
+
+		byte[] frame = Compression.encode(transfer.read(offset, length),
+				transfer.getCodec());
+		if (cacheable) {
+			cache.put(filename, version, offset, length, frame);
+		}
+		return frame;
+	}
+
+	@Override
+	public void closeTransfer(int transferId) throws RemoteException {
+		FileTransfer transfer = transfers.remove(transferId);
+
+		if (transfer != null) {
+			transfer.close();
+		}
+	}
+
+	/**
+	 * Closes the transfers which have not been read for TRANSFER_IDLE_TIMEOUT
+	 * milliseconds
+	 */
+	private void closeIdleTransfers() {
+		long now = peer.getClock().nanoTime();
+		long timeout = TimeUnit.MILLISECONDS.toNanos(TRANSFER_IDLE_TIMEOUT);
+
+		for (Integer transferId : transfers.keySet()) {
+			FileTransfer transfer = transfers.get(transferId);
+			if ((transfer != null)
+					&& (now - transfer.getLastAccess() > timeout)) {
+				transfers.remove(transferId);
+				transfer.close();
+			}
+		}
 	}
 
 	@Override
@@ -133,187 +245,274 @@ public class PeerBinder extends UnicastRemoteObject implements Runnable,
 	}
 
 	@Override
-	public Set<Integer> queryServer(int senderId, String filename, int ttl,
-			int requestingId, int requestCode) throws RemoteException {
+	public QueryHits queryServer(long queryId, int senderId,
+			String filename, int ttl, int requestingId, int requestCode)
+			throws RemoteException {
 		// Attempts to reconnect the neighbor
 		peer.connectNeighbor(senderId);
 
-		System.out.println();
+		QueryHits sources = new QueryHits();
+		final long hitQueryId = queryId;
+		final int hitRequestingId = requestingId;
+		final String hitFilename = filename;
+
+		// Duplicates are dropped, the peer has already answered this query
+		if (!seenQueries.markSeen(queryId)) {
+			peer.getMetrics().duplicateSuppressed();
+			return sources;
+		}
+		peer.getMetrics().queryReceived(peer.getTimeToLive() - ttl + 1);
+
 		if (requestCode == Peer.SEARCH_REQUEST) {
-			System.out.println("New query from " + senderId + " requesting "
-					+ filename + " for " + requestingId + " with TTL=" + ttl);
-			logger.log(Level.INFO, "New query from " + senderId + " requesting "
-					+ filename + " for " + requestingId + " with TTL=" + ttl);
+			log.log(PeerLog.QUERY, Level.INFO,
+					"New query from {} requesting {} for {} with TTL={}",
+					senderId, filename, requestingId, ttl);
 		} else {
-			System.out.println("New query from " + senderId + " invalidating "
-					+ filename + " with masterId=" + requestingId
-					+ " with TTL=" + ttl);
+			log.log(PeerLog.INVALIDATION, Level.INFO,
+					"New query from {} invalidating {} with masterId={} with TTL={}",
+					senderId, filename, requestingId, ttl);
 		}
-		System.out.print("NutPeers > ");
-
-		Set<Integer> sources = new HashSet<Integer>();
 
 		if (peer.hasFile(filename) == Peer.FILE_VALID) {
 			if (requestCode == Peer.SEARCH_REQUEST) {
-				sources.add(peer.getId());
+				QueryHits hit = peer.newQueryHit(filename);
+				sources.addAll(hit);
+				peer.sendQueryHit(queryId, requestingId, filename, hit);
 				peer.incrementTotalRequests(true);
-				logger.log(Level.INFO, "Valid request");
+				log.log(PeerLog.QUERY, Level.INFO, "Valid request for {}",
+						filename);
 			} else if (requestCode == Peer.INVALIDATION_REQUEST) {
 				// Invalidate the file
-				System.out.println("Invalidating file: " + filename);
+				log.log(PeerLog.INVALIDATION, Level.INFO,
+						"Invalidating file: {}", filename);
 				peer.invalidate(filename);
 			}
 		} else if ((peer.hasFile(filename) == Peer.FILE_TTR_EXPIRED)
 				&& (requestCode == Peer.SEARCH_REQUEST)) {
 			peer.incrementTotalRequests(false);
-			logger.log(Level.INFO, "Invalid request, TTR expired");
-
-			System.out.println("TTR expired in " + peer.getId()
-					+ " , updating...");
-			if (peer.lazyUpdate(filename)) {
-				sources.add(peer.getId());
+			log.log(PeerLog.QUERY, Level.INFO,
+					"Invalid request for {}, TTR expired", filename);
+
+			if (peer.canServeStale(filename)) {
+				// Stale while revalidate: answers with the expired copy
+				log.log(PeerLog.REFRESH, Level.INFO,
+						"TTR expired in {} , serving stale copy while updating...",
+						peer.getId());
+				QueryHits hit = peer.newQueryHit(filename);
+				sources.addAll(hit);
+				peer.sendQueryHit(queryId, requestingId, filename, hit);
+				peer.refreshExpired(filename, null);
+			} else {
+				// The hit is sent once the file has been refreshed, without
+				// holding the query
+				log.log(PeerLog.REFRESH, Level.INFO,
+						"TTR expired in {} , updating...", peer.getId());
+				peer.refreshExpired(filename, new Runnable() {
+					@Override
+					public void run() {
+						peer.sendQueryHit(hitQueryId, hitRequestingId,
+								hitFilename, peer.newQueryHit(hitFilename));
+					}
+				});
 			}
 		} else {
 			peer.incrementTotalRequests(false);
-			logger.log(Level.INFO, "Invalid request, invalid file");
+			log.log(PeerLog.QUERY, Level.INFO,
+					"Invalid request for {}, invalid file", filename);
 		}
 		ttl--;
 
-		boolean same = false;
-
-		previousReqType = -1;
-
-		// The inclusion of a query registry boosts the performance of a peer,
-		// and by extension the whole network's. It compares the last query
-		// against a list of the queries the peer has received in the last 15
-		// seconds.
-		// If the requesting peer and the file are repeated, the peer does not
-		// forward again the query to its neighbors, saving a lot of load.
-		for (int i = 0; i < queryRegistry.size(); i++) {
-			String previousFilename = queryRegistry.get(i).getFilename();
-			int previousReq = queryRegistry.get(i).getRequestingId();
-
-			if ((previousFilename.equals(filename))
-					&& (previousReq == requestingId)
-					&& (previousReqType == requestCode)) {
-				System.out.println();
-				System.out.println("Same!");
-				System.out.print("NutPeers > ");
-				same = true;
+		if (ttl != 0) {
+
+			// Queries to neighbors: all except the sender neighbor and the
+			// requesting peer in case it is a neighbor. They are queried in
+			// parallel and their hits are merged with the one of this peer
+			List<Integer> neighbors = new ArrayList<Integer>();
+			for (Integer neighborId : peer.getConnectedNeighbors().keySet()) {
+				if ((neighborId != senderId) && (neighborId != requestingId)) {
+					neighbors.add(neighborId);
+				}
 			}
-		}
 
-		// Tries to start the timer for clearing the registry
-		if (same) {
-			startTimer();
+			sources.addAll(peer.floodQuery(queryId, neighbors, filename, ttl,
+					requestingId, requestCode));
+		}
+		if (requestCode == Peer.SEARCH_REQUEST) {
+			log.log(PeerLog.QUERY, Level.INFO, "Returning sources to {}",
+					senderId);
 		}
 
-		if ((ttl != 0) && (!same)) {
+		return sources;
+	}
 
-			previousReqType = requestCode;
+	@Override
+	public synchronized int notifyConnection(int id) throws RemoteException {
+		// The neighbor has just started, so a cached stub and the summaries
+		// exchanged with it would be stale
+		peer.evictPeerInterface(id);
+		peer.getContentSummaries().reset(id);
+		peer.connectNeighbor(id);
+		log.log(PeerLog.NEIGHBOR, Level.INFO, "Found a neighbor with id: {}", id);
+		return PeerMain.MODE;
+	}
 
-			// Sets a capacity limit for the registry, so that the program
-			// doesn't run out of memory
-			if (queryRegistry.size() > 1000) {
-				queryRegistry.clear();
-			}
+	@Override
+	public void invalidateBatch(long queryId, int senderId, int masterId,
+			Map<String, Integer> versions, int ttl) throws RemoteException {
+		// Attempts to reconnect the neighbor
+		peer.connectNeighbor(senderId);
 
-			updateQueryRegistry(filename, requestingId);
+		// Duplicates are dropped, the batch has already been applied here
+		if (!seenQueries.markSeen(queryId)) {
+			peer.getMetrics().duplicateSuppressed();
+			return;
+		}
 
-			Object[] neighbors = peer.getConnectedNeighbors().keySet()
-					.toArray();
+		log.log(PeerLog.INVALIDATION, Level.INFO,
+				"New invalidation batch from {} with masterId={} with TTL={}: {}",
+				senderId, masterId, ttl, versions.keySet());
 
-			// Queries to neighbors: all except the sender neighbor and the
-			// requesting peer in case it is a neighbor
-			for (int i = 0; i < neighbors.length; i++) {
-
-				if ((!neighbors[i].equals(senderId))
-						&& (!neighbors[i].equals(requestingId))) {
-					try {
-						PeerServerInterface neighborServer = peer
-								.getNeighborInterface((Integer) neighbors[i]);
-						if (requestCode == Peer.SEARCH_REQUEST) {
-							Set<Integer> destinations = neighborServer
-									.queryServer(peer.getId(), filename, ttl,
-											requestingId, Peer.SEARCH_REQUEST);
-							// This unifies all the sources found so far in a
-							// unique
-							// Set
-							sources.addAll(destinations);
-						} else {
-							neighborServer.queryServer(peer.getId(), filename,
-									ttl, requestingId,
-									Peer.INVALIDATION_REQUEST);
-						}
-					} catch (Exception e) {
-						System.out.println();
-						System.out.println("The server with id="
-								+ (Integer) neighbors[i]
-								+ " is not currently available.");
-						System.out.print("NutPeers > ");
-						peer.disconnectNeighbor((Integer) neighbors[i]);
-					}
+		peer.invalidateVersions(versions);
+
+		ttl--;
+		if (ttl != 0) {
+			List<Integer> neighbors = new ArrayList<Integer>();
+			for (Integer neighborId : peer.getConnectedNeighbors().keySet()) {
+				if ((neighborId != senderId) && (neighborId != masterId)) {
+					neighbors.add(neighborId);
 				}
+			}
+			peer.floodInvalidations(queryId, neighbors, masterId, versions,
+					ttl);
+		}
+	}
 
+	@Override
+	public ObtainResult obtainIfNewer(String filename, int haveVersion,
+			int codecs, int holderId, long[] checksums) throws RemoteException {
+		int[] metadata;
+		int codec = Compression.negotiate(codecs);
+		TransferInfo transfer;
+		boolean master = peer.isMaster(filename);
+
+		// A master file cannot be modified between the metadata and the
+		// opening of the transfer, which keeps the length of that version,
+		// so the content is read after the lock is released. Modifications
+		// only append to master files, and downloaded copies are replaced
+		// by a move, so open transfers keep reading the version they opened.
+		Object lock = master ? peer.getMasterLock() : new Object();
+		synchronized (lock) {
+			metadata = peer.getMetadata(filename);
+			if (metadata == null) {
+				throw new RemoteException("File not found");
+			}
+			// Both answers leave the caller with the current version
+			peer.grantLease(filename, holderId, metadata);
+			if (metadata[0] == haveVersion) {
+				return ObtainResult.notModified(metadata);
 			}
+			transfer = openTransfer(filename, metadata[0], codec);
 		}
-		if (requestCode == Peer.SEARCH_REQUEST) {
-			System.out.println();
-			System.out.println("Returning sources to " + senderId);
-			System.out.print("NutPeers > ");
+
+		if (master && (checksums != null)) {
+			// The caller has an older copy: only the changed blocks are sent
+			DeltaPatch patch = diff(filename, metadata, checksums,
+					transfer.getLength());
+			if (patch.isComplete()) {
+				closeTransfer(transfer.getTransferId());
+				peer.getMetrics().bytesServed(patch.getPatchSize());
+				return ObtainResult.patched(patch);
+			}
 		}
 
-		return sources;
+		byte[] data = read(transfer.getTransferId(), 0, Peer.CHUNK_SIZE);
+		if ((codec != Compression.NONE) && !Compression.isCompressed(data)) {
+			// The first chunk is the sample: if it does not shrink, the file
+			// is sent raw through the same transfer
+			codec = Compression.NONE;
+			transfers.get(transfer.getTransferId()).setCodec(codec);
+			data = read(transfer.getTransferId(), 0, Peer.CHUNK_SIZE);
+		}
+		// Only the chunk sent counts, not a discarded sample
+		peer.getMetrics().bytesServed(data.length);
+
+		long length = transfer.getLength();
+		if ((codec == Compression.NONE) ? (data.length >= length)
+				: (length <= Peer.CHUNK_SIZE)) {
+			// The whole file fits in the first chunk
+			closeTransfer(transfer.getTransferId());
+			transfer = null;
+		}
+		return ObtainResult.modified(metadata, length, codec, data, transfer);
 	}
 
 	/**
-	 * Updates the query registry with a new query
+	 * Computes the blocks of a master file which differ from a replica
 	 * 
 	 * @param filename
-	 * @param requestingId
-	 */
-	private synchronized void updateQueryRegistry(String filename,
-			int requestingId) {
-		RegistryItem item = new RegistryItem(filename, requestingId);
-		queryRegistry.push(item);
-	}
-
-	/**
-	 * Starts the timer if it hasn't yet been initialized
+	 * @param metadata
+	 *            Metadata of the version being served
+	 * @param checksums
+	 *            Checksums of the blocks of the replica
+	 * @param length
+	 *            Length of the version, kept by its open transfer
+	 * @return The patch, see DeltaPatch
+	 * @throws RemoteException
+	 *             if the file cannot be read
 	 */
-	private synchronized void startTimer() {
-		if (!timerOn) {
-			Thread timer = new TimerRestarter(this);
-			timer.start();
-			timerOn = true;
+	private DeltaPatch diff(String filename, int[] metadata,
+			long[] checksums, long length) throws RemoteException {
+		try {
+			return DeltaPatch.create(peer.getFile("./files/" + filename)
+					.getPath(), metadata, checksums, length);
+		} catch (IOException e) {
+			throw new RemoteException("Could not synchronize " + filename, e);
 		}
 	}
 
 	@Override
-	public synchronized int notifyConnection(int id) throws RemoteException {
-		peer.connectNeighbor(id);
-		System.out.println();
-		System.out.println("Found a neighbor with id: " + id);
-		System.out.print("NutPeers > ");
-		return PeerMain.MODE;
+	public void updateSummary(int senderId, SummaryDelta delta)
+			throws RemoteException {
+		peer.connectNeighbor(senderId);
+		peer.getContentSummaries().receive(senderId, delta);
 	}
 
-	/**
-	 * Clears the registry every 15 sec
-	 */
-	public synchronized void timeOutTimer() {
-		System.out.println();
-		System.out.println("Cleaning query registry");
-		System.out.print("NutPeers > ");
-		queryRegistry.clear();
-		timerOn = false;
+	@Override
+	public void queryHit(long queryId, String filename, QueryHits hits)
+			throws RemoteException {
+		peer.receiveQueryHit(queryId, hits);
 	}
 
 	/*--------- start change ----------*/
 
 	@Override
-	public int[] checkMetadata(String result) throws RemoteException {
-		return peer.getMetadata(result);
+	public Map<String, Long> getStatistics() throws RemoteException {
+		return peer.getMetrics().getStatistics();
+	}
+
+	@Override
+	public int[] checkMetadata(String result, int holderId)
+			throws RemoteException {
+		if (!peer.isMaster(result)) {
+			return peer.getMetadata(result);
+		}
+		// A lease on a version is given before the version changes, so the
+		// invalidation of the change reaches its holder
+		synchronized (peer.getMasterLock()) {
+			int[] metadata = peer.getMetadata(result);
+			if (metadata != null) {
+				peer.grantLease(result, holderId, metadata);
+			}
+			return metadata;
+		}
+	}
+
+	@Override
+	public void revokeLeases(int masterId, Map<String, Integer> versions)
+			throws RemoteException {
+		log.log(PeerLog.INVALIDATION, Level.INFO,
+				"Leases revoked by {}: {}", masterId, versions.keySet());
+		peer.invalidateVersions(versions);
 	}
 
 	@Override
@@ -0,0 +1,126 @@
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+ * What a peer takes from the process it runs in: its working directory, its
+ * clock and timers, the transport to other peers, the threads which run its
+ * background work and its source of randomness.
+ * 
+ * This class is the environment of a standalone peer, started by PeerMain in
+ * its own directory. The network simulator overrides it to run thousands of
+ * peers in one JVM, each in its own directory, on a single virtual clock and
+ * in a single thread.
+ * 
+ * @author palvare3
+ * 
+ */
+public class PeerEnvironment {
+
+	private Clock clock = new SystemClock("peer-clock");
+
+	private PeerTransport transport;
+
+	private PeerLog log;
+
+	public PeerEnvironment() {
+		this(new RmiTransport());
+	}
+
+	/**
+	 * @param transport
+	 *            How the peer reaches the other peers, RmiTransport by default
+	 */
+	public PeerEnvironment(PeerTransport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * @return Directory with the peer.properties file and the files/,
+	 *         downloads/ and partial/ directories of the peer
+	 */
+	public File getDirectory() {
+		return new File(".");
+	}
+
+	/**
+	 * @return Clock used to read the time
+	 */
+	public Clock getClock() {
+		return clock;
+	}
+
+	/**
+	 * @param name
+	 *            Name of the component which uses the timers
+	 * @return A clock which runs the timers of a component
+	 */
+	public Clock newTimer(String name) {
+		return new SystemClock(name);
+	}
+
+	public PeerTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * @return Log of the events of the peer, written to the "Peers" logger
+	 */
+	public synchronized PeerLog getLog() {
+		if (log == null) {
+			log = new PeerLog(Logger.getLogger("Peers"), getClock());
+		}
+		return log;
+	}
+
+	/**
+	 * @param name
+	 *            Name of the threads
+	 * @return An executor for the background work of a component
+	 */
+	public ExecutorService newExecutor(final String name) {
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * @return Queue where a peer collects the answers of the neighbors it
+	 *         queries in parallel, see Peer.floodQuery()
+	 */
+	public <T> BlockingQueue<Future<T>> newCompletionQueue() {
+		return new LinkedBlockingQueue<Future<T>>();
+	}
+
+	public Random getRandom() {
+		return new Random();
+	}
+
+	/**
+	 * @return true if the peer owns the process: it keeps a metadata journal
+	 *         and a log file and registers its metrics in JMX
+	 */
+	public boolean isStandalone() {
+		return true;
+	}
+
+	/**
+	 * @return true if the peer advertises its content summaries to its
+	 *         neighbors, see ContentSummaries
+	 */
+	public boolean isPublishingSummaries() {
+		return true;
+	}
+
+}
@@ -0,0 +1,474 @@
+import java.io.PrintStream;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Log of the events of the peer which happen while it serves other peers
+ * (queries, invalidations, neighbors, refreshes), kept off the threads which
+ * serve them. The events are put in a ring buffer without locks and a
+ * background thread formats them and writes them to the "Peers" logger and to
+ * the console, so an event costs the callers a few atomic operations and no
+ * I/O.
+ * 
+ * Each category has its own level, and can be limited to a number of events
+ * per second so a flood of queries does not fill the log: the events over
+ * the limit, and the ones which do not fit in the buffer when the writer is
+ * behind, are dropped and counted, and the writer logs how many were dropped
+ * every SUMMARY_INTERVAL.
+ * 
+ * Messages are patterns where each {} is replaced by the next argument. The
+ * arguments are only formatted, by the writer thread, if the event is logged,
+ * so they must not be modified after the call.
+ * 
+ * @author palvare3
+ * 
+ */
+public class PeerLog {
+
+	// Categories
+	public static final int QUERY = 0;
+	public static final int INVALIDATION = 1;
+	public static final int NEIGHBOR = 2;
+	public static final int REFRESH = 3;
+
+	private static final String[] CATEGORIES = { "query", "invalidation",
+			"neighbor", "refresh" };
+
+	// Events per second of each category, 0 for no limit. Queries are the
+	// events which grow with the load of the network.
+	private static final int[] DEFAULT_RATES = { 100, 0, 0, 0 };
+
+	public static final int DEFAULT_CAPACITY = 8 * 1024;
+
+	// Time (ms) between the summaries of dropped events
+	public static final long SUMMARY_INTERVAL = 10000;
+
+	// Time (ns) the writer sleeps when the buffer is empty
+	private static final long IDLE_PARK = 1000000;
+
+	private Logger logger;
+
+	private Clock clock;
+
+	private volatile int[] levels;
+
+	private volatile int[] rates = DEFAULT_RATES.clone();
+
+	// Second and number of events logged in it, by category, packed as
+	// second << 32 | count
+	private AtomicLongArray windows = new AtomicLongArray(CATEGORIES.length);
+
+	private AtomicLongArray sampled = new AtomicLongArray(CATEGORIES.length);
+
+	private AtomicLongArray overflowed = new AtomicLongArray(CATEGORIES.length);
+
+	private volatile PrintStream console;
+
+	private volatile String prompt;
+
+	// Ring buffer: slot i is free for the event with sequence s when
+	// sequences[i] == s, and holds it once sequences[i] == s + 1
+	private Event[] events;
+
+	private AtomicLongArray sequences;
+
+	private int mask;
+
+	private AtomicLong tail = new AtomicLong();
+
+	// Sequence of the next event to write, only moved by the writer
+	private AtomicLong head = new AtomicLong();
+
+	private AtomicBoolean started = new AtomicBoolean(false);
+
+	private volatile boolean closed = false;
+
+	private volatile Thread writer;
+
+	/**
+	 * @param logger
+	 *            Logger where the events are written
+	 * @param clock
+	 *            Clock which times the rate limits
+	 */
+	public PeerLog(Logger logger, Clock clock) {
+		this(logger, clock, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param logger
+	 * @param clock
+	 * @param capacity
+	 *            Events the buffer holds, rounded up to a power of two
+	 */
+	public PeerLog(Logger logger, Clock clock, int capacity) {
+		this.logger = logger;
+		this.clock = clock;
+
+		int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+		this.events = new Event[size];
+		this.sequences = new AtomicLongArray(size);
+		this.mask = size - 1;
+		for (int i = 0; i < size; i++) {
+			events[i] = new Event();
+			sequences.set(i, i);
+		}
+
+		int[] levels = new int[CATEGORIES.length];
+		for (int i = 0; i < levels.length; i++) {
+			levels[i] = Level.INFO.intValue();
+		}
+		this.levels = levels;
+	}
+
+	/**
+	 * Sets the levels and limits of the categories from the log.{category}
+	 * and log.{category}.rate properties, e.g. log.query=WARNING or
+	 * log.query.rate=10
+	 * 
+	 * @param properties
+	 * @throws IllegalArgumentException
+	 *             if a level or a rate is not valid
+	 */
+	public void configure(Properties properties) {
+		for (int category = 0; category < CATEGORIES.length; category++) {
+			String level = properties.getProperty("log." + CATEGORIES[category]);
+			if (level != null) {
+				setLevel(category, Level.parse(level.trim()));
+			}
+			String rate = properties.getProperty("log." + CATEGORIES[category]
+					+ ".rate");
+			if (rate != null) {
+				setRate(category, Integer.parseInt(rate.trim()));
+			}
+		}
+	}
+
+	public void setLevel(int category, Level level) {
+		int[] levels = this.levels.clone();
+		levels[category] = level.intValue();
+		this.levels = levels;
+	}
+
+	/**
+	 * @param category
+	 * @param eventsPerSecond
+	 *            Events of the category logged per second, 0 for no limit
+	 */
+	public void setRate(int category, int eventsPerSecond) {
+		int[] rates = this.rates.clone();
+		rates[category] = eventsPerSecond;
+		this.rates = rates;
+	}
+
+	/**
+	 * Echoes the events to a console too
+	 * 
+	 * @param console
+	 * @param prompt
+	 *            Printed again after each event, null if there is no prompt
+	 */
+	public void setConsole(PrintStream console, String prompt) {
+		this.console = console;
+		this.prompt = prompt;
+	}
+
+	/**
+	 * @return true if events of this category and level are logged
+	 */
+	public boolean isLoggable(int category, Level level) {
+		return (level.intValue() >= levels[category])
+				&& logger.isLoggable(level);
+	}
+
+	public void log(int category, Level level, String pattern) {
+		if (isLoggable(category, level)) {
+			publish(category, level, pattern, null);
+		}
+	}
+
+	public void log(int category, Level level, String pattern, Object arg) {
+		if (isLoggable(category, level)) {
+			publish(category, level, pattern, new Object[] { arg });
+		}
+	}
+
+	public void log(int category, Level level, String pattern, Object arg1,
+			Object arg2) {
+		if (isLoggable(category, level)) {
+			publish(category, level, pattern, new Object[] { arg1, arg2 });
+		}
+	}
+
+	public void log(int category, Level level, String pattern, Object arg1,
+			Object arg2, Object arg3) {
+		if (isLoggable(category, level)) {
+			publish(category, level, pattern,
+					new Object[] { arg1, arg2, arg3 });
+		}
+	}
+
+	public void log(int category, Level level, String pattern, Object arg1,
+			Object arg2, Object arg3, Object arg4) {
+		if (isLoggable(category, level)) {
+			publish(category, level, pattern, new Object[] { arg1, arg2, arg3,
+					arg4 });
+		}
+	}
+
+	public void log(int category, Level level, String pattern, Object... args) {
+		if (isLoggable(category, level)) {
+			publish(category, level, pattern, args);
+		}
+	}
+
+	/**
+	 * @return Events dropped by the rate limit of the category
+	 */
+	public long getSampled(int category) {
+		return sampled.get(category);
+	}
+
+	/**
+	 * @return Events of the category dropped because the buffer was full
+	 */
+	public long getOverflowed(int category) {
+		return overflowed.get(category);
+	}
+
+	private void publish(int category, Level level, String pattern,
+			Object[] args) {
+		if (!acquire(category)) {
+			sampled.incrementAndGet(category);
+			return;
+		}
+
+		// Claims the next slot, unless the writer has not freed it yet
+		long sequence = tail.get();
+		while (true) {
+			long available = sequences.get((int) sequence & mask);
+			if (available == sequence) {
+				if (tail.compareAndSet(sequence, sequence + 1)) {
+					break;
+				}
+				sequence = tail.get();
+			} else if (available < sequence) {
+				overflowed.incrementAndGet(category);
+				return;
+			} else {
+				// Another thread has claimed it
+				sequence = tail.get();
+			}
+		}
+
+		Event event = events[(int) sequence & mask];
+		event.category = category;
+		event.level = level;
+		event.pattern = pattern;
+		event.args = args;
+		event.millis = clock.currentTimeMillis();
+		sequences.lazySet((int) sequence & mask, sequence + 1);
+
+		if (!started.get() && started.compareAndSet(false, true)) {
+			startWriter();
+		}
+	}
+
+	/**
+	 * @return false if the category has reached its limit in this second
+	 */
+	private boolean acquire(int category) {
+		int rate = rates[category];
+		if (rate <= 0) {
+			return true;
+		}
+		long second = clock.currentTimeMillis() / 1000;
+		while (true) {
+			long window = windows.get(category);
+			long next;
+			if ((window >>> 32) != second) {
+				next = (second << 32) | 1;
+			} else if ((int) window >= rate) {
+				return false;
+			} else {
+				next = window + 1;
+			}
+			if (windows.compareAndSet(category, window, next)) {
+				return true;
+			}
+		}
+	}
+
+	private void startWriter() {
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "peer-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Loop of the writer thread
+	 */
+	private void write() {
+		long lastSummary = System.nanoTime();
+		long[] reported = new long[CATEGORIES.length];
+
+		while (true) {
+			if (!writeNext()) {
+				if (System.nanoTime() - lastSummary > SUMMARY_INTERVAL * 1000000) {
+					summarize(reported);
+					lastSummary = System.nanoTime();
+				}
+				if (closed) {
+					summarize(reported);
+					return;
+				}
+				LockSupport.parkNanos(IDLE_PARK);
+			}
+		}
+	}
+
+	/**
+	 * Writes the next event of the buffer
+	 * 
+	 * @return false if the buffer is empty
+	 */
+	private boolean writeNext() {
+		long sequence = head.get();
+		int slot = (int) sequence & mask;
+		if (sequences.get(slot) != sequence + 1) {
+			return false;
+		}
+
+		Event event = events[slot];
+		int category = event.category;
+		Level level = event.level;
+		String message = format(event.pattern, event.args);
+		long millis = event.millis;
+		event.args = null;
+		sequences.lazySet(slot, sequence + events.length);
+		head.set(sequence + 1);
+
+		LogRecord record = new LogRecord(level, message);
+		record.setLoggerName(logger.getName());
+		record.setSourceClassName("PeerLog");
+		record.setSourceMethodName(CATEGORIES[category]);
+		record.setMillis(millis);
+		logger.log(record);
+
+		PrintStream console = this.console;
+		if (console != null) {
+			console.println();
+			console.println(message);
+			String prompt = this.prompt;
+			if (prompt != null) {
+				console.print(prompt);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Logs the number of events dropped since the last summary
+	 * 
+	 * @param reported
+	 *            Dropped events already reported, by category
+	 */
+	private void summarize(long[] reported) {
+		StringBuilder summary = new StringBuilder();
+		for (int category = 0; category < CATEGORIES.length; category++) {
+			long dropped = sampled.get(category) + overflowed.get(category);
+			if (dropped > reported[category]) {
+				summary.append(summary.length() == 0 ? "" : ", ")
+						.append(CATEGORIES[category]).append(": ")
+						.append(dropped - reported[category]);
+				reported[category] = dropped;
+			}
+		}
+		if (summary.length() > 0) {
+			logger.log(Level.WARNING, "Log events dropped by the rate limits "
+					+ "or a full buffer: " + summary);
+		}
+	}
+
+	/**
+	 * Waits until the events logged so far have been written
+	 * 
+	 * @param timeout
+	 *            Maximum time to wait (ms)
+	 */
+	public void flush(long timeout) {
+		long target = tail.get();
+		long deadline = System.nanoTime() + timeout * 1000000;
+		while ((head.get() < target) && started.get()
+				&& (System.nanoTime() < deadline)) {
+			LockSupport.parkNanos(IDLE_PARK);
+		}
+	}
+
+	/**
+	 * Writes the pending events and the summary of the dropped ones, and
+	 * stops the writer
+	 */
+	public void close() {
+		closed = true;
+		Thread writer = this.writer;
+		if (writer != null) {
+			try {
+				writer.join(SUMMARY_INTERVAL);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		} else {
+			summarize(new long[CATEGORIES.length]);
+		}
+	}
+
+	/**
+	 * Replaces each {} in a pattern with the next argument
+	 */
+	static String format(String pattern, Object[] args) {
+		if (args == null) {
+			return pattern;
+		}
+		StringBuilder message = new StringBuilder(pattern.length() + 32);
+		int start = 0;
+		for (Object arg : args) {
+			int i = pattern.indexOf("{}", start);
+			if (i < 0) {
+				break;
+			}
+			message.append(pattern, start, i).append(arg);
+			start = i + 2;
+		}
+		return message.append(pattern, start, pattern.length()).toString();
+	}
+
+	/**
+	 * Slot of the ring buffer
+	 */
+	private static class Event {
+
+		int category;
+
+		Level level;
+
+		String pattern;
+
+		Object[] args;
+
+		long millis;
+
+	}
+
+}
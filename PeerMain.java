@@ -1,12 +1,13 @@
-import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.rmi.Naming;
 import java.rmi.RMISecurityManager;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Scanner;
-import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class that defines the user interface of a Peer. A Peer is a client and a
@@ -27,8 +28,12 @@ public class PeerMain {
 
 	private static int iterations = 1000;
 
+	// Time (ms) automatic mode waits for more sources after the first hit
+	private static final long FIRST_HITS_WAIT = 200;
+
 	public static final int MODE_PUSH = 0;
 	public static final int MODE_PULL = 1;
+	public static final int MODE_LEASE = 2;
 
 	/*--------- end change ----------*/
 
@@ -38,13 +43,16 @@ public class PeerMain {
 		// Parses the arguments to select mode and simulation options
 		if ((argv.length > 0) && (argv[0].equals("help"))) {
 			System.out.println("NutPeers help: PeerMain [mode] [auto_type] [lambda/ttr] [iterations]");
-			System.out.println("mode: push, pull");
+			System.out.println("mode: push, pull, lease");
 			System.out.println("auto_type: auto, modify");
 			System.exit(0);
 		}
 		if ((argv.length > 0) && (argv[0].equals("pull"))) {
 			MODE = MODE_PULL;
 			System.out.println("SYSTEM MODE SET TO PULL");
+		} else if ((argv.length > 0) && (argv[0].equals("lease"))) {
+			MODE = MODE_LEASE;
+			System.out.println("SYSTEM MODE SET TO LEASE");
 		} else if ((argv.length > 0) && (argv[0].equals("push"))) {
 			MODE = MODE_PUSH;
 			System.out.println("SYSTEM MODE SET TO PUSH");
@@ -71,8 +79,37 @@ public class PeerMain {
 			id = Integer.parseInt(properties.getProperty("peer_id"));
 			ttr = Integer.parseInt(properties.getProperty("TTR"));
 
+			// Transport used to call the other peers: the RMI registry (rmi,
+			// the default) or their protocol port (nio). Every peer serves
+			// both, so peers using different transports can be mixed
+			PeerEnvironment environment;
+			String transport = properties.getProperty("transport", "rmi");
+			if (transport.equals("nio")) {
+				environment = new PeerEnvironment(new NioTransport());
+			} else if (transport.equals("rmi")) {
+				environment = new PeerEnvironment();
+			} else {
+				throw new IllegalArgumentException("Unknown transport "
+						+ transport);
+			}
+
 			// Creates a new Peer object
-			Peer thisPeer = new Peer(id, ttr);
+			Peer thisPeer = new Peer(id, ttr, environment);
+
+			// Optional grace period (ms) during which expired files are still
+			// served while they are revalidated
+			if (properties.getProperty("stale_grace") != null) {
+				thisPeer.setStaleGrace(Long.parseLong(properties
+						.getProperty("stale_grace")));
+			}
+
+			// Optional probability (0-1) that a copy is stale, which sets the
+			// TTR of each master file from its modifications. 0 gives all of
+			// them the configured TTR.
+			if (properties.getProperty("ttr_staleness") != null) {
+				thisPeer.setTargetStaleness(Double.parseDouble(properties
+						.getProperty("ttr_staleness")));
+			}
 
 			// Modifier mode, starts the FileModifier thread
 			if ((argv.length > 1) && (argv[1].equals("modifier"))) {
@@ -100,6 +137,11 @@ public class PeerMain {
 				}
 				
 			}
+
+			// Levels and rate limits of the log, and its echo in the console
+			thisPeer.getLog().configure(properties);
+			thisPeer.getLog().setConsole(System.out,
+					MODE_AUTOMATIC ? null : "NutPeers > ");
 			/*--------- end change ----------*/
 
 			// Binds the server side of the peer to a RMI port
@@ -107,13 +149,20 @@ public class PeerMain {
 			Thread binderThread = new Thread(binder);
 			binderThread.start();
 
-			/*--------- start change ----------*/
-			if (MODE == MODE_PULL) {
-				TTRChecker checker = new TTRChecker(thisPeer);
-				Thread checkerThread = new Thread(checker);
-				checkerThread.start();
-			}
+			// Starts the protocol port of the NIO transport
+			NioServer protocolServer = new NioServer(binder,
+					NioServer.getPort(id));
+			Thread protocolServerThread = new Thread(protocolServer);
+			protocolServerThread.setDaemon(true);
+			protocolServerThread.start();
+
+			// Starts the data port which serves the file payloads
+			DataServer dataServer = new DataServer(thisPeer);
+			Thread dataServerThread = new Thread(dataServer);
+			dataServerThread.setDaemon(true);
+			dataServerThread.start();
 
+			/*--------- start change ----------*/
 			if (MODE_AUTOMATIC) {
 				automaticPeer(thisPeer, lambda);
 			} else {
@@ -147,39 +196,18 @@ public class PeerMain {
 		int i = 1;
 		int nIter = 0;
 		Random r = new Random();
-		PeerServerInterface dataSource;
-
-		byte[] data = null;
-		int[] metadata = new int[2];
 
 		while (nIter < iterations ) {
 			System.out.println("Iteration number " + nIter);
 			// Queries the servers for the desired file
 			String result = "test" + i + ".txt";
-			Set<Integer> sources = thisPeer.search(result);
-			if (sources.size() > 0) {
-				int sourceId = (Integer) sources.toArray()[r.nextInt(sources
-						.size())];
-
-				int port = 1099 + sourceId;
-				String namePeerServer = "//localhost:" + port + "/PeerServer"
-						+ sourceId;
-
-				try {
-					dataSource = (PeerServerInterface) Naming
-							.lookup(namePeerServer);
-					data = dataSource.obtain(result);
-					metadata = dataSource.checkMetadata(result);
-				} catch (Exception e) {
-					System.out.println(e.getMessage());
-					System.out
-							.println("The server is not currently available. Please try again");
+			QueryHits sources = firstHits(thisPeer, result);
+			if (!sources.isEmpty()) {
+				// Downloads the file from all the sources at once
+				if (new SwarmDownloader(thisPeer).download(result, sources)) {
+					System.out.println("Succesfully copied " + result
+							+ " from PeerServers " + sources);
 				}
-
-				writeFile(result, data, metadata, thisPeer);
-
-				System.out.println("Succesfully copied " + result
-						+ " from PeerServer" + sourceId);
 			}
 
 			// Randomly selects new query
@@ -196,12 +224,57 @@ public class PeerMain {
 		}
 	}
 
+	/**
+	 * Searches a file and returns as soon as the first hits have arrived, so
+	 * the download does not wait for the whole flood. The search goes on in
+	 * the background.
+	 * 
+	 * @param thisPeer
+	 * @param filename
+	 * @return The hits received in FIRST_HITS_WAIT ms after the first one,
+	 *         ranked, or no hits if the search finished without them
+	 * @throws Exception
+	 */
+	private static QueryHits firstHits(Peer thisPeer, String filename)
+			throws Exception {
+		final LinkedBlockingQueue<QueryHits> hits = new LinkedBlockingQueue<QueryHits>();
+		Future<QueryHits> search = thisPeer.searchAsync(filename,
+				new QueryHitListener() {
+					@Override
+					public void hitReceived(String filename, QueryHits received) {
+						hits.offer(received);
+					}
+				});
+
+		QueryHits sources = new QueryHits();
+		QueryHits first = null;
+		while ((first == null) && !search.isDone()) {
+			first = hits.poll(100, TimeUnit.MILLISECONDS);
+		}
+
+		if (first != null) {
+			// Gives other close peers the chance to join the swarm
+			sources.addAll(first);
+			Thread.sleep(FIRST_HITS_WAIT);
+		} else {
+			sources.addAll(search.get());
+		}
+		List<QueryHits> rest = new ArrayList<QueryHits>();
+		hits.drainTo(rest);
+		for (QueryHits received : rest) {
+			sources.addAll(received);
+		}
+		sources.rank();
+		return sources;
+	}
+
 	private static void commandPrompt(Peer thisPeer) throws Exception {
 
 		// Data input from keyboard
 		Scanner input = new Scanner(System.in); // Decl. & init. a Scanner.
 		String command = "";
 		CommandProcessor cp = new CommandProcessor(thisPeer);
+		FileDownloader downloader = new FileDownloader(thisPeer);
 
 		do {
 
@@ -212,17 +285,30 @@ public class PeerMain {
 			String result = cp.process(command);
 
 			if (result != null) {
-				// Queries the servers for the desired file
-				Set<Integer> sources = thisPeer.search(result);
+				// Queries the servers for the desired file, showing the
+				// sources as they are found
+				QueryHits hits = thisPeer.search(result,
+						new QueryHitListener() {
+							@Override
+							public void hitReceived(String filename,
+									QueryHits received) {
+								for (int i = 0; i < received.size(); i++) {
+									System.out.println("Found " + filename
+											+ " version "
+											+ received.getVersion(i)
+											+ " in PeerServer"
+											+ received.getSource(i));
+								}
+							}
+						});
 
+				// Ranked from the freshest
+				List<Integer> sources = hits.getSources();
 				Object[] sourcesArray = sources.toArray();
 
 				String source = "";
 				boolean validQuery = false;
-				PeerServerInterface dataSource;
-				String namePeerServer = "";
-				byte[] data = null;
-				int[] metadata = new int[2];
+				boolean downloaded = false;
 
 				if (sourcesArray.length < 1) {
 					System.out
@@ -239,39 +325,28 @@ public class PeerMain {
 					System.out
 							.print("Choose the server you want to download from: [");
 					for (int i = 0; i < sources.size(); i++) {
-						if (i == sources.size() - 1) {
-							System.out.print((Integer) sourcesArray[i]);
-						} else {
-							System.out.print((Integer) sourcesArray[i] + ", ");
-						}
+						System.out.print((Integer) sourcesArray[i] + " (v"
+								+ hits.getVersion(i) + "), ");
 					}
-					System.out.print("] > ");
+					System.out.print("all] > ");
 					source = input.nextLine();
 
 					// If a user enters "cancel" at this point, the download
 					// will be cancelled
-					if (!source.equals("cancel")) {
+					if (source.equals("all")) {
+						downloaded = new SwarmDownloader(thisPeer).download(
+								result, hits);
+						validQuery = downloaded;
+					} else if (!source.equals("cancel")) {
 						for (int j = 0; j < sources.size(); j++) {
 							Integer s = (Integer) sourcesArray[j];
 							if (source.equals(s.toString())) {
-								int port = 1099 + s;
-								namePeerServer = "//localhost:" + port
-										+ "/PeerServer" + source;
 								// This is put here so if other peers have
 								// not correctly unregistered,
 								// the program can treat the error and
 								// inform the indexing server
-								try {
-									dataSource = (PeerServerInterface) Naming
-											.lookup(namePeerServer);
-									data = dataSource.obtain(result);
-									metadata = dataSource.checkMetadata(result);
-									validQuery = true;
-								} catch (Exception e) {
-									System.out.println(e.getMessage());
-									System.out
-											.println("The server is not currently available. Please try again");
-								}
+								downloaded = downloader.download(result, s);
+								validQuery = downloaded;
 							}
 						}
 					} else {
@@ -281,38 +356,13 @@ public class PeerMain {
 
 				}
 
-				writeFile(result, data, metadata, thisPeer);
-
-				System.out.println("Succesfully copied " + result
-						+ " from PeerServer" + source);
+				if (downloaded) {
+					System.out.println("Succesfully copied " + result
+							+ " from PeerServer" + source);
+				}
 			}
 
 		} while (!command.equals("exit"));
 	}
 
-	private static void writeFile(String filename, byte[] data, int[] metadata,
-			Peer thisPeer) throws Exception {
-		// Writing to a local file
-		if (data != null) {
-			// Erase the file in case it exists
-			File f = new File("downloads/" + filename);
-			f.delete();
-
-			FileOutputStream fos = new FileOutputStream("downloads/" + filename);
-			fos.write(data);
-			fos.close();
-
-			// Finally, register the new file in the peer's registry and start
-			// the checker
-			// if mode is pull
-			thisPeer.addFile(filename, metadata);
-
-			if (MODE == MODE_PULL) {
-				TTRChecker checker = new TTRChecker(thisPeer);
-				Thread checkerThread = new Thread(checker);
-				checkerThread.start();
-			}
-		}
-	}
-
 }
@@ -0,0 +1,223 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of a peer. Counters are LongAdders and latencies are recorded in
+ * Histograms, so the RMI threads update them without contention and without
+ * allocating. They can be read while the peer runs through JMX (see
+ * PeerMetricsMBean) and through PeerServerInterface.getStatistics().
+ * 
+ * Latencies are in microseconds.
+ * 
+ * @author palvare3
+ * 
+ */
+public class PeerMetrics implements PeerMetricsMBean {
+
+	private final LongAdder totalRequests = new LongAdder();
+
+	private final LongAdder invalidRequests = new LongAdder();
+
+	private final LongAdder duplicatesSuppressed = new LongAdder();
+
+	private final LongAdder bytesServed = new LongAdder();
+
+	private final LongAdder invalidationsSent = new LongAdder();
+
+	private final LongAdder invalidationsReceived = new LongAdder();
+
+	private final LongAdder lazyUpdates = new LongAdder();
+
+	private final LongAdder lazyUpdateFailures = new LongAdder();
+
+	// Time of the searches started by this peer, until the flood returns
+	private final Histogram queryLatency = new Histogram();
+
+	// Time until the first hit of the searches started by this peer
+	private final Histogram firstHitLatency = new Histogram();
+
+	// Hops travelled by the queries received
+	private final Histogram hopCount = new Histogram();
+
+	// Neighbors each query is forwarded to
+	private final Histogram fanOut = new Histogram();
+
+	// Round trip of the obtainIfNewer() calls of this peer
+	private final Histogram obtainLatency = new Histogram();
+
+	// Time of the lazy updates of expired files
+	private final Histogram lazyUpdateLatency = new Histogram();
+
+	/**
+	 * Registers the metrics in the platform MBean server
+	 * 
+	 * @param peerId
+	 */
+	public void register(int peerId) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("NutPeers:type=PeerMetrics,id=" + peerId));
+		} catch (JMException e) {
+			System.out.println("Metrics not available through JMX: "
+					+ e.getMessage());
+		}
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	/**
+	 * @param valid
+	 *            false if the file was not valid in this peer
+	 */
+	public void requestAnswered(boolean valid) {
+		totalRequests.increment();
+		if (!valid) {
+			invalidRequests.increment();
+		}
+	}
+
+	/**
+	 * @param hops
+	 *            Hops the query has travelled to reach this peer
+	 */
+	public void queryReceived(int hops) {
+		hopCount.record(hops);
+	}
+
+	public void duplicateSuppressed() {
+		duplicatesSuppressed.increment();
+	}
+
+	/**
+	 * @param neighbors
+	 *            Neighbors the query has been sent to
+	 */
+	public void queryForwarded(int neighbors) {
+		fanOut.record(neighbors);
+	}
+
+	public void searchCompleted(long nanos) {
+		queryLatency.record(micros(nanos));
+	}
+
+	public void firstHitReceived(long nanos) {
+		firstHitLatency.record(micros(nanos));
+	}
+
+	public void bytesServed(long bytes) {
+		bytesServed.add(bytes);
+	}
+
+	public void obtainCompleted(long nanos) {
+		obtainLatency.record(micros(nanos));
+	}
+
+	/**
+	 * @param files
+	 *            Files in the batch sent to a neighbor
+	 */
+	public void invalidationsSent(int files) {
+		invalidationsSent.add(files);
+	}
+
+	/**
+	 * @param files
+	 *            Copies invalidated in this peer
+	 */
+	public void invalidationsReceived(int files) {
+		invalidationsReceived.add(files);
+	}
+
+	public void lazyUpdateCompleted(boolean success, long nanos) {
+		lazyUpdates.increment();
+		if (!success) {
+			lazyUpdateFailures.increment();
+		}
+		lazyUpdateLatency.record(micros(nanos));
+	}
+
+	@Override
+	public long getTotalRequests() {
+		return totalRequests.sum();
+	}
+
+	@Override
+	public long getInvalidRequests() {
+		return invalidRequests.sum();
+	}
+
+	@Override
+	public long getDuplicatesSuppressed() {
+		return duplicatesSuppressed.sum();
+	}
+
+	@Override
+	public long getBytesServed() {
+		return bytesServed.sum();
+	}
+
+	@Override
+	public long getInvalidationsSent() {
+		return invalidationsSent.sum();
+	}
+
+	@Override
+	public long getInvalidationsReceived() {
+		return invalidationsReceived.sum();
+	}
+
+	@Override
+	public long getLazyUpdates() {
+		return lazyUpdates.sum();
+	}
+
+	@Override
+	public long getLazyUpdateFailures() {
+		return lazyUpdateFailures.sum();
+	}
+
+	@Override
+	public long getQueryLatencyMedian() {
+		return queryLatency.getPercentile(50);
+	}
+
+	@Override
+	public long getQueryLatencyP99() {
+		return queryLatency.getPercentile(99);
+	}
+
+	@Override
+	public long getObtainLatencyMedian() {
+		return obtainLatency.getPercentile(50);
+	}
+
+	@Override
+	public Map<String, Long> getStatistics() {
+		Map<String, Long> statistics = new TreeMap<String, Long>();
+		statistics.put("requests.total", getTotalRequests());
+		statistics.put("requests.invalid", getInvalidRequests());
+		statistics.put("queries.duplicatesSuppressed",
+				getDuplicatesSuppressed());
+		statistics.put("transfers.bytesServed", getBytesServed());
+		statistics.put("invalidations.sent", getInvalidationsSent());
+		statistics.put("invalidations.received", getInvalidationsReceived());
+		statistics.put("lazyUpdates.total", getLazyUpdates());
+		statistics.put("lazyUpdates.failed", getLazyUpdateFailures());
+		queryLatency.addTo(statistics, "queries.latencyUs");
+		firstHitLatency.addTo(statistics, "queries.firstHitUs");
+		hopCount.addTo(statistics, "queries.hops");
+		fanOut.addTo(statistics, "queries.fanOut");
+		obtainLatency.addTo(statistics, "transfers.obtainLatencyUs");
+		lazyUpdateLatency.addTo(statistics, "lazyUpdates.latencyUs");
+		return statistics;
+	}
+
+}
@@ -0,0 +1,49 @@
+import java.util.Map;
+
+/**
+ * Management interface of PeerMetrics, so the metrics of a running peer can
+ * be read with any JMX console.
+ * 
+ * @author palvare3
+ * 
+ */
+public interface PeerMetricsMBean {
+
+	public long getTotalRequests();
+
+	public long getInvalidRequests();
+
+	public long getDuplicatesSuppressed();
+
+	public long getBytesServed();
+
+	public long getInvalidationsSent();
+
+	public long getInvalidationsReceived();
+
+	public long getLazyUpdates();
+
+	public long getLazyUpdateFailures();
+
+	/**
+	 * @return Median time (us) of the searches started by this peer
+	 */
+	public long getQueryLatencyMedian();
+
+	/**
+	 * @return 99th percentile of the time (us) of the searches started by
+	 *         this peer
+	 */
+	public long getQueryLatencyP99();
+
+	/**
+	 * @return Median time (us) of the obtainIfNewer() calls of this peer
+	 */
+	public long getObtainLatencyMedian();
+
+	/**
+	 * @return All the counters and histogram summaries, by name
+	 */
+	public Map<String, Long> getStatistics();
+
+}
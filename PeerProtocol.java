@@ -0,0 +1,342 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Binary protocol of the NIO transport (see NioTransport and NioServer). Each
+ * call of PeerServerInterface is a request frame and its answer a response
+ * frame, sent over a connection which is kept open and carries many calls at
+ * the same time, so the responses are matched to the requests by id and not
+ * by their order.
+ * 
+ * A frame is: length of the rest of the frame (int), request id (int), a code
+ * (byte) and the payload. The code of a request is the method called and the
+ * payload its arguments; the code of a response is its status and the payload
+ * the value returned, or the message of the exception if the status is
+ * STATUS_ERROR. Integers are big endian, strings are written with
+ * DataOutput.writeUTF() and arrays and collections are preceded by their
+ * size, -1 for null.
+ * 
+ * @author palvare3
+ * 
+ */
+public class PeerProtocol {
+
+	// Methods of PeerServerInterface
+	public static final byte OPEN_TRANSFER = 1;
+	public static final byte READ_CHUNK = 2;
+	public static final byte CLOSE_TRANSFER = 3;
+	public static final byte NOTIFY_CONNECTION = 4;
+	public static final byte QUERY_SERVER = 5;
+	public static final byte INVALIDATE_BATCH = 6;
+	public static final byte QUERY_HIT = 7;
+	public static final byte UPDATE_SUMMARY = 8;
+	public static final byte OBTAIN_IF_NEWER = 9;
+	public static final byte GET_STATISTICS = 10;
+	public static final byte CHECK_METADATA = 11;
+	public static final byte RECEIVE_NEIGHBORS = 12;
+	public static final byte REVOKE_LEASES = 13;
+
+	// Status codes of a response
+	public static final byte STATUS_OK = 0;
+	public static final byte STATUS_ERROR = 1;
+
+	// Bytes of a frame before the payload: length, request id and code
+	public static final int HEADER_SIZE = 4 + 4 + 1;
+
+	// Bigger frames are taken as a corrupt stream and close the connection.
+	// The biggest ones are obtainIfNewer() answers with a patch, up to
+	// MAX_PATCH_SIZE.
+	public static final int MAX_FRAME_SIZE = 4 * DeltaPatch.MAX_PATCH_SIZE;
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private PeerProtocol() {
+	}
+
+	/**
+	 * Frame being written. The length is filled in by toBuffer(), once the
+	 * payload is complete.
+	 */
+	public static class Frame extends DataOutputStream {
+
+		private int requestId;
+
+		public Frame(int requestId, byte code) {
+			super(new Bytes());
+			this.requestId = requestId;
+			try {
+				writeInt(0);
+				writeInt(requestId);
+				writeByte(code);
+			} catch (IOException e) {
+				// Not thrown by a ByteArrayOutputStream
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public int getRequestId() {
+			return requestId;
+		}
+
+		/**
+		 * @return The frame, ready to be written to a channel
+		 */
+		public ByteBuffer toBuffer() {
+			Bytes bytes = (Bytes) out;
+			ByteBuffer buffer = ByteBuffer.wrap(bytes.array(), 0, bytes.size());
+			buffer.putInt(0, bytes.size() - 4);
+			return buffer;
+		}
+
+	}
+
+	private static class Bytes extends ByteArrayOutputStream {
+
+		public Bytes() {
+			super(64);
+		}
+
+		public byte[] array() {
+			return buf;
+		}
+
+	}
+
+	/**
+	 * Splits the bytes read from a channel into frames. Frames smaller than the
+	 * buffer are read several at a time; the buffer grows to fit bigger ones.
+	 */
+	public static class FrameReader {
+
+		private ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+		/**
+		 * Reads what the channel has, which in blocking mode waits for at least
+		 * one byte
+		 * 
+		 * @param channel
+		 * @throws EOFException
+		 *             if the channel has been closed by the other side
+		 * @throws IOException
+		 */
+		public void read(ReadableByteChannel channel) throws IOException {
+			if (channel.read(input) < 0) {
+				throw new EOFException("Connection closed");
+			}
+		}
+
+		/**
+		 * @return Next complete frame without its length, starting at the
+		 *         request id, or null if it has not been fully read yet
+		 * @throws IOException
+		 *             if the length of the frame is not valid
+		 */
+		public ByteBuffer next() throws IOException {
+			input.flip();
+			try {
+				if (input.remaining() < 4) {
+					return null;
+				}
+				int length = input.getInt(input.position());
+				if (length < HEADER_SIZE - 4 || length > MAX_FRAME_SIZE) {
+					throw new IOException("Invalid frame length " + length);
+				}
+				if (input.remaining() < 4 + length) {
+					if (input.capacity() < 4 + length) {
+						ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+						bigger.put(input);
+						bigger.flip();
+						input = bigger;
+					}
+					return null;
+				}
+
+				byte[] frame = new byte[length];
+				input.position(input.position() + 4);
+				input.get(frame);
+				return ByteBuffer.wrap(frame);
+			} finally {
+				input.compact();
+			}
+		}
+
+	}
+
+	public static void writeString(DataOutput out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			out.writeUTF(s);
+		}
+	}
+
+	public static String readString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	public static void writeBytes(DataOutput out, byte[] bytes)
+			throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	public static byte[] readBytes(DataInput in) throws IOException {
+		int n = readSize(in);
+		if (n < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[n];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	public static void writeInts(DataOutput out, int[] ints) throws IOException {
+		if (ints == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(ints.length);
+			for (int i : ints) {
+				out.writeInt(i);
+			}
+		}
+	}
+
+	public static int[] readInts(DataInput in) throws IOException {
+		int n = readSize(in);
+		if (n < 0) {
+			return null;
+		}
+		int[] ints = new int[n];
+		for (int i = 0; i < n; i++) {
+			ints[i] = in.readInt();
+		}
+		return ints;
+	}
+
+	public static void writeLongs(DataOutput out, long[] longs)
+			throws IOException {
+		if (longs == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(longs.length);
+			for (long l : longs) {
+				out.writeLong(l);
+			}
+		}
+	}
+
+	public static long[] readLongs(DataInput in) throws IOException {
+		int n = readSize(in);
+		if (n < 0) {
+			return null;
+		}
+		long[] longs = new long[n];
+		for (int i = 0; i < n; i++) {
+			longs[i] = in.readLong();
+		}
+		return longs;
+	}
+
+	public static void writeVersions(DataOutput out, Map<String, Integer> map)
+			throws IOException {
+		if (map == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(map.size());
+			for (Map.Entry<String, Integer> entry : map.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeInt(entry.getValue());
+			}
+		}
+	}
+
+	public static Map<String, Integer> readVersions(DataInput in)
+			throws IOException {
+		int n = readSize(in);
+		if (n < 0) {
+			return null;
+		}
+		Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < n; i++) {
+			map.put(in.readUTF(), in.readInt());
+		}
+		return map;
+	}
+
+	public static void writeStatistics(DataOutput out, Map<String, Long> map)
+			throws IOException {
+		if (map == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(map.size());
+			for (Map.Entry<String, Long> entry : map.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeLong(entry.getValue());
+			}
+		}
+	}
+
+	public static Map<String, Long> readStatistics(DataInput in)
+			throws IOException {
+		int n = readSize(in);
+		if (n < 0) {
+			return null;
+		}
+		Map<String, Long> map = new LinkedHashMap<String, Long>();
+		for (int i = 0; i < n; i++) {
+			map.put(in.readUTF(), in.readLong());
+		}
+		return map;
+	}
+
+	public static void writeNeighbors(DataOutput out, Map<Integer, Boolean> map)
+			throws IOException {
+		if (map == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(map.size());
+			for (Map.Entry<Integer, Boolean> entry : map.entrySet()) {
+				out.writeInt(entry.getKey());
+				out.writeBoolean(entry.getValue());
+			}
+		}
+	}
+
+	public static Map<Integer, Boolean> readNeighbors(DataInput in)
+			throws IOException {
+		int n = readSize(in);
+		if (n < 0) {
+			return null;
+		}
+		Map<Integer, Boolean> map = new LinkedHashMap<Integer, Boolean>();
+		for (int i = 0; i < n; i++) {
+			map.put(in.readInt(), in.readBoolean());
+		}
+		return map;
+	}
+
+	/**
+	 * @return Size of an array or collection, -1 for null
+	 * @throws IOException
+	 *             if the size is not valid
+	 */
+	private static int readSize(DataInput in) throws IOException {
+		int n = in.readInt();
+		if (n < -1 || n > MAX_FRAME_SIZE) {
+			throw new IOException("Invalid size " + n);
+		}
+		return n;
+	}
+
+}
@@ -1,7 +1,6 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Defines the server-side interface of a peer offered to all neighbors
@@ -11,19 +10,46 @@ import java.util.Set;
 public interface PeerServerInterface extends Remote {
 
 	/**
-	 * Lets a client obtain a certain file from the peer. It is implemented
-	 * using a buffered read, so as not to block the program when accessing big
-	 * files.
+	 * Opens a transfer of a certain file from the peer. The file is then read
+	 * by ranges with readChunk(), so neither side has to hold the whole file in
+	 * memory.
 	 * 
 	 * @param filename
 	 *            Name of the desired file
 	 * 
-	 * @return A byte array with the data
+	 * @return The id of the transfer and the length of the file
 	 * 
 	 * @throws RemoteException
-	 *             if the server cannot be reached
+	 *             if the server cannot be reached or the file is not available
 	 */
-	public byte[] obtain(String filename) throws RemoteException;
+	public TransferInfo openTransfer(String filename) throws RemoteException;
+
+	/**
+	 * Reads a range of a file from an open transfer.
+	 * 
+	 * @param transferId
+	 *            Id returned by openTransfer()
+	 * @param offset
+	 *            Position of the first byte
+	 * @param length
+	 *            Number of bytes requested, at most Peer.CHUNK_SIZE are returned
+	 * 
+	 * @return A byte array with the data, empty if offset is past the end
+	 * 
+	 * @throws RemoteException
+	 *             if the server cannot be reached or the transfer is not open
+	 */
+	public byte[] readChunk(int transferId, long offset, int length)
+			throws RemoteException;
+
+	/**
+	 * Closes a transfer and releases its resources in the peer.
+	 * 
+	 * @param transferId
+	 *            Id returned by openTransfer()
+	 * @throws RemoteException
+	 */
+	public void closeTransfer(int transferId) throws RemoteException;
 
 	/**
 	 * This is used for notifying the peer that a neighbor has connected
@@ -39,6 +65,9 @@ public interface PeerServerInterface extends Remote {
 	 * The base method for propagating a search request over the distributed P2P
 	 * network.
 	 * 
+	 * @param queryId
+	 *            Unique id of the query, the same in all its hops. See
+	 *            Peer.newQueryId()
 	 * @param senderId
 	 *            The neighbor which directly makes the query
 	 * @param filename
@@ -47,21 +76,130 @@ public interface PeerServerInterface extends Remote {
 	 * @param requestingId
 	 *            Peer that made the original request
 	 * 
-	 * @return A set with all ids which have the file
+	 * @return The hits of all the peers which have the file, with the metadata
+	 *         of their copies
 	 * @throws RemoteException
 	 */
-	public Set<Integer> queryServer(int senderId, String filename, int ttl,
-			int requestingId, int requestCode) throws RemoteException;
+	public QueryHits queryServer(long queryId, int senderId,
+			String filename, int ttl, int requestingId, int requestCode)
+			throws RemoteException;
 
 	/**
-	 * Searches the metadata of a file in the receiving peer.
+	 * Propagates a batch of invalidations of master files over the network in
+	 * push mode. Like search requests, batches are forwarded until their TTL
+	 * runs out and duplicates are dropped by id.
+	 * 
+	 * @param queryId
+	 *            Unique id of the batch
+	 * @param senderId
+	 *            The neighbor which directly sends the batch
+	 * @param masterId
+	 *            Peer which owns the master copies
+	 * @param versions
+	 *            New version of each file, or Peer.ANY_VERSION to invalidate
+	 *            all copies
+	 * @param ttl
+	 *            Time to Live
+	 * @throws RemoteException
+	 */
+	public void invalidateBatch(long queryId, int senderId, int masterId,
+			Map<String, Integer> versions, int ttl) throws RemoteException;
+
+	/**
+	 * Notifies the peer which started a search that another peer has the
+	 * file. It is sent as soon as the file is found, so the requester does not
+	 * have to wait for the whole flood to answer.
+	 * 
+	 * @param queryId
+	 *            Id of the search
+	 * @param filename
+	 * @param hits
+	 *            Hit of the peer which has the file, with the metadata of its
+	 *            copy
+	 * @throws RemoteException
+	 */
+	public void queryHit(long queryId, String filename, QueryHits hits)
+			throws RemoteException;
+
+	/**
+	 * Receives the changes in the content summary that a neighbor advertises
+	 * to this peer, used to decide which searches are forwarded to it.
+	 * 
+	 * @param senderId
+	 *            The neighbor which sends its summary
+	 * @param delta
+	 *            Words of the attenuated Bloom filter which have changed
+	 * @throws RemoteException
+	 */
+	public void updateSummary(int senderId, SummaryDelta delta)
+			throws RemoteException;
+
+	/**
+	 * Obtains a file from the receiving peer only if its version is different
+	 * from the one the caller has. The metadata and the content are read at
+	 * the same time, so they always belong to the same version. The content
+	 * is compressed with one of the codecs offered by the caller, unless it
+	 * does not shrink. A caller which already has an older copy of a master
+	 * file sends the checksums of its blocks, and the master answers with the
+	 * blocks which have changed instead, unless the change is too big. In
+	 * lease mode, if the receiving peer is the master, the caller gets a
+	 * lease on the version it ends up with, see LeaseTable.
+	 * 
+	 * @param filename
+	 * @param haveVersion
+	 *            Version of the caller's copy, Peer.NO_VERSION if it has none
+	 * @param codecs
+	 *            Codecs supported by the caller, see Compression.SUPPORTED
+	 * @param holderId
+	 *            Id of the caller, which keeps the copy
+	 * @param checksums
+	 *            Checksums of the blocks of the caller's copy, see
+	 *            DeltaPatch.checksums(), or null to get the whole content
+	 * @return Either "not modified" with the current metadata, or the new
+	 *         content or the patch of the caller's copy with its metadata, see
+	 *         ObtainResult
+	 * @throws RemoteException
+	 *             if the server cannot be reached or does not have a valid
+	 *             copy of the file
+	 */
+	public ObtainResult obtainIfNewer(String filename, int haveVersion,
+			int codecs, int holderId, long[] checksums) throws RemoteException;
+
+	/**
+	 * @return The current metrics of the receiving peer: counters and
+	 *         latency histogram summaries by name, see PeerMetrics
+	 * @throws RemoteException
+	 */
+	public Map<String, Long> getStatistics() throws RemoteException;
+
+	/**
+	 * Searches the metadata of a file in the receiving peer. In lease mode, if
+	 * the receiving peer is the master, the caller gets a lease on the current
+	 * version.
 	 * 
 	 * @param result
 	 *            File name
+	 * @param holderId
+	 *            Id of the caller
 	 * @return See Peer.getMetadata()
 	 * @throws RemoteException
 	 */
-	public int[] checkMetadata(String result) throws RemoteException;
+	public int[] checkMetadata(String result, int holderId)
+			throws RemoteException;
+
+	/**
+	 * Invalidates the copies of master files of the caller in lease mode. The
+	 * master sends it only to the peers with a lease on an older version, and
+	 * it is not forwarded.
+	 * 
+	 * @param masterId
+	 *            Peer which owns the master copies
+	 * @param versions
+	 *            New version of each file
+	 * @throws RemoteException
+	 */
+	public void revokeLeases(int masterId, Map<String, Integer> versions)
+			throws RemoteException;
 
 	/**
 	 * Receives the caller's neighbors in an invalidation broadcasted by a push
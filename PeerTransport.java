@@ -0,0 +1,30 @@
+import java.net.MalformedURLException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+
+/**
+ * How a peer reaches the server side of other peers. Standalone peers look up
+ * the RMI stubs in the registry of each peer (see RmiTransport); the network
+ * simulator hands out the servers of the peers running in the same JVM.
+ * 
+ * The stubs are cached by StubCache, so the transport is only asked the first
+ * time a peer is contacted or after a call to it has failed.
+ * 
+ * @author palvare3
+ * 
+ */
+public interface PeerTransport {
+
+	/**
+	 * @param peerId
+	 * @return The server interface of the peer
+	 * @throws MalformedURLException
+	 * @throws RemoteException
+	 *             if the peer cannot be reached
+	 * @throws NotBoundException
+	 *             if the peer is not running
+	 */
+	public PeerServerInterface lookup(int peerId)
+			throws MalformedURLException, RemoteException, NotBoundException;
+
+}
@@ -0,0 +1,23 @@
+/**
+ * Receives the hits of a search as soon as each peer finds the file, before
+ * the whole flood has answered. See Peer.search(String, QueryHitListener).
+ * 
+ * @author palvare3
+ * 
+ */
+public interface QueryHitListener {
+
+	/**
+	 * Called with the hits of the peers which have a valid copy of the file,
+	 * each peer only once. It is called from the server threads of the peer,
+	 * so it should return quickly.
+	 * 
+	 * @param filename
+	 *            searched
+	 * @param hits
+	 *            Hits of the peers not delivered before, with the metadata of
+	 *            their copies
+	 */
+	public void hitReceived(String filename, QueryHits hits);
+
+}
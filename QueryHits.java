@@ -0,0 +1,370 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hits of a search: the peers which have a valid copy of the file, each one
+ * with the metadata of its copy (version, master and TTR left, see
+ * Peer.getMetadata()) and its length. They are returned by queryServer() and
+ * merged at every hop on the way back, so the requester can choose the
+ * freshest sources without asking each one for its metadata.
+ * 
+ * The hits are kept in parallel arrays of primitives, one entry per source,
+ * so merging the answers of the neighbors does not create an object per hit.
+ * Once there are more than a few hits, the position of each source is found
+ * through an open addressing table, so merging n hits into m costs O(n + m).
+ * 
+ * @author palvare3
+ * 
+ */
+public class QueryHits implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// Up to this many hits, sources are found by scanning the arrays
+	private static final int SCAN_LIMIT = 8;
+
+	private int size = 0;
+
+	private int[] sources;
+	private int[] versions;
+	private int[] masters;
+	private int[] ttrs;
+	private long[] lengths;
+
+	// Position + 1 of the hit of each source, 0 for an empty slot, indexed by
+	// the hash of the source id. Built when there are more than SCAN_LIMIT
+	// hits and rebuilt when they are reordered or deserialized.
+	private transient int[] slots;
+
+	public QueryHits() {
+		this(4);
+	}
+
+	private QueryHits(int capacity) {
+		sources = new int[capacity];
+		versions = new int[capacity];
+		masters = new int[capacity];
+		ttrs = new int[capacity];
+		lengths = new long[capacity];
+	}
+
+	/**
+	 * Adds the hit of a source. If the source is already there, the copy with
+	 * the newest version is kept.
+	 * 
+	 * @param sourceId
+	 *            Id of the peer which has the file
+	 * @param metadata
+	 *            Metadata of its copy, see Peer.getMetadata()
+	 * @param length
+	 *            Length of its copy in bytes
+	 */
+	public void add(int sourceId, int[] metadata, long length) {
+		add(sourceId, metadata[0], metadata[1], metadata[2], length);
+	}
+
+	/**
+	 * Merges the hits of another search result
+	 * 
+	 * @param hits
+	 */
+	public void addAll(QueryHits hits) {
+		for (int i = 0; i < hits.size; i++) {
+			add(hits.sources[i], hits.versions[i], hits.masters[i],
+					hits.ttrs[i], hits.lengths[i]);
+		}
+	}
+
+	private void add(int sourceId, int version, int master, int ttr,
+			long length) {
+		int i = indexOf(sourceId);
+		if (i < 0) {
+			if (size == sources.length) {
+				grow();
+			}
+			i = size++;
+			sources[i] = sourceId;
+			if (slots != null) {
+				if (2 * size > slots.length) {
+					slots = null;
+				} else {
+					insert(i);
+				}
+			}
+		} else if (version <= versions[i]) {
+			return;
+		}
+		versions[i] = version;
+		masters[i] = master;
+		ttrs[i] = ttr;
+		lengths[i] = length;
+	}
+
+	private void grow() {
+		int capacity = Math.max(sources.length * 2, 4);
+		sources = Arrays.copyOf(sources, capacity);
+		versions = Arrays.copyOf(versions, capacity);
+		masters = Arrays.copyOf(masters, capacity);
+		ttrs = Arrays.copyOf(ttrs, capacity);
+		lengths = Arrays.copyOf(lengths, capacity);
+	}
+
+	/**
+	 * @param sourceId
+	 * @return Position of the hit of a source, -1 if it is not there
+	 */
+	public int indexOf(int sourceId) {
+		if (size <= SCAN_LIMIT) {
+			for (int i = 0; i < size; i++) {
+				if (sources[i] == sourceId) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		if (slots == null) {
+			rebuildSlots();
+		}
+		int mask = slots.length - 1;
+		for (int h = hash(sourceId) & mask; slots[h] != 0; h = (h + 1) & mask) {
+			if (sources[slots[h] - 1] == sourceId) {
+				return slots[h] - 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Builds the table of positions, with room for the hits to double
+	 */
+	private void rebuildSlots() {
+		slots = new int[Integer.highestOneBit(Math.max(size, SCAN_LIMIT)) * 4];
+		for (int i = 0; i < size; i++) {
+			insert(i);
+		}
+	}
+
+	private void insert(int i) {
+		int mask = slots.length - 1;
+		int h = hash(sources[i]) & mask;
+		while (slots[h] != 0) {
+			h = (h + 1) & mask;
+		}
+		slots[h] = i + 1;
+	}
+
+	/**
+	 * Spreads consecutive ids over the table
+	 */
+	private static int hash(int id) {
+		int h = id * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	public boolean contains(int sourceId) {
+		return indexOf(sourceId) >= 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int getSource(int i) {
+		return sources[i];
+	}
+
+	public int getVersion(int i) {
+		return versions[i];
+	}
+
+	public int getMaster(int i) {
+		return masters[i];
+	}
+
+	/**
+	 * @param i
+	 * @return Time (ms) the copy of the source had left before its next
+	 *         refresh when it answered
+	 */
+	public int getTTR(int i) {
+		return ttrs[i];
+	}
+
+	public long getLength(int i) {
+		return lengths[i];
+	}
+
+	/**
+	 * @param i
+	 * @return The metadata of a hit, as returned by Peer.getMetadata()
+	 */
+	public int[] getMetadata(int i) {
+		return new int[] { versions[i], masters[i], ttrs[i] };
+	}
+
+	/**
+	 * @return The ids of the sources, in the order of the hits
+	 */
+	public List<Integer> getSources() {
+		List<Integer> list = new ArrayList<Integer>(size);
+		for (int i = 0; i < size; i++) {
+			list.add(sources[i]);
+		}
+		return list;
+	}
+
+	/**
+	 * Sorts the hits from the freshest: newest version first, then the
+	 * longest TTR left, then by source id
+	 */
+	public void rank() {
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		sort(order, new int[size], 0, size);
+
+		int capacity = Math.max(size, 1);
+		int[] rankedSources = new int[capacity];
+		int[] rankedVersions = new int[capacity];
+		int[] rankedMasters = new int[capacity];
+		int[] rankedTTRs = new int[capacity];
+		long[] rankedLengths = new long[capacity];
+		for (int k = 0; k < size; k++) {
+			int i = order[k];
+			rankedSources[k] = sources[i];
+			rankedVersions[k] = versions[i];
+			rankedMasters[k] = masters[i];
+			rankedTTRs[k] = ttrs[i];
+			rankedLengths[k] = lengths[i];
+		}
+		sources = rankedSources;
+		versions = rankedVersions;
+		masters = rankedMasters;
+		ttrs = rankedTTRs;
+		lengths = rankedLengths;
+		slots = null;
+	}
+
+	/**
+	 * Merge sort of positions of hits from the freshest, on the primitive
+	 * arrays, so no position is boxed
+	 * 
+	 * @param order
+	 *            Positions to sort
+	 * @param buffer
+	 *            Scratch space as big as order
+	 * @param from
+	 *            First position of the range, inclusive
+	 * @param to
+	 *            Last position of the range, exclusive
+	 */
+	private void sort(int[] order, int[] buffer, int from, int to) {
+		if (to - from < 2) {
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		sort(order, buffer, from, middle);
+		sort(order, buffer, middle, to);
+		if (compare(order[middle - 1], order[middle]) <= 0) {
+			return;
+		}
+
+		System.arraycopy(order, from, buffer, from, to - from);
+		int left = from;
+		int right = middle;
+		for (int k = from; k < to; k++) {
+			if ((right >= to)
+					|| ((left < middle) && (compare(buffer[left],
+							buffer[right]) <= 0))) {
+				order[k] = buffer[left++];
+			} else {
+				order[k] = buffer[right++];
+			}
+		}
+	}
+
+	/**
+	 * Order of rank(): newest version, then longest TTR, then lowest id
+	 */
+	private int compare(int a, int b) {
+		if (versions[a] != versions[b]) {
+			return (versions[a] > versions[b]) ? -1 : 1;
+		}
+		if (ttrs[a] != ttrs[b]) {
+			return (ttrs[a] > ttrs[b]) ? -1 : 1;
+		}
+		return (sources[a] < sources[b]) ? -1
+				: ((sources[a] == sources[b]) ? 0 : 1);
+	}
+
+	/**
+	 * @return The hits of the newest version, ranked, see rank()
+	 */
+	public QueryHits newest() {
+		QueryHits newest = new QueryHits();
+		int version = Integer.MIN_VALUE;
+		for (int i = 0; i < size; i++) {
+			version = Math.max(version, versions[i]);
+		}
+		for (int i = 0; i < size; i++) {
+			if (versions[i] == version) {
+				newest.add(sources[i], versions[i], masters[i], ttrs[i],
+						lengths[i]);
+			}
+		}
+		newest.rank();
+		return newest;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(sources[i]).append(" (v").append(versions[i])
+					.append(')');
+		}
+		return sb.append(']').toString();
+	}
+
+	/**
+	 * Writes the hits in the binary form of PeerProtocol
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(size);
+		for (int i = 0; i < size; i++) {
+			out.writeInt(sources[i]);
+			out.writeInt(versions[i]);
+			out.writeInt(masters[i]);
+			out.writeInt(ttrs[i]);
+			out.writeLong(lengths[i]);
+		}
+	}
+
+	public static QueryHits read(DataInput in) throws IOException {
+		int n = in.readInt();
+		if ((n < 0) || (n > PeerProtocol.MAX_FRAME_SIZE / 24)) {
+			throw new IOException("Invalid number of hits " + n);
+		}
+		QueryHits hits = new QueryHits(Math.max(n, 1));
+		for (int i = 0; i < n; i++) {
+			hits.add(in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+					in.readLong());
+		}
+		return hits;
+	}
+
+}
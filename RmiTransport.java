@@ -0,0 +1,24 @@
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+
+/**
+ * Transport of the standalone peers: the stub of peer n is bound as
+ * PeerServer{n} in the RMI registry listening on port BASE_RMI_PORT + n of the
+ * local host, see PeerBinder.run().
+ * 
+ * @author palvare3
+ * 
+ */
+public class RmiTransport implements PeerTransport {
+
+	@Override
+	public PeerServerInterface lookup(int peerId)
+			throws MalformedURLException, RemoteException, NotBoundException {
+		int port = Peer.BASE_RMI_PORT + peerId;
+		String namePeerServer = "//localhost:" + port + "/PeerServer" + peerId;
+		return (PeerServerInterface) Naming.lookup(namePeerServer);
+	}
+
+}
@@ -0,0 +1,123 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Remembers the ids of the queries received by a peer during the last
+ * WINDOW milliseconds, so duplicates arriving through other paths are dropped.
+ * The ids are kept in a ring of time buckets: each bucket holds the ids
+ * received during BUCKET_MILLIS, and it is replaced by an empty one when the
+ * ring wraps around, so entries expire on their own. Checking an id costs a
+ * hash lookup per bucket and takes no locks.
+ * 
+ * @author palvare3
+ * 
+ */
+public class SeenQueries {
+
+	private static final int BUCKETS = 15;
+
+	private static final long BUCKET_MILLIS = 1000;
+
+	// Time (ms) a query id is remembered
+	public static final long WINDOW = BUCKETS * BUCKET_MILLIS;
+
+	// Capacity limit of each bucket, so that the program doesn't run out of
+	// memory under a flood of queries. Ids over the limit are not remembered,
+	// so at worst a duplicate is forwarded until its TTL runs out
+	private static final int MAX_BUCKET_SIZE = 100000;
+
+	private AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<Bucket>(
+			BUCKETS);
+
+	private Clock clock;
+
+	public SeenQueries() {
+		this(new SystemClock("seen-queries"));
+	}
+
+	/**
+	 * @param clock
+	 *            Clock which tells the bucket of the current time
+	 */
+	public SeenQueries(Clock clock) {
+		this.clock = clock;
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, new Bucket(-1));
+		}
+	}
+
+	/**
+	 * Records a query id
+	 * 
+	 * @param queryId
+	 * @return true if the id had not been seen during the last WINDOW
+	 *         milliseconds
+	 */
+	public boolean markSeen(long queryId) {
+		long epoch = clock.currentTimeMillis() / BUCKET_MILLIS;
+		int currentSlot = index(epoch);
+
+		// Older buckets still inside the window
+		for (int i = 1; i < BUCKETS; i++) {
+			int slot = currentSlot - i;
+			if (slot < 0) {
+				slot += BUCKETS;
+			}
+			Bucket bucket = buckets.get(slot);
+			if ((bucket.epoch == epoch - i) && bucket.ids.contains(queryId)) {
+				return false;
+			}
+		}
+
+		Bucket current = currentBucket(epoch);
+		if (current.size.get() >= MAX_BUCKET_SIZE) {
+			return !current.ids.contains(queryId);
+		}
+		if (current.ids.add(queryId)) {
+			current.size.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param epoch
+	 * @return The bucket of the epoch, replacing the expired bucket which
+	 *         occupied its slot in the ring
+	 */
+	private Bucket currentBucket(long epoch) {
+		int i = index(epoch);
+		Bucket bucket = buckets.get(i);
+		while (bucket.epoch < epoch) {
+			buckets.compareAndSet(i, bucket, new Bucket(epoch));
+			bucket = buckets.get(i);
+		}
+		return bucket;
+	}
+
+	private int index(long epoch) {
+		// Epochs before the first bucket exist when the clock starts at 0,
+		// as the virtual clock of the simulator does
+		return (int) (((epoch % BUCKETS) + BUCKETS) % BUCKETS);
+	}
+
+	/**
+	 * Query ids received during one BUCKET_MILLIS interval
+	 */
+	private static class Bucket {
+
+		private final long epoch;
+
+		private final Set<Long> ids = ConcurrentHashMap.<Long> newKeySet();
+
+		private final AtomicInteger size = new AtomicInteger();
+
+		public Bucket(long epoch) {
+			this.epoch = epoch;
+		}
+
+	}
+
+}
@@ -0,0 +1,109 @@
+import java.net.MalformedURLException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the RMI stubs of other peers, keyed by peer id, so the transport
+ * (the RMI registry of standalone peers) is only queried the first time a
+ * peer is contacted. Lookups are single-flight:
+ * concurrent callers asking for the same peer wait for the same lookup.
+ * 
+ * @author palvare3
+ * 
+ */
+public class StubCache {
+
+	private PeerTransport transport;
+
+	private ConcurrentMap<Integer, FutureTask<PeerServerInterface>> stubs = new ConcurrentHashMap<Integer, FutureTask<PeerServerInterface>>();
+
+	private AtomicLong hits = new AtomicLong();
+
+	private AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param transport
+	 *            Looks up the stubs which are not cached
+	 */
+	public StubCache(PeerTransport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * @param peerId
+	 * @return The stub of the peer, looked up through the transport if it is
+	 *         not cached
+	 * @throws MalformedURLException
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 */
+	public PeerServerInterface get(final int peerId)
+			throws MalformedURLException, RemoteException, NotBoundException {
+		FutureTask<PeerServerInterface> task = stubs.get(peerId);
+
+		if (task != null) {
+			hits.incrementAndGet();
+		} else {
+			FutureTask<PeerServerInterface> lookup = new FutureTask<PeerServerInterface>(
+					new Callable<PeerServerInterface>() {
+						@Override
+						public PeerServerInterface call() throws Exception {
+							return transport.lookup(peerId);
+						}
+					});
+
+			task = stubs.putIfAbsent(peerId, lookup);
+			if (task == null) {
+				// This caller won, so it performs the lookup
+				misses.incrementAndGet();
+				task = lookup;
+				task.run();
+			} else {
+				hits.incrementAndGet();
+			}
+		}
+
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			// Failed lookups are not cached
+			stubs.remove(peerId, task);
+			Throwable cause = e.getCause();
+			if (cause instanceof RemoteException) {
+				throw (RemoteException) cause;
+			} else if (cause instanceof NotBoundException) {
+				throw (NotBoundException) cause;
+			} else if (cause instanceof MalformedURLException) {
+				throw (MalformedURLException) cause;
+			}
+			throw new RemoteException("Lookup of " + peerId + " failed", cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Lookup of " + peerId + " interrupted");
+		}
+	}
+
+	/**
+	 * Removes the stub of a peer, so the next call looks it up again
+	 * 
+	 * @param peerId
+	 */
+	public void evict(int peerId) {
+		stubs.remove(peerId);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+}
@@ -0,0 +1,58 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Changes in the content summary that a peer advertises to a neighbor: the
+ * words of the attenuated Bloom filter which have changed since the last
+ * update, each one with its level and its index in the filter.
+ * 
+ * @author palvare3
+ * 
+ */
+public class SummaryDelta implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private int[] levels;
+	private int[] indexes;
+	private long[] words;
+
+	public SummaryDelta(int[] levels, int[] indexes, long[] words) {
+		this.levels = levels;
+		this.indexes = indexes;
+		this.words = words;
+	}
+
+	public int size() {
+		return words.length;
+	}
+
+	public int getLevel(int i) {
+		return levels[i];
+	}
+
+	public int getIndex(int i) {
+		return indexes[i];
+	}
+
+	public long getWord(int i) {
+		return words[i];
+	}
+
+	/**
+	 * Writes the delta in the binary form of PeerProtocol
+	 */
+	public void write(DataOutput out) throws IOException {
+		PeerProtocol.writeInts(out, levels);
+		PeerProtocol.writeInts(out, indexes);
+		PeerProtocol.writeLongs(out, words);
+	}
+
+	public static SummaryDelta read(DataInput in) throws IOException {
+		return new SummaryDelta(PeerProtocol.readInts(in),
+				PeerProtocol.readInts(in), PeerProtocol.readLongs(in));
+	}
+
+}
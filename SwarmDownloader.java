@@ -0,0 +1,400 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Downloads a file from several peers at the same time. The file is split in
+ * pieces of PIECE_SIZE bytes and there is a worker per source which takes the
+ * next pending piece as soon as it has finished the previous one, so faster
+ * peers end up serving more pieces. Pieces which fail are queued again, and
+ * pieces which take too long are requested again by idle workers.
+ * 
+ * Only the sources holding the newest version are used, and their version is
+ * checked again once the pieces are written, so the file is never a mix of
+ * versions. The file is staged as a partial download (see PartialDownload)
+ * where only the pieces which have passed that check are recorded, so an
+ * interrupted download goes on from them.
+ * 
+ * @author palvare3
+ * 
+ */
+public class SwarmDownloader {
+
+	public static final int PIECE_SIZE = 4 * Peer.CHUNK_SIZE;
+
+	// A piece in flight for longer than this time (ms) is requested again by
+	// idle workers
+	private static final long SLOW_PIECE_TIMEOUT = 2000;
+
+	// Failures after which a source is abandoned
+	private static final int MAX_FAILURES = 3;
+
+	private static final long POLL_INTERVAL = 100;
+
+	// States of a piece
+	private static final int PIECE_PENDING = 0;
+	private static final int PIECE_IN_FLIGHT = 1;
+	private static final int PIECE_DUPLICATED = 2;
+	private static final int PIECE_DONE = 3;
+
+	private Peer peer;
+
+	private Clock clock;
+
+	private String filename;
+
+	private long length;
+
+	private AtomicIntegerArray pieceStates;
+
+	// Value of Clock.nanoTime() when each piece was first requested
+	private AtomicLongArray pieceStartTimes;
+
+	private LinkedBlockingQueue<Integer> pendingPieces;
+
+	private AtomicInteger remainingPieces;
+
+	private PartialDownload partial;
+
+	private FileChannel channel;
+
+	public SwarmDownloader(Peer p) {
+		this.peer = p;
+		this.clock = p.getClock();
+	}
+
+	/**
+	 * Downloads a file from all the valid sources and registers it in the
+	 * downloaded files
+	 * 
+	 * @param filename
+	 * @param hits
+	 *            Hits returned by the search, whose metadata and length are
+	 *            used without asking the sources again
+	 * @return true if the file has been downloaded and registered
+	 */
+	public boolean download(String filename, QueryHits hits) {
+		this.filename = filename;
+
+		// Only the sources with the newest version are used
+		QueryHits newest = hits.newest();
+		if (newest.isEmpty()) {
+			System.out.println("No sources available for " + filename);
+			return false;
+		}
+		int[] metadata = newest.getMetadata(0);
+		length = newest.getLength(0);
+
+		List<Integer> validSources = newest.getSources();
+		System.out.println("Downloading " + filename + " version "
+				+ metadata[0] + " from " + validSources);
+
+		int version = metadata[0];
+		List<SourceWorker> workers = new ArrayList<SourceWorker>();
+		for (Integer sourceId : validSources) {
+			try {
+				workers.add(new SourceWorker(sourceId, peer
+						.getPeerInterface(sourceId)));
+			} catch (Exception e) {
+				System.out.println("Source " + sourceId + " not available");
+				peer.evictPeerInterface(sourceId);
+			}
+		}
+		if (workers.isEmpty()) {
+			System.out.println("No sources available for " + filename);
+			return false;
+		}
+
+		try {
+			partial = PartialDownload.open(peer, filename, metadata, length);
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			closeAll(workers);
+			return false;
+		}
+		channel = partial.getChannel();
+
+		// Pieces written by a previous attempt at the same version are kept
+		int nPieces = (int) ((length + PIECE_SIZE - 1) / PIECE_SIZE);
+		pieceStates = new AtomicIntegerArray(nPieces);
+		pieceStartTimes = new AtomicLongArray(nPieces);
+		pendingPieces = new LinkedBlockingQueue<Integer>();
+		remainingPieces = new AtomicInteger(0);
+		for (int i = 0; i < nPieces; i++) {
+			long offset = (long) i * PIECE_SIZE;
+			if (partial.isCompleted(offset, Math.min(offset + PIECE_SIZE,
+					length))) {
+				pieceStates.set(i, PIECE_DONE);
+			} else {
+				remainingPieces.incrementAndGet();
+				pendingPieces.add(i);
+			}
+		}
+
+		boolean completed = false;
+		try {
+			while ((remainingPieces.get() > 0) && !workers.isEmpty()) {
+				runWorkers(workers);
+				workers = verifySources(workers, version);
+			}
+			if (remainingPieces.get() == 0) {
+				partial.complete();
+				completed = true;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			closeAll(workers);
+			if (!completed) {
+				// Kept to be resumed by the next download of this version
+				partial.close();
+			}
+		}
+
+		if (!completed) {
+			System.out.println("Download of " + filename
+					+ " failed, no sources left");
+			return false;
+		}
+
+		// The hits do not give leases, see Peer.acquireLease()
+		new FileDownloader(peer).register(filename, metadata, false);
+		return true;
+	}
+
+	/**
+	 * Runs a worker per source until all pieces are done or all workers have
+	 * failed
+	 * 
+	 * @param workers
+	 * @throws InterruptedException
+	 */
+	private void runWorkers(List<SourceWorker> workers)
+			throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(workers.size());
+		for (SourceWorker worker : workers) {
+			pool.execute(worker);
+		}
+		pool.shutdown();
+		while (!pool.awaitTermination(POLL_INTERVAL, TimeUnit.MILLISECONDS))
+			;
+	}
+
+	/**
+	 * Checks the version of every source which has served pieces. Pieces
+	 * served by sources whose version has changed are queued again, and the
+	 * rest are recorded in the partial download.
+	 * 
+	 * @param workers
+	 * @param version
+	 *            Version being downloaded
+	 * @return The workers which can still be used
+	 */
+	private List<SourceWorker> verifySources(List<SourceWorker> workers,
+			int version) throws IOException {
+		List<SourceWorker> valid = new ArrayList<SourceWorker>();
+		Set<Integer> verified = new HashSet<Integer>();
+		Set<Integer> discarded = new HashSet<Integer>();
+
+		for (SourceWorker worker : workers) {
+			boolean sameVersion = false;
+			try {
+				int[] m = worker.stub.checkMetadata(filename, peer.getId());
+				sameVersion = (m != null) && (m[0] == version);
+			} catch (Exception e) {
+				sameVersion = false;
+				peer.evictPeerInterface(worker.sourceId);
+			}
+
+			if (sameVersion) {
+				verified.addAll(worker.written);
+				worker.written.clear();
+				if (!worker.hasFailed()) {
+					valid.add(worker);
+				} else {
+					worker.close();
+				}
+			} else {
+				System.out.println("Version of " + filename + " changed in "
+						+ worker.sourceId + ", discarding its pieces");
+				for (Integer piece : worker.written) {
+					discarded.add(piece);
+					if (pieceStates.getAndSet(piece, PIECE_PENDING) == PIECE_DONE) {
+						remainingPieces.incrementAndGet();
+					}
+					pendingPieces.offer(piece);
+				}
+				worker.close();
+			}
+		}
+
+		// A piece also written by a discarded source will be written again
+		verified.removeAll(discarded);
+		for (Integer piece : verified) {
+			long offset = (long) piece * PIECE_SIZE;
+			partial.markCompleted(offset, Math.min(offset + PIECE_SIZE,
+					length));
+		}
+		return valid;
+	}
+
+	/**
+	 * @return A piece in flight for longer than SLOW_PIECE_TIMEOUT which has
+	 *         not been requested again yet, or null
+	 */
+	private Integer findSlowPiece() {
+		long now = clock.nanoTime();
+		long timeout = TimeUnit.MILLISECONDS.toNanos(SLOW_PIECE_TIMEOUT);
+		for (int i = 0; i < pieceStates.length(); i++) {
+			if ((pieceStates.get(i) == PIECE_IN_FLIGHT)
+					&& (now - pieceStartTimes.get(i) > timeout)
+					&& pieceStates.compareAndSet(i, PIECE_IN_FLIGHT,
+							PIECE_DUPLICATED)) {
+				return i;
+			}
+		}
+		return null;
+	}
+
+	private void closeAll(List<SourceWorker> workers) {
+		for (SourceWorker worker : workers) {
+			worker.close();
+		}
+	}
+
+	/**
+	 * Downloads pieces from a single source. It uses the data port of the
+	 * source and falls back to the chunked RMI transfer if it is not
+	 * available.
+	 */
+	private class SourceWorker implements Runnable {
+
+		private int sourceId;
+
+		private PeerServerInterface stub;
+
+		private DataClient client;
+
+		private TransferInfo transfer;
+
+		private int failures = 0;
+
+		// Pieces written by this source since its version was last checked
+		private List<Integer> written = new ArrayList<Integer>();
+
+		public SourceWorker(int sourceId, PeerServerInterface stub) {
+			this.sourceId = sourceId;
+			this.stub = stub;
+		}
+
+		@Override
+		public void run() {
+			while ((remainingPieces.get() > 0) && !hasFailed()) {
+				Integer piece;
+				try {
+					piece = pendingPieces.poll(POLL_INTERVAL,
+							TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (piece == null) {
+					piece = findSlowPiece();
+					if (piece == null) {
+						continue;
+					}
+				} else if (!pieceStates.compareAndSet(piece, PIECE_PENDING,
+						PIECE_IN_FLIGHT)) {
+					continue;
+				} else {
+					pieceStartTimes.set(piece, clock.nanoTime());
+				}
+
+				try {
+					fetchPiece(piece);
+					written.add(piece);
+					if (pieceStates.getAndSet(piece, PIECE_DONE) != PIECE_DONE) {
+						remainingPieces.decrementAndGet();
+					}
+				} catch (IOException e) {
+					failures++;
+					System.out.println("Piece " + piece + " failed in "
+							+ sourceId + ": " + e.getMessage());
+					close();
+					if (pieceStates.get(piece) != PIECE_DONE) {
+						pieceStates.set(piece, PIECE_PENDING);
+						pendingPieces.offer(piece);
+					}
+				}
+			}
+		}
+
+		private void fetchPiece(int piece) throws IOException {
+			connect();
+			long offset = (long) piece * PIECE_SIZE;
+			long size = Math.min(PIECE_SIZE, length - offset);
+
+			if (client != null) {
+				long n = client.fetch(filename, offset, size, channel, offset);
+				if ((n != size) || (client.getFileLength() != length)) {
+					throw new IOException("Unexpected length");
+				}
+			} else {
+				long position = offset;
+				while (position < offset + size) {
+					byte[] chunk = stub.readChunk(transfer.getTransferId(),
+							position, (int) Math.min(Peer.CHUNK_SIZE, offset
+									+ size - position));
+					if (chunk.length == 0) {
+						throw new IOException("Unexpected end of file");
+					}
+					ByteBuffer buffer = ByteBuffer.wrap(chunk);
+					while (buffer.hasRemaining()) {
+						position += channel.write(buffer, position);
+					}
+				}
+			}
+		}
+
+		private void connect() throws IOException {
+			if ((client != null) || (transfer != null)) {
+				return;
+			}
+			try {
+				client = new DataClient(sourceId);
+			} catch (IOException e) {
+				transfer = stub.openTransfer(filename);
+			}
+		}
+
+		public boolean hasFailed() {
+			return failures >= MAX_FAILURES;
+		}
+
+		public void close() {
+			if (client != null) {
+				client.close();
+				client = null;
+			}
+			if (transfer != null) {
+				try {
+					stub.closeTransfer(transfer.getTransferId());
+				} catch (Exception e) {
+				}
+				transfer = null;
+			}
+		}
+
+	}
+
+}
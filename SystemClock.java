@@ -0,0 +1,57 @@
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clock of a standalone peer: the system time, and a daemon thread which runs
+ * the timers. The thread is only started with the first timer, so clocks used
+ * just to read the time cost nothing.
+ * 
+ * @author palvare3
+ * 
+ */
+public class SystemClock implements Clock {
+
+	private final String threadName;
+
+	private ScheduledThreadPoolExecutor executor;
+
+	/**
+	 * @param threadName
+	 *            Name of the thread which runs the timers
+	 */
+	public SystemClock(String threadName) {
+		this.threadName = threadName;
+	}
+
+	@Override
+	public long nanoTime() {
+		return System.nanoTime();
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	@Override
+	public synchronized Future<?> schedule(Runnable task, long delay) {
+		if (executor == null) {
+			executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, threadName);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			// Cancelled timers are removed from the queue right away, so
+			// timers which are replaced many times do not pile up
+			executor.setRemoveOnCancelPolicy(true);
+		}
+		return executor.schedule(task, Math.max(delay, 0),
+				TimeUnit.MILLISECONDS);
+	}
+
+}
@@ -0,0 +1,102 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+/**
+ * Single scheduler for the TTR expirations of the downloaded files in pull
+ * mode. Each file has its own deadline, measured with the monotonic clock,
+ * and only the files whose deadline has passed are marked as expired, so the
+ * cost of an expiration does not depend on the number of downloads.
+ * 
+ * @author palvare3
+ * 
+ */
+public class TTRScheduler {
+
+	private Peer peer;
+
+	private Clock timer;
+
+	private Map<String, Expiration> expirations = new ConcurrentHashMap<String, Expiration>();
+
+	public TTRScheduler(Peer p) {
+		this(p, new SystemClock("ttr-scheduler"));
+	}
+
+	/**
+	 * @param p
+	 * @param timer
+	 *            Runs the expirations. The SystemClock removes cancelled
+	 *            expirations from its queue right away, so files refreshed
+	 *            many times do not pile up.
+	 */
+	public TTRScheduler(Peer p, Clock timer) {
+		this.peer = p;
+		this.timer = timer;
+	}
+
+	/**
+	 * Sets the TTR of a file, replacing the previous one
+	 * 
+	 * @param filename
+	 * @param ttr
+	 *            Time (ms) until the file expires
+	 */
+	public void schedule(String filename, int ttr) {
+		Expiration expiration = new Expiration(filename);
+
+		// The expiration is registered before it is scheduled, so it can
+		// check it is still the current one when it runs
+		Expiration previous = expirations.put(filename, expiration);
+		if (previous != null) {
+			previous.cancel();
+		}
+		expiration.future = timer.schedule(expiration, ttr);
+	}
+
+	/**
+	 * Stops tracking the TTR of a file
+	 * 
+	 * @param filename
+	 */
+	public void cancel(String filename) {
+		Expiration expiration = expirations.remove(filename);
+		if (expiration != null) {
+			expiration.cancel();
+		}
+	}
+
+	/**
+	 * The TTR deadline of a file. Once it has run it stays in the table until
+	 * the file is refreshed or invalidated.
+	 */
+	private class Expiration implements Runnable {
+
+		private String filename;
+
+		private volatile Future<?> future;
+
+		public Expiration(String filename) {
+			this.filename = filename;
+		}
+
+		@Override
+		public void run() {
+			// An expiration replaced while it was about to run is ignored
+			if (expirations.get(filename) == this) {
+				peer.getLog().log(PeerLog.REFRESH, Level.INFO,
+						"TTR of {} expired", filename);
+				peer.expireTTR(filename);
+			}
+		}
+
+		public void cancel() {
+			if (future != null) {
+				future.cancel(false);
+			}
+		}
+
+	}
+
+}
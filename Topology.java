@@ -0,0 +1,194 @@
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Shape of the network built by the simulator, see NetworkSimulator. A
+ * topology decides the neighbors of each peer, which the simulator writes to
+ * the peer.properties file of the peer. Every peer needs at least one
+ * neighbor.
+ * 
+ * The built-in topologies are line, ring, star, grid and random. Other
+ * topologies are plugged in by passing the name of a subclass with a public
+ * constructor without arguments.
+ * 
+ * @author palvare3
+ * 
+ */
+public abstract class Topology {
+
+	/**
+	 * @param peers
+	 *            Number of peers, with ids from 1 to peers
+	 * @param degree
+	 *            Neighbors wanted for each peer, for the topologies which can
+	 *            choose it
+	 * @param random
+	 *            Seeded source of randomness
+	 * @return The neighbors of each peer by peer id. Links go both ways.
+	 */
+	public abstract Map<Integer, Set<Integer>> connect(int peers, int degree,
+			Random random);
+
+	/**
+	 * @param name
+	 *            Name of a built-in topology or of a subclass of Topology
+	 * @return The topology
+	 * @throws IllegalArgumentException
+	 *             if the topology does not exist
+	 */
+	public static Topology forName(String name) {
+		if (name.equals("line")) {
+			return new Line();
+		} else if (name.equals("ring")) {
+			return new Ring();
+		} else if (name.equals("star")) {
+			return new Star();
+		} else if (name.equals("grid")) {
+			return new Grid();
+		} else if (name.equals("random")) {
+			return new RandomGraph();
+		}
+
+		try {
+			return Class.forName(name).asSubclass(Topology.class)
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("Unknown topology " + name, e);
+		} catch (ClassCastException e) {
+			throw new IllegalArgumentException(name + " is not a Topology", e);
+		}
+	}
+
+	/**
+	 * @return A network of peers without links, ordered by id so the
+	 *         neighbors are always listed in the same order
+	 */
+	protected static Map<Integer, Set<Integer>> empty(int peers) {
+		Map<Integer, Set<Integer>> neighbors = new TreeMap<Integer, Set<Integer>>();
+		for (int id = 1; id <= peers; id++) {
+			neighbors.put(id, new TreeSet<Integer>());
+		}
+		return neighbors;
+	}
+
+	/**
+	 * Links two peers both ways
+	 */
+	protected static void link(Map<Integer, Set<Integer>> neighbors, int a,
+			int b) {
+		if (a != b) {
+			neighbors.get(a).add(b);
+			neighbors.get(b).add(a);
+		}
+	}
+
+	/**
+	 * Peers in a row: the longest paths for a number of peers
+	 */
+	public static class Line extends Topology {
+
+		@Override
+		public Map<Integer, Set<Integer>> connect(int peers, int degree,
+				Random random) {
+			Map<Integer, Set<Integer>> neighbors = empty(peers);
+			for (int id = 1; id < peers; id++) {
+				link(neighbors, id, id + 1);
+			}
+			return neighbors;
+		}
+
+	}
+
+	/**
+	 * A line whose ends are linked
+	 */
+	public static class Ring extends Topology {
+
+		@Override
+		public Map<Integer, Set<Integer>> connect(int peers, int degree,
+				Random random) {
+			Map<Integer, Set<Integer>> neighbors = new Line().connect(peers,
+					degree, random);
+			link(neighbors, peers, 1);
+			return neighbors;
+		}
+
+	}
+
+	/**
+	 * Every peer is linked to peer 1 only
+	 */
+	public static class Star extends Topology {
+
+		@Override
+		public Map<Integer, Set<Integer>> connect(int peers, int degree,
+				Random random) {
+			Map<Integer, Set<Integer>> neighbors = empty(peers);
+			for (int id = 2; id <= peers; id++) {
+				link(neighbors, 1, id);
+			}
+			return neighbors;
+		}
+
+	}
+
+	/**
+	 * Square mesh, filled row by row: each peer is linked to the peers above,
+	 * below, left and right of it
+	 */
+	public static class Grid extends Topology {
+
+		@Override
+		public Map<Integer, Set<Integer>> connect(int peers, int degree,
+				Random random) {
+			Map<Integer, Set<Integer>> neighbors = empty(peers);
+			int side = (int) Math.ceil(Math.sqrt(peers));
+			for (int id = 1; id <= peers; id++) {
+				int column = (id - 1) % side;
+				if ((column + 1 < side) && (id + 1 <= peers)) {
+					link(neighbors, id, id + 1);
+				}
+				if (id + side <= peers) {
+					link(neighbors, id, id + side);
+				}
+			}
+			return neighbors;
+		}
+
+	}
+
+	/**
+	 * A ring, so the network is connected, plus random links until each peer
+	 * has about degree neighbors
+	 */
+	public static class RandomGraph extends Topology {
+
+		@Override
+		public Map<Integer, Set<Integer>> connect(int peers, int degree,
+				Random random) {
+			Map<Integer, Set<Integer>> neighbors = new Ring().connect(peers,
+					degree, random);
+			if (peers <= degree) {
+				return neighbors;
+			}
+
+			for (int id = 1; id <= peers; id++) {
+				// Peers which already have enough neighbors are avoided,
+				// unless no other peer is found after a few tries
+				for (int tries = 0; neighbors.get(id).size() < degree; tries++) {
+					int other = 1 + random.nextInt(peers);
+					if ((neighbors.get(other).size() < degree)
+							|| (tries >= 4 * degree)) {
+						link(neighbors, id, other);
+					}
+				}
+			}
+			return neighbors;
+		}
+
+	}
+
+}
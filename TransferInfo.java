@@ -0,0 +1,49 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Describes a file transfer opened in a remote peer. It is returned by
+ * PeerServerInterface.openTransfer() and identifies the transfer in the
+ * following chunk requests.
+ * 
+ * @author palvare3
+ * 
+ */
+public class TransferInfo implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private int transferId;
+	private long length;
+
+	public TransferInfo(int transferId, long length) {
+		this.transferId = transferId;
+		this.length = length;
+	}
+
+	public int getTransferId() {
+		return transferId;
+	}
+
+	/**
+	 * @return Total length of the file in bytes
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Writes the transfer in the binary form of PeerProtocol
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(transferId);
+		out.writeLong(length);
+	}
+
+	public static TransferInfo read(DataInput in) throws IOException {
+		return new TransferInfo(in.readInt(), in.readLong());
+	}
+
+}
@@ -0,0 +1,124 @@
+import java.util.PriorityQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clock of a discrete-event simulation. Time does not pass on its own: the
+ * timers are kept in a queue ordered by their due time and run() executes them
+ * one after the other, jumping the clock to the due time of each. Timers due
+ * at the same time run in the order they were scheduled, so a simulation with
+ * the same inputs always runs the same way.
+ * 
+ * Everything runs in the thread which calls run().
+ * 
+ * @author palvare3
+ * 
+ */
+public class VirtualClock implements Clock {
+
+	// Current time (ms) since the start of the simulation
+	private long now = 0;
+
+	// Order of the timers due at the same time
+	private long sequence = 0;
+
+	private long executed = 0;
+
+	private PriorityQueue<Event> events = new PriorityQueue<Event>();
+
+	@Override
+	public synchronized long nanoTime() {
+		return TimeUnit.MILLISECONDS.toNanos(now);
+	}
+
+	@Override
+	public synchronized long currentTimeMillis() {
+		return now;
+	}
+
+	@Override
+	public synchronized Future<?> schedule(Runnable task, long delay) {
+		Event event = new Event(task, now + Math.max(delay, 0), sequence++);
+		events.add(event);
+		return event;
+	}
+
+	/**
+	 * Runs the timers due until a time, in order. Timers scheduled while they
+	 * run are executed too if they are due in time.
+	 * 
+	 * @param until
+	 *            Time (ms since the start) at which the simulation stops
+	 */
+	public void run(long until) {
+		while (true) {
+			Event event;
+			synchronized (this) {
+				event = events.peek();
+				if ((event == null) || (event.time > until)) {
+					now = Math.max(now, until);
+					return;
+				}
+				events.poll();
+				now = event.time;
+			}
+
+			// Cancelled timers stay in the queue until they are due
+			if (!event.isCancelled()) {
+				executed++;
+				event.run();
+			}
+		}
+	}
+
+	/**
+	 * @return Number of timers executed so far
+	 */
+	public synchronized long getExecuted() {
+		return executed;
+	}
+
+	/**
+	 * @return Number of timers waiting in the queue, cancelled ones included
+	 */
+	public synchronized int getPending() {
+		return events.size();
+	}
+
+	/**
+	 * A timer in the queue
+	 */
+	private static class Event extends FutureTask<Object> implements
+			Comparable<Event> {
+
+		private final long time;
+
+		private final long sequence;
+
+		public Event(Runnable task, long time, long sequence) {
+			super(task, null);
+			this.time = time;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Event other) {
+			if (time != other.time) {
+				return (time < other.time) ? -1 : 1;
+			}
+			return (sequence < other.sequence) ? -1
+					: ((sequence == other.sequence) ? 0 : 1);
+		}
+
+		@Override
+		protected void setException(Throwable t) {
+			// Nobody waits for the result of a timer, so the failure would be
+			// lost otherwise
+			t.printStackTrace();
+			super.setException(t);
+		}
+
+	}
+
+}
@@ -0,0 +1,43 @@
+package nutpeers.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and writes the results as JSON, to jmh-result.json by
+ * default, so runs of different versions can be compared. Takes the usual JMH
+ * command line options, e.g. a regular expression to run only some
+ * benchmarks, or -rf / -rff to change the report.
+ * 
+ * @author palvare3
+ * 
+ */
+public class BenchmarkRunner {
+
+	private static final String DEFAULT_REPORT = "jmh-result.json";
+
+	public static void main(String[] args) throws RunnerException,
+			CommandLineOptionException {
+		CommandLineOptions options = new CommandLineOptions(args);
+		ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+
+		if (options.getIncludes().isEmpty()) {
+			builder.include(BenchmarkRunner.class.getPackage().getName()
+					+ "\\..*");
+		}
+		if (!options.getResultFormat().hasValue()) {
+			builder.resultFormat(ResultFormatType.JSON);
+		}
+		if (!options.getResult().hasValue()) {
+			builder.result(DEFAULT_REPORT);
+		}
+
+		new Runner(builder.build()).run();
+	}
+
+}
@@ -0,0 +1,118 @@
+package nutpeers.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups of the files table of a peer with 10k to 1M downloaded files:
+ * Peer.hasFile() (FileMetadataStore.getValidity()), the reads done by
+ * Peer.getMetadata() (a snapshot of version and master plus the TTR deadline)
+ * and the TTR bookkeeping of a refresh. The last one replaces
+ * getMinimumTTR(): the scan for the smallest TTR is gone and each refresh
+ * reschedules the expiration of its file in TTRScheduler.
+ * 
+ * @author palvare3
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class FileMetadataBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int entries;
+
+	private String[] filenames;
+
+	private Object store;
+
+	private Object scheduler;
+
+	private MethodHandle getValidity;
+
+	private MethodHandle getSnapshot;
+
+	private MethodHandle getTTRDeadline;
+
+	private MethodHandle schedule;
+
+	@Setup
+	public void setup() throws Throwable {
+		store = PeerClasses.constructor("FileMetadataStore").invoke();
+		MethodHandle putDownloaded = PeerClasses.method("FileMetadataStore",
+				"putDownloaded", void.class, String.class, int.class,
+				int.class, int.class, long.class);
+		getValidity = PeerClasses.method("FileMetadataStore", "getValidity",
+				int.class, String.class);
+		getSnapshot = PeerClasses.method("FileMetadataStore", "getSnapshot",
+				int[].class, String.class);
+		getTTRDeadline = PeerClasses.method("FileMetadataStore",
+				"getTTRDeadline", long.class, String.class);
+
+		// The scheduler only calls back the peer when a file expires, which
+		// does not happen within a run
+		scheduler = PeerClasses.constructor("TTRScheduler",
+				PeerClasses.load("Peer")).invoke(null);
+		schedule = PeerClasses.method("TTRScheduler", "schedule", void.class,
+				String.class, int.class);
+
+		int valid = PeerClasses.constant("Peer", "FILE_VALID");
+		long deadline = System.nanoTime() + TimeUnit.HOURS.toNanos(1);
+		filenames = new String[entries];
+		for (int i = 0; i < entries; i++) {
+			filenames[i] = "file" + i + ".txt";
+			putDownloaded.invokeExact(store, filenames[i], i, valid, i % 64,
+					deadline);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		filenames = null;
+		store = null;
+		scheduler = null;
+	}
+
+	private String randomFile() {
+		return filenames[ThreadLocalRandom.current().nextInt(entries)];
+	}
+
+	@Benchmark
+	public int hasFile() throws Throwable {
+		return (int) getValidity.invokeExact(store, randomFile());
+	}
+
+	@Benchmark
+	public long getMetadata() throws Throwable {
+		String filename = randomFile();
+		int[] snapshot = (int[]) (Object) getSnapshot.invokeExact(store,
+				filename);
+		long deadline = (long) getTTRDeadline.invokeExact(store, filename);
+		return snapshot[0] + snapshot[1] + deadline;
+	}
+
+	@Benchmark
+	public void refreshTTR() throws Throwable {
+		schedule.invokeExact(scheduler, randomFile(), 3600000);
+	}
+
+}
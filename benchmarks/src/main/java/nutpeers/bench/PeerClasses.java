@@ -0,0 +1,95 @@
+package nutpeers.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Access to the classes of the peer, which live in the default package and
+ * therefore cannot be imported from a named package (JMH refuses benchmarks
+ * in the default package). Every call goes through a MethodHandle resolved
+ * once in the setup of the benchmark, whose cost is a few nanoseconds and
+ * the same in every run, so results can be compared between versions.
+ * 
+ * @author palvare3
+ * 
+ */
+final class PeerClasses {
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles
+			.publicLookup();
+
+	private PeerClasses() {
+	}
+
+	static Class<?> load(String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException(name + " not in the classpath", e);
+		}
+	}
+
+	/**
+	 * @return Handle of a public constructor, typed to return Object
+	 */
+	static MethodHandle constructor(String className, Class<?>... parameters) {
+		try {
+			MethodHandle handle = LOOKUP.findConstructor(load(className),
+					MethodType.methodType(void.class, parameters));
+			return handle.asType(handle.type().changeReturnType(Object.class));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return Handle of a public instance method, typed to take the receiver
+	 *         as an Object and to return Object unless it returns a primitive
+	 */
+	static MethodHandle method(String className, String name,
+			Class<?> returnType, Class<?>... parameters) {
+		try {
+			MethodHandle handle = LOOKUP.findVirtual(load(className), name,
+					MethodType.methodType(returnType, parameters));
+			return erase(handle.asType(handle.type().changeParameterType(0,
+					Object.class)));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return Handle of a public static method, typed to return Object unless
+	 *         it returns a primitive
+	 */
+	static MethodHandle staticMethod(String className, String name,
+			Class<?> returnType, Class<?>... parameters) {
+		try {
+			return erase(LOOKUP.findStatic(load(className), name,
+					MethodType.methodType(returnType, parameters)));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return The value of a public static int field
+	 */
+	static int constant(String className, String name) {
+		try {
+			return load(className).getField(name).getInt(null);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static MethodHandle erase(MethodHandle handle) {
+		Class<?> returnType = handle.type().returnType();
+		if (returnType.isPrimitive()) {
+			return handle;
+		}
+		return handle.asType(handle.type().changeReturnType(Object.class));
+	}
+
+}
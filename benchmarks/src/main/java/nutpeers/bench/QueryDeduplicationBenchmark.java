@@ -0,0 +1,96 @@
+package nutpeers.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Duplicate detection of PeerBinder.queryServer(), which checks every query
+ * received against the ids seen recently (SeenQueries). Measures new queries,
+ * which are registered, and duplicates, which are dropped, from several RMI
+ * threads at once.
+ * 
+ * @author palvare3
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class QueryDeduplicationBenchmark {
+
+	// Queries already seen, which are looked up as duplicates
+	private static final int SEEN_QUERIES = 4096;
+
+	private MethodHandle markSeen;
+
+	private Object seenQueries;
+
+	private long[] seen;
+
+	@State(Scope.Thread)
+	public static class QuerySequence {
+
+		private long next;
+
+		private int index;
+
+		@Setup
+		public void setup() {
+			// Each thread sends queries with its own peer id, as peers do
+			next = (long) System.identityHashCode(this) << 32;
+		}
+
+	}
+
+	@Setup
+	public void setup() throws Throwable {
+		markSeen = PeerClasses.method("SeenQueries", "markSeen",
+				boolean.class, long.class);
+		seenQueries = PeerClasses.constructor("SeenQueries").invoke();
+
+		seen = new long[SEEN_QUERIES];
+		for (int i = 0; i < SEEN_QUERIES; i++) {
+			seen[i] = (1L << 62) | i;
+		}
+	}
+
+	/**
+	 * Marks the duplicates again before every iteration, since queries are
+	 * forgotten after SeenQueries.WINDOW
+	 */
+	@Setup(Level.Iteration)
+	public void markDuplicates() throws Throwable {
+		for (long queryId : seen) {
+			boolean first = (boolean) markSeen.invokeExact(seenQueries,
+					queryId);
+		}
+	}
+
+	@Benchmark
+	public boolean newQuery(QuerySequence sequence) throws Throwable {
+		return (boolean) markSeen.invokeExact(seenQueries, sequence.next++);
+	}
+
+	@Benchmark
+	public boolean duplicateQuery(QuerySequence sequence) throws Throwable {
+		long queryId = seen[sequence.index++ & (SEEN_QUERIES - 1)];
+		return (boolean) markSeen.invokeExact(seenQueries, queryId);
+	}
+
+}
@@ -0,0 +1,133 @@
+package nutpeers.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Java serialization, as done by RMI, of the arguments and results of the
+ * peer calls: the sources returned by queryServer(), an invalidation batch,
+ * the answer of obtainIfNewer() with its first chunk, a transfer handle, a
+ * block patch and a content summary delta. Each operation writes and reads
+ * the object back.
+ * 
+ * @author palvare3
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+	@Param({ "QuerySources", "InvalidationBatch", "ObtainResult",
+			"TransferInfo", "DeltaPatch", "SummaryDelta" })
+	public String type;
+
+	private Object value;
+
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+			256 * 1024);
+
+	@Setup
+	public void setup() throws Throwable {
+		int chunkSize = PeerClasses.constant("Peer", "CHUNK_SIZE");
+		int[] metadata = { 3, 1, 6000 };
+
+		if (type.equals("QuerySources")) {
+			Set<Integer> sources = new HashSet<Integer>();
+			for (int i = 0; i < 16; i++) {
+				sources.add(i);
+			}
+			value = sources;
+		} else if (type.equals("InvalidationBatch")) {
+			Map<String, Integer> batch = new HashMap<String, Integer>();
+			for (int i = 0; i < 1000; i++) {
+				batch.put("file" + i + ".txt", i);
+			}
+			value = batch;
+		} else if (type.equals("TransferInfo")) {
+			value = transferInfo();
+		} else if (type.equals("ObtainResult")) {
+			MethodHandle modified = PeerClasses.staticMethod("ObtainResult",
+					"modified", PeerClasses.load("ObtainResult"), int[].class,
+					long.class, int.class, byte[].class,
+					PeerClasses.load("TransferInfo"));
+			value = modified.invoke(metadata, 16L * chunkSize, 0,
+					new byte[chunkSize], transferInfo());
+		} else if (type.equals("DeltaPatch")) {
+			// A patch with four changed blocks
+			int blockSize = PeerClasses.constant("DeltaPatch", "BLOCK_SIZE");
+			File file = File.createTempFile("patch", ".bin");
+			try {
+				FileOutputStream out = new FileOutputStream(file);
+				out.write(new byte[4 * blockSize]);
+				out.close();
+				MethodHandle create = PeerClasses.staticMethod("DeltaPatch",
+						"create", PeerClasses.load("DeltaPatch"),
+						String.class, int[].class, long[].class, long.class);
+				value = create.invoke(file.getPath(), metadata, new long[0],
+						file.length());
+			} finally {
+				file.delete();
+			}
+		} else if (type.equals("SummaryDelta")) {
+			// The words changed by a few files in every level
+			int words = 64;
+			int[] levels = new int[words];
+			int[] indexes = new int[words];
+			long[] changed = new long[words];
+			for (int i = 0; i < words; i++) {
+				levels[i] = i % 6;
+				indexes[i] = i * 17;
+				changed[i] = 1L << i;
+			}
+			value = PeerClasses.constructor("SummaryDelta", int[].class,
+					int[].class, long[].class).invoke(levels, indexes, changed);
+		} else {
+			throw new IllegalArgumentException("Unknown type " + type);
+		}
+	}
+
+	private static Object transferInfo() throws Throwable {
+		return PeerClasses.constructor("TransferInfo", int.class, long.class)
+				.invoke(42, 1L << 20);
+	}
+
+	@Benchmark
+	public Object roundTrip() throws IOException, ClassNotFoundException {
+		buffer.reset();
+		ObjectOutputStream out = new ObjectOutputStream(buffer);
+		out.writeObject(value);
+		out.close();
+
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+				buffer.toByteArray()));
+		return in.readObject();
+	}
+
+}
@@ -0,0 +1,131 @@
+package nutpeers.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serving side of obtain by file size: the file is opened as a transfer and
+ * read chunk by chunk, as PeerBinder does for obtainIfNewer() and readChunk(),
+ * raw or compressed with Deflate (see Compression). Text files compress well,
+ * random ones do not and measure the cost of the compression bypass. The RMI
+ * round trips are not included.
+ * 
+ * @author palvare3
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+
+	@Param({ "65536", "1048576", "16777216" })
+	public int size;
+
+	@Param({ "text", "random" })
+	public String content;
+
+	@Param({ "none", "deflate" })
+	public String codec;
+
+	private File file;
+
+	private int codecId;
+
+	private boolean compressed;
+
+	private int chunkSize;
+
+	private MethodHandle newTransfer;
+
+	private MethodHandle read;
+
+	private MethodHandle close;
+
+	private MethodHandle encode;
+
+	@Setup
+	public void setup() throws IOException {
+		newTransfer = PeerClasses.constructor("FileTransfer", String.class);
+		read = PeerClasses.method("FileTransfer", "read", byte[].class,
+				long.class, int.class);
+		close = PeerClasses.method("FileTransfer", "close", void.class);
+		encode = PeerClasses.staticMethod("Compression", "encode",
+				byte[].class, byte[].class, int.class);
+		chunkSize = PeerClasses.constant("Peer", "CHUNK_SIZE");
+		codecId = codec.equals("deflate") ? PeerClasses.constant(
+				"Compression", "DEFLATE") : PeerClasses.constant(
+				"Compression", "NONE");
+		compressed = codec.equals("deflate");
+
+		file = File.createTempFile("transfer", ".bin");
+		OutputStream out = new FileOutputStream(file);
+		try {
+			Random random = new Random(size);
+			byte[] block = new byte[4096];
+			for (int written = 0; written < size; written += block.length) {
+				if (content.equals("text")) {
+					StringBuilder line = new StringBuilder();
+					while (line.length() < block.length) {
+						line.append("line ").append(random.nextInt(10000))
+								.append(" of the shared file\n");
+					}
+					block = line.substring(0, block.length).getBytes("UTF-8");
+				} else {
+					random.nextBytes(block);
+				}
+				out.write(block, 0, Math.min(block.length, size - written));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	/**
+	 * @return Bytes which would be sent
+	 */
+	@Benchmark
+	public long obtain() throws Throwable {
+		Object transfer = newTransfer.invoke(file.getPath());
+		long sent = 0;
+		try {
+			for (long offset = 0; offset < size; offset += chunkSize) {
+				byte[] chunk = (byte[]) (Object) read.invokeExact(transfer,
+						offset, chunkSize);
+				if (compressed) {
+					chunk = (byte[]) (Object) encode.invokeExact(chunk, codecId);
+				}
+				sent += chunk.length;
+			}
+		} finally {
+			close.invokeExact(transfer);
+		}
+		return sent;
+	}
+
+}
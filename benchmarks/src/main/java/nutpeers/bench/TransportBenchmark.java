@@ -0,0 +1,163 @@
+package nutpeers.bench;
+
+import java.io.Closeable;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.Remote;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trips of the peer calls through the RMI transport and through the
+ * NIO transport (see NioTransport), over the loopback interface. The server
+ * answers every call with the same values and does no work, so only the
+ * transports are measured: a search answered with 16 hits, a search made
+ * by 16 threads at once over the same stub, and a chunk of a transfer.
+ * 
+ * @author palvare3
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmark {
+
+	@Param({ "rmi", "nio" })
+	public String transport;
+
+	private Object server;
+
+	private Object nioServer;
+
+	private Object client;
+
+	private MethodHandle queryServer;
+
+	private MethodHandle readChunk;
+
+	private int chunkSize;
+
+	@Setup
+	public void setup() throws Throwable {
+		Class<?> serverInterface = PeerClasses.load("PeerServerInterface");
+		chunkSize = PeerClasses.constant("Peer", "CHUNK_SIZE");
+		Object hits = PeerClasses.constructor("QueryHits").invoke();
+		MethodHandle addHit = PeerClasses.method("QueryHits", "add",
+				void.class, int.class, int[].class, long.class);
+		for (int i = 0; i < 16; i++) {
+			addHit.invoke(hits, i, new int[] { 3, 0, 6000 }, 1024L);
+		}
+		server = Proxy.newProxyInstance(serverInterface.getClassLoader(),
+				new Class<?>[] { serverInterface }, new FixedAnswers(hits,
+						new byte[chunkSize]));
+
+		if (transport.equals("rmi")) {
+			client = UnicastRemoteObject.exportObject((Remote) server, 0);
+		} else {
+			nioServer = PeerClasses.constructor("NioServer", serverInterface,
+					int.class).invoke(server, 0);
+			int port = (int) PeerClasses.method("NioServer", "getLocalPort",
+					int.class).invoke(nioServer);
+			Thread thread = new Thread((Runnable) nioServer);
+			thread.setDaemon(true);
+			thread.start();
+
+			Object nioTransport = PeerClasses.constructor("NioTransport")
+					.invoke();
+			client = PeerClasses.method("NioTransport", "connect",
+					serverInterface, String.class, int.class).invoke(
+					nioTransport, "localhost", port);
+		}
+
+		queryServer = PeerClasses.method("PeerServerInterface", "queryServer",
+				PeerClasses.load("QueryHits"), long.class, int.class, String.class, int.class,
+				int.class, int.class);
+		readChunk = PeerClasses.method("PeerServerInterface", "readChunk",
+				byte[].class, int.class, long.class, int.class);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		if (nioServer != null) {
+			((Closeable) nioServer).close();
+		} else {
+			UnicastRemoteObject.unexportObject((Remote) server, true);
+		}
+	}
+
+	@Benchmark
+	public Object query() throws Throwable {
+		return (Object) queryServer.invokeExact(client, 1L, 2, "test1.txt", 6,
+				2, 0);
+	}
+
+	@Benchmark
+	@Threads(16)
+	public Object queryConcurrent() throws Throwable {
+		return (Object) queryServer.invokeExact(client, 1L, 2, "test1.txt", 6,
+				2, 0);
+	}
+
+	/**
+	 * @return The chunk, of Peer.CHUNK_SIZE bytes
+	 */
+	@Benchmark
+	public Object readChunk() throws Throwable {
+		return (Object) readChunk.invokeExact(client, 1, 0L, chunkSize);
+	}
+
+	/**
+	 * Server side which answers every call with the same values
+	 */
+	private static class FixedAnswers implements InvocationHandler {
+
+		private Object hits;
+
+		private byte[] chunk;
+
+		FixedAnswers(Object hits, byte[] chunk) {
+			this.hits = hits;
+			this.chunk = chunk;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			} else if (name.equals("equals")) {
+				return proxy == args[0];
+			} else if (name.equals("toString")) {
+				return "FixedAnswers";
+			} else if (name.equals("queryServer")) {
+				return hits;
+			} else if (name.equals("readChunk")) {
+				return chunk;
+			} else if (name.equals("notifyConnection")) {
+				return 0;
+			}
+			return null;
+		}
+
+	}
+
+}
@@ -0,0 +1,83 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * TTR of master files computed from their modification rate
+ * 
+ * @author palvare3
+ * 
+ */
+public class AdaptiveTTRTest {
+
+	private static final int TTR = 6000;
+
+	@Test
+	public void unchangedFilesGetTheConfiguredTTR() {
+		AdaptiveTTR ttrs = new AdaptiveTTR(TTR, new VirtualClock());
+		ttrs.register("a");
+
+		assertEquals(TTR, ttrs.getTTR("a"), 1);
+	}
+
+	@Test
+	public void targetSetAfterRegisterIsUsed() {
+		// As peers are started: the files are registered by the constructor
+		// and the target is set afterwards
+		AdaptiveTTR ttrs = new AdaptiveTTR(TTR, new VirtualClock());
+		ttrs.register("a");
+		ttrs.setTargetStaleness(0.5);
+
+		assertEquals(TTR, ttrs.getTTR("a"), 1);
+	}
+
+	@Test
+	public void zeroTargetGivesTheConfiguredTTR() {
+		AdaptiveTTR ttrs = new AdaptiveTTR(TTR, new VirtualClock());
+		ttrs.register("a");
+		ttrs.setTargetStaleness(0);
+
+		assertEquals(TTR, ttrs.getTTR("a"));
+	}
+
+	@Test
+	public void frequentChangesShortenTheTTR() {
+		VirtualClock clock = new VirtualClock();
+		AdaptiveTTR ttrs = new AdaptiveTTR(TTR, clock);
+		ttrs.register("a");
+
+		for (long t = 1000; t <= 20000; t += 1000) {
+			clock.run(t);
+			ttrs.modified("a");
+		}
+		assertTrue(ttrs.getTTR("a") < TTR / 2);
+		assertTrue(ttrs.getTTR("a") >= TTR / 10);
+	}
+
+	@Test
+	public void longUnchangedFilesGetALongerTTR() {
+		VirtualClock clock = new VirtualClock();
+		AdaptiveTTR ttrs = new AdaptiveTTR(TTR, clock);
+		ttrs.register("a");
+
+		// Taken to change at most as often as the time it has been unchanged
+		clock.run(TTR * 100);
+		assertTrue(ttrs.getTTR("a") > TTR);
+		assertTrue(ttrs.getTTR("a") <= TTR * 10);
+	}
+
+	@Test
+	public void firstChangeStartsFromTheCurrentTarget() {
+		VirtualClock clock = new VirtualClock();
+		AdaptiveTTR ttrs = new AdaptiveTTR(TTR, clock);
+		ttrs.register("a");
+		ttrs.setTargetStaleness(0.5);
+
+		// Changed after exactly the mean which gives the configured TTR
+		clock.run(Math.round(TTR / -Math.log(0.5)));
+		ttrs.modified("a");
+		assertEquals(TTR, ttrs.getTTR("a"), 1);
+	}
+
+}
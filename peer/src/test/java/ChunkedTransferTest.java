@@ -0,0 +1,136 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.rmi.RemoteException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Transfers read by ranges with openTransfer(), readChunk() and
+ * closeTransfer()
+ * 
+ * @author palvare3
+ * 
+ */
+public class ChunkedTransferTest {
+
+	private static final String FILENAME = "a.bin";
+
+	private LocalNetwork network;
+
+	private Peer master;
+
+	private PeerServerInterface server;
+
+	private byte[] content;
+
+	@Before
+	public void setUp() throws Exception {
+		network = new LocalNetwork(PeerMain.MODE_PULL);
+		content = new byte[Peer.CHUNK_SIZE * 2 + Peer.CHUNK_SIZE / 2];
+		new Random(1).nextBytes(content);
+		network.writeMasterFile(1, FILENAME, content);
+
+		master = network.startPeer(1, 1000, "2");
+		network.startPeer(2, 1000, "1");
+		server = network.getTransport().lookup(1);
+	}
+
+	@After
+	public void tearDown() {
+		network.close();
+	}
+
+	@Test
+	public void fileIsReadByChunks() throws RemoteException {
+		TransferInfo transfer = server.openTransfer(FILENAME);
+		assertEquals(content.length, transfer.getLength());
+
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		int chunks = 0;
+		while (read.size() < transfer.getLength()) {
+			byte[] chunk = server.readChunk(transfer.getTransferId(),
+					read.size(), Peer.CHUNK_SIZE);
+			assertTrue(chunk.length > 0);
+			read.write(chunk, 0, chunk.length);
+			chunks++;
+		}
+		assertEquals(3, chunks);
+		assertArrayEquals(content, read.toByteArray());
+
+		// Past the end there is nothing left
+		assertEquals(0, server.readChunk(transfer.getTransferId(),
+				content.length, Peer.CHUNK_SIZE).length);
+		server.closeTransfer(transfer.getTransferId());
+	}
+
+	@Test
+	public void readsAreLimitedToAChunk() throws RemoteException {
+		TransferInfo transfer = server.openTransfer(FILENAME);
+		byte[] chunk = server.readChunk(transfer.getTransferId(), 10,
+				Peer.CHUNK_SIZE * 4);
+		assertEquals(Peer.CHUNK_SIZE, chunk.length);
+		assertEquals(content[10], chunk[0]);
+		server.closeTransfer(transfer.getTransferId());
+	}
+
+	@Test
+	public void transferKeepsTheLengthItWasOpenedWith() throws Exception {
+		TransferInfo transfer = server.openTransfer(FILENAME);
+
+		// Bytes appended by a later modification are not read
+		byte[] grown = new byte[content.length + Peer.CHUNK_SIZE];
+		System.arraycopy(content, 0, grown, 0, content.length);
+		LocalNetwork.write(master.getFile("./files/" + FILENAME), grown);
+
+		long offset = Peer.CHUNK_SIZE * 2;
+		byte[] chunk = server.readChunk(transfer.getTransferId(), offset,
+				Peer.CHUNK_SIZE);
+		assertEquals(content.length - offset, chunk.length);
+		server.closeTransfer(transfer.getTransferId());
+	}
+
+	@Test
+	public void closedTransferCannotBeRead() throws RemoteException {
+		TransferInfo transfer = server.openTransfer(FILENAME);
+		server.closeTransfer(transfer.getTransferId());
+		try {
+			server.readChunk(transfer.getTransferId(), 0, Peer.CHUNK_SIZE);
+			fail("Closed transfer read");
+		} catch (RemoteException e) {
+			// Expected, the transfer is not open anymore
+		}
+	}
+
+	@Test
+	public void idleTransfersExpireOnThePeerClock() throws RemoteException {
+		TransferInfo idle = server.openTransfer(FILENAME);
+		network.getClock().run(PeerBinder.TRANSFER_IDLE_TIMEOUT / 2);
+		TransferInfo used = server.openTransfer(FILENAME);
+		network.getClock().run(PeerBinder.TRANSFER_IDLE_TIMEOUT + 1);
+		server.readChunk(used.getTransferId(), 0, Peer.CHUNK_SIZE);
+		network.getClock().run(PeerBinder.TRANSFER_IDLE_TIMEOUT * 3 / 2);
+
+		// Idle transfers are closed when the next one is opened
+		server.closeTransfer(server.openTransfer(FILENAME).getTransferId());
+		server.readChunk(used.getTransferId(), 0, Peer.CHUNK_SIZE);
+		try {
+			server.readChunk(idle.getTransferId(), 0, Peer.CHUNK_SIZE);
+			fail("Idle transfer read");
+		} catch (RemoteException e) {
+			// Expected, it was not read for longer than the timeout
+		}
+	}
+
+	@Test(expected = RemoteException.class)
+	public void missingFileIsNotOpened() throws RemoteException {
+		server.openTransfer("missing.bin");
+	}
+
+}
@@ -0,0 +1,213 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Creation, transfer and application of block patches between a master file
+ * and a replica
+ * 
+ * @author palvare3
+ * 
+ */
+public class DeltaPatchTest {
+
+	private static final int[] METADATA = { 2, 1, 5000 };
+
+	private File master;
+
+	private File replica;
+
+	private Random random = new Random(7);
+
+	@Before
+	public void setUp() throws IOException {
+		master = File.createTempFile("master", ".dat");
+		replica = File.createTempFile("replica", ".dat");
+	}
+
+	@After
+	public void tearDown() {
+		master.delete();
+		replica.delete();
+	}
+
+	@Test
+	public void changedBlockIsTheOnlyOneSent() throws IOException {
+		byte[] content = randomBytes(10 * DeltaPatch.BLOCK_SIZE);
+		write(replica, content);
+		content[3 * DeltaPatch.BLOCK_SIZE + 10] ^= 1;
+		write(master, content);
+
+		DeltaPatch patch = syncAndApply();
+		assertTrue(patch.isModified());
+		assertTrue(patch.isComplete());
+		assertEquals(DeltaPatch.BLOCK_SIZE, patch.getPatchSize());
+	}
+
+	@Test
+	public void appendedBytesAreSent() throws IOException {
+		byte[] content = randomBytes(2 * DeltaPatch.BLOCK_SIZE + 100);
+		write(replica, content);
+		byte[] appended = new byte[content.length + 500];
+		System.arraycopy(content, 0, appended, 0, content.length);
+		write(master, appended);
+
+		// The last block of the replica has grown, so it is sent whole
+		DeltaPatch patch = syncAndApply();
+		assertEquals(600, patch.getPatchSize());
+	}
+
+	@Test
+	public void truncatedFileIsCut() throws IOException {
+		byte[] content = randomBytes(4 * DeltaPatch.BLOCK_SIZE);
+		write(replica, content);
+		byte[] truncated = new byte[DeltaPatch.BLOCK_SIZE + 1];
+		System.arraycopy(content, 0, truncated, 0, truncated.length);
+		write(master, truncated);
+
+		DeltaPatch patch = syncAndApply();
+		assertEquals(1, patch.getPatchSize());
+	}
+
+	@Test
+	public void identicalFilesNeedNoBlocks() throws IOException {
+		byte[] content = randomBytes(3 * DeltaPatch.BLOCK_SIZE + 7);
+		write(replica, content);
+		write(master, content);
+
+		DeltaPatch patch = syncAndApply();
+		assertTrue(patch.isComplete());
+		assertEquals(0, patch.getPatchSize());
+	}
+
+	@Test
+	public void bigChangesAreNotPatched() throws IOException {
+		int length = DeltaPatch.MAX_PATCH_SIZE + 2 * DeltaPatch.BLOCK_SIZE;
+		write(replica, new byte[length]);
+		write(master, randomBytes(length));
+
+		DeltaPatch patch = DeltaPatch.create(master.getPath(), METADATA,
+				DeltaPatch.checksums(replica), master.length());
+		assertTrue(patch.isModified());
+		assertFalse(patch.isComplete());
+		assertEquals(0, patch.getPatchSize());
+	}
+
+	@Test
+	public void bytesAfterTheVersionAreNotRead() throws IOException {
+		byte[] content = randomBytes(2 * DeltaPatch.BLOCK_SIZE);
+		write(replica, content);
+		content[0] ^= 1;
+		write(master, content);
+		long length = master.length();
+
+		// The master file grows after the version was pinned
+		byte[] grown = new byte[content.length + 100];
+		System.arraycopy(content, 0, grown, 0, content.length);
+		write(master, grown);
+
+		DeltaPatch patch = DeltaPatch.create(master.getPath(), METADATA,
+				DeltaPatch.checksums(replica), length);
+		patch.apply(replica);
+		assertEquals(DeltaPatch.BLOCK_SIZE, patch.getPatchSize());
+		assertEquals(length, patch.getLength());
+		assertArrayEquals(content, read(replica));
+	}
+
+	@Test
+	public void notModifiedKeepsTheReplica() throws IOException {
+		byte[] content = randomBytes(100);
+		write(replica, content);
+
+		DeltaPatch patch = roundTrip(DeltaPatch.notModified(METADATA));
+		assertFalse(patch.isModified());
+		assertArrayEquals(METADATA, patch.getMetadata());
+		assertArrayEquals(content, read(replica));
+	}
+
+	@Test
+	public void checksumsDependOnLength() throws IOException {
+		// The length is part of the checksum, so a block which has only
+		// grown or shrunk is always sent
+		write(replica, new byte[DeltaPatch.BLOCK_SIZE]);
+		write(master, new byte[DeltaPatch.BLOCK_SIZE - 1]);
+		assertFalse(DeltaPatch.checksums(replica)[0] == DeltaPatch
+				.checksums(master)[0]);
+	}
+
+	@Test
+	public void emptyReplicaGetsEveryBlock() throws IOException {
+		byte[] content = randomBytes(2 * DeltaPatch.BLOCK_SIZE + 3);
+		write(master, content);
+		assertEquals(0, DeltaPatch.checksums(replica).length);
+
+		DeltaPatch patch = syncAndApply();
+		assertEquals(content.length, patch.getPatchSize());
+	}
+
+	/**
+	 * Creates the patch of the master for the replica, sends it through the
+	 * binary form of the protocol and applies it to the replica, which must
+	 * end up equal to the master
+	 */
+	private DeltaPatch syncAndApply() throws IOException {
+		DeltaPatch patch = roundTrip(DeltaPatch.create(master.getPath(),
+				METADATA, DeltaPatch.checksums(replica), master.length()));
+		patch.apply(replica);
+
+		assertArrayEquals(read(master), read(replica));
+		assertArrayEquals(DeltaPatch.checksums(master),
+				DeltaPatch.checksums(replica));
+		assertArrayEquals(METADATA, patch.getMetadata());
+		return patch;
+	}
+
+	private static DeltaPatch roundTrip(DeltaPatch patch) throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		patch.write(new DataOutputStream(stream));
+		return DeltaPatch.read(new DataInputStream(new ByteArrayInputStream(
+				stream.toByteArray())));
+	}
+
+	private byte[] randomBytes(int n) {
+		byte[] bytes = new byte[n];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	private static void write(File f, byte[] content) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static byte[] read(File f) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			byte[] content = new byte[(int) file.length()];
+			file.readFully(content);
+			return content;
+		} finally {
+			file.close();
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Lazy updates of copies bigger than a chunk get a patch straight from the
+ * answer of obtainIfNewer(), without a transfer of the file
+ * 
+ * @author palvare3
+ * 
+ */
+public class DeltaUpdateTest {
+
+	private static final String FILENAME = "big.bin";
+
+	private static final int TTR = 1000;
+
+	private LocalNetwork network;
+
+	private Peer master;
+
+	private Peer replica;
+
+	private File masterFile;
+
+	private File replicaFile;
+
+	@Before
+	public void setUp() throws IOException {
+		network = new LocalNetwork(PeerMain.MODE_PULL);
+		// Bigger than the biggest patch
+		byte[] content = new byte[DeltaPatch.MAX_PATCH_SIZE + Peer.CHUNK_SIZE + 10];
+		new Random(1).nextBytes(content);
+		network.writeMasterFile(1, FILENAME, content);
+
+		master = network.startPeer(1, TTR, "2");
+		replica = network.startPeer(2, TTR, "1");
+		masterFile = master.getFile("./files/" + FILENAME);
+		replicaFile = replica.getFile("./downloads/" + FILENAME);
+
+		assertTrue(new FileDownloader(replica).download(FILENAME, 1));
+		network.getTransport().resetMessageCounts();
+	}
+
+	@After
+	public void tearDown() {
+		network.close();
+	}
+
+	@Test
+	public void smallChangeIsPatched() throws IOException {
+		master.modifyMasterFile(FILENAME);
+		long served = master.getMetrics().getBytesServed();
+
+		assertTrue(replica.lazyUpdate(FILENAME));
+		assertArrayEquals(Files.readAllBytes(masterFile.toPath()),
+				Files.readAllBytes(replicaFile.toPath()));
+		assertEquals(1, replica.getVersion(FILENAME));
+
+		// One call, and only the last block was sent
+		Map<String, Long> messages = network.getTransport().getMessageCounts();
+		assertEquals(Long.valueOf(1), messages.get("obtainIfNewer"));
+		assertNull(messages.get("readChunk"));
+		assertTrue(master.getMetrics().getBytesServed() - served <=
+				DeltaPatch.BLOCK_SIZE);
+	}
+
+	@Test
+	public void openReadersKeepTheOldVersion() throws IOException {
+		byte[] old = Files.readAllBytes(replicaFile.toPath());
+		RandomAccessFile reader = new RandomAccessFile(replicaFile, "r");
+		try {
+			master.modifyMasterFile(FILENAME);
+			assertTrue(replica.lazyUpdate(FILENAME));
+
+			// The patch went to a new file, moved over the old copy
+			byte[] read = new byte[(int) reader.length()];
+			reader.readFully(read);
+			assertArrayEquals(old, read);
+		} finally {
+			reader.close();
+		}
+		assertArrayEquals(Files.readAllBytes(masterFile.toPath()),
+				Files.readAllBytes(replicaFile.toPath()));
+	}
+
+	@Test
+	public void bigChangeIsDownloaded() throws IOException {
+		byte[] content = new byte[(int) masterFile.length()];
+		new Random(2).nextBytes(content);
+		LocalNetwork.write(masterFile, content);
+		master.modifyMasterFile(FILENAME);
+
+		assertTrue(replica.lazyUpdate(FILENAME));
+		assertArrayEquals(Files.readAllBytes(masterFile.toPath()),
+				Files.readAllBytes(replicaFile.toPath()));
+		assertEquals(1, replica.getVersion(FILENAME));
+		assertTrue(network.getTransport().getMessageCounts()
+				.get("readChunk") > 0);
+	}
+
+	@Test
+	public void unchangedCopyIsKept() throws IOException {
+		assertTrue(replica.lazyUpdate(FILENAME));
+		assertEquals(0, replica.getVersion(FILENAME));
+		assertEquals(Peer.FILE_VALID, replica.hasFile(FILENAME));
+		assertNull(network.getTransport().getMessageCounts().get("readChunk"));
+	}
+
+}
@@ -0,0 +1,104 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Packing of the metadata of a file in a single long and its compare-and-set
+ * updates
+ * 
+ * @author palvare3
+ * 
+ */
+public class FileMetadataStoreTest {
+
+	@Test
+	public void fieldsDoNotOverlap() {
+		FileMetadataStore store = new FileMetadataStore();
+		// Largest master id the layout keeps, and a version using the sign bit
+		int master = (1 << 28) - 1;
+		store.putDownloaded("a", -2, Peer.FILE_INVALID, master, 99);
+
+		assertArrayEquals(new int[] { -2, master, Peer.FILE_INVALID },
+				store.getSnapshot("a"));
+		assertEquals(99, store.getTTRDeadline("a"));
+		assertTrue(store.isDownloaded("a"));
+		assertFalse(store.isMaster("a"));
+	}
+
+	@Test
+	public void mastersAreAlwaysValid() {
+		FileMetadataStore store = new FileMetadataStore();
+		store.putMaster("m", 3);
+
+		assertTrue(store.isMaster("m"));
+		assertEquals(Peer.FILE_VALID, store.getValidity("m"));
+		assertEquals(4, store.incrementVersion("m"));
+		assertEquals(4, store.getVersion("m"));
+		assertFalse(store.compareAndSetValidity("m", -1, Peer.FILE_INVALID));
+		assertEquals(Peer.FILE_VALID, store.getValidity("m"));
+	}
+
+	@Test
+	public void updatesCheckTheExpectedValue() {
+		FileMetadataStore store = new FileMetadataStore();
+		store.putDownloaded("d", 1, Peer.FILE_VALID, 5, 0);
+
+		assertEquals(-1, store.incrementVersion("d"));
+		assertFalse(store.compareAndSetVersion("d", 0, 2));
+		assertTrue(store.compareAndSetVersion("d", 1, 2));
+		assertFalse(store.compareAndSetValidity("d", Peer.FILE_TTR_EXPIRED,
+				Peer.FILE_INVALID));
+		assertTrue(store.compareAndSetValidity("d", Peer.FILE_VALID,
+				Peer.FILE_TTR_EXPIRED));
+		assertArrayEquals(new int[] { 2, 5, Peer.FILE_TTR_EXPIRED },
+				store.getSnapshot("d"));
+	}
+
+	@Test
+	public void unknownFiles() {
+		FileMetadataStore store = new FileMetadataStore();
+		store.putMaster("m", 0);
+		store.remove("m");
+
+		assertNull(store.getSnapshot("m"));
+		assertEquals(-1, store.getVersion("m"));
+		assertEquals(-1, store.getMaster("m"));
+		assertEquals(Peer.FILE_INVALID, store.getValidity("m"));
+		assertFalse(store.isMaster("m") || store.isDownloaded("m"));
+		assertTrue(store.getMasterFiles().isEmpty());
+	}
+
+	@Test
+	public void concurrentIncrementsAreNotLost() throws InterruptedException {
+		final FileMetadataStore store = new FileMetadataStore();
+		store.putMaster("m", 0);
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 10000; j++) {
+						store.incrementVersion("m");
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(40000, store.getVersion("m"));
+		assertTrue(store.isMaster("m"));
+	}
+
+}
@@ -0,0 +1,165 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Real peers for the tests, each in its own temporary directory, connected by
+ * a MemoryTransport and with their timers on a shared VirtualClock, so the
+ * tests decide when the TTRs expire. The work the peers hand to their
+ * executors runs in background threads, as in a standalone peer.
+ * 
+ * @author palvare3
+ * 
+ */
+public class LocalNetwork {
+
+	private File directory;
+
+	private VirtualClock clock = new VirtualClock();
+
+	private MemoryTransport transport = new MemoryTransport();
+
+	private List<Integer> ids = new ArrayList<Integer>();
+
+	private int mode;
+
+	/**
+	 * @param mode
+	 *            Mode of the peers, see PeerMain.MODE. It is restored by
+	 *            close().
+	 * @throws IOException
+	 */
+	public LocalNetwork(int mode) throws IOException {
+		this.mode = PeerMain.MODE;
+		PeerMain.MODE = mode;
+		directory = Files.createTempDirectory("nutpeers-test").toFile();
+	}
+
+	/**
+	 * Writes a master file of a peer which has not been started yet
+	 * 
+	 * @param peerId
+	 * @param filename
+	 * @param content
+	 * @throws IOException
+	 */
+	public void writeMasterFile(int peerId, String filename, byte[] content)
+			throws IOException {
+		File files = new File(peerDirectory(peerId), "files");
+		files.mkdirs();
+		write(new File(files, filename), content);
+	}
+
+	/**
+	 * Starts a peer with a fixed TTR
+	 * 
+	 * @param id
+	 * @param ttr
+	 * @param neighbors
+	 *            Ids of the neighbors, separated by commas
+	 * @return The peer
+	 * @throws IOException
+	 */
+	public Peer startPeer(int id, int ttr, String neighbors)
+			throws IOException {
+		final File peerDirectory = peerDirectory(id);
+		new File(peerDirectory, "files").mkdirs();
+		new File(peerDirectory, "downloads").mkdirs();
+
+		Properties properties = new Properties();
+		properties.setProperty("peer_id", "" + id);
+		properties.setProperty("TTR", "" + ttr);
+		properties.setProperty("neighbors", neighbors);
+		FileOutputStream out = new FileOutputStream(new File(peerDirectory,
+				"peer.properties"));
+		try {
+			properties.store(out, null);
+		} finally {
+			out.close();
+		}
+
+		Peer peer = new Peer(id, ttr, new PeerEnvironment(transport) {
+			@Override
+			public File getDirectory() {
+				return peerDirectory;
+			}
+
+			@Override
+			public Clock getClock() {
+				return clock;
+			}
+
+			@Override
+			public Clock newTimer(String name) {
+				return clock;
+			}
+
+			@Override
+			public boolean isStandalone() {
+				return false;
+			}
+
+			@Override
+			public boolean isPublishingSummaries() {
+				return false;
+			}
+		});
+		peer.setTargetStaleness(0);
+
+		PeerBinder binder = new PeerBinder(peer);
+		// Calls go through the transport, not through RMI
+		UnicastRemoteObject.unexportObject(binder, true);
+		transport.bind(id, binder);
+		ids.add(id);
+		return peer;
+	}
+
+	public VirtualClock getClock() {
+		return clock;
+	}
+
+	public MemoryTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Makes the peers unreachable, deletes their directories and restores the
+	 * mode
+	 */
+	public void close() {
+		for (Integer id : ids) {
+			transport.unbind(id);
+		}
+		delete(directory);
+		PeerMain.MODE = mode;
+	}
+
+	private File peerDirectory(int id) {
+		return new File(directory, "peer" + id);
+	}
+
+	public static void write(File f, byte[] content) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
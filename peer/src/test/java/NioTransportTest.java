@@ -0,0 +1,92 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Calls of several threads over the connection NioTransport keeps to the
+ * protocol port of a peer
+ * 
+ * @author palvare3
+ * 
+ */
+public class NioTransportTest {
+
+	// Id whose protocol port is far from the ports of running peers
+	private static final int SERVER_ID = 20000;
+
+	private static final String FILENAME = "a.txt";
+
+	private static final int THREADS = 16;
+
+	private LocalNetwork network;
+
+	private NioServer server;
+
+	private NioTransport transport = new NioTransport();
+
+	@Before
+	public void setUp() throws Exception {
+		network = new LocalNetwork(PeerMain.MODE_PULL);
+		network.writeMasterFile(1, FILENAME, new byte[] { 1, 2, 3 });
+		network.startPeer(1, 1000, "2");
+
+		server = new NioServer(network.getTransport().lookup(1),
+				NioServer.getPort(SERVER_ID));
+		new Thread(server, "protocol-server-test").start();
+	}
+
+	@After
+	public void tearDown() {
+		transport.close();
+		server.close();
+		network.close();
+	}
+
+	@Test
+	public void concurrentLookupsShareOneConnection()
+			throws InterruptedException {
+		final Set<PeerServerInterface> stubs = Collections
+				.synchronizedSet(Collections
+						.newSetFromMap(new IdentityHashMap<PeerServerInterface, Boolean>()));
+		final AtomicInteger failures = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(THREADS);
+
+		for (int i = 0; i < THREADS; i++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						PeerServerInterface stub = transport.lookup(SERVER_ID);
+						stubs.add(stub);
+						for (int call = 0; call < 20; call++) {
+							assertNotNull(stub.checkMetadata(FILENAME, 2));
+						}
+					} catch (Throwable e) {
+						failures.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		start.countDown();
+		done.await();
+
+		// The connections which lost the race were closed before being
+		// handed out, so no call failed
+		assertEquals(0, failures.get());
+		assertEquals(1, stubs.size());
+	}
+
+}
@@ -0,0 +1,80 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Downloads with obtainIfNewer() and the bytes the source counts as served
+ * 
+ * @author palvare3
+ * 
+ */
+public class ObtainIfNewerTest {
+
+	private LocalNetwork network;
+
+	@Before
+	public void setUp() throws IOException {
+		network = new LocalNetwork(PeerMain.MODE_PUSH);
+	}
+
+	@After
+	public void tearDown() {
+		network.close();
+	}
+
+	@Test
+	public void incompressibleSampleIsCountedOnce() throws IOException {
+		byte[] content = new byte[Peer.CHUNK_SIZE * 2 + 10];
+		new Random(1).nextBytes(content);
+		Peer master = download("random.bin", content);
+
+		// Sent raw after the compressed sample did not shrink
+		assertEquals(content.length, master.getMetrics().getBytesServed());
+	}
+
+	@Test
+	public void smallIncompressibleFileIsCountedOnce() throws IOException {
+		byte[] content = new byte[1000];
+		new Random(1).nextBytes(content);
+		Peer master = download("small.bin", content);
+
+		assertEquals(content.length, master.getMetrics().getBytesServed());
+	}
+
+	@Test
+	public void compressedChunksAreCountedAsSent() throws IOException {
+		byte[] content = new byte[Peer.CHUNK_SIZE * 2 + 10];
+		Arrays.fill(content, (byte) 'a');
+		Peer master = download("text.txt", content);
+
+		long served = master.getMetrics().getBytesServed();
+		assertTrue(served > 0);
+		assertTrue(served < content.length / 10);
+	}
+
+	/**
+	 * Starts a master with a file and a peer which downloads it
+	 * 
+	 * @return The master
+	 */
+	private Peer download(String filename, byte[] content) throws IOException {
+		network.writeMasterFile(1, filename, content);
+		Peer master = network.startPeer(1, 1000, "2");
+		Peer peer = network.startPeer(2, 1000, "1");
+
+		assertTrue(new FileDownloader(peer).download(filename, 1));
+		assertArrayEquals(content, Files.readAllBytes(peer.getFile(
+				"./downloads/" + filename).toPath()));
+		return master;
+	}
+
+}
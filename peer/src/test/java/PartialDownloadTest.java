@@ -0,0 +1,133 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Partial downloads resume from their checkpoints and replace the downloaded
+ * copy once they are complete
+ * 
+ * @author palvare3
+ * 
+ */
+public class PartialDownloadTest {
+
+	private static final String FILENAME = "a.bin";
+
+	private static final int[] METADATA = { 3, 1, 1000 };
+
+	private LocalNetwork network;
+
+	private Peer peer;
+
+	private byte[] content;
+
+	@Before
+	public void setUp() throws IOException {
+		network = new LocalNetwork(PeerMain.MODE_PULL);
+		network.startPeer(1, 1000, "2");
+		peer = network.startPeer(2, 1000, "1");
+
+		content = new byte[(int) PartialDownload.CHECKPOINT_INTERVAL * 2 + 10];
+		new Random(1).nextBytes(content);
+	}
+
+	@After
+	public void tearDown() {
+		network.close();
+	}
+
+	@Test
+	public void downloadResumesFromTheCheckpoint() throws IOException {
+		PartialDownload partial = PartialDownload.open(peer, FILENAME,
+				METADATA, content.length);
+		int half = content.length / 2;
+		write(partial, 0, half);
+		partial.close();
+
+		partial = PartialDownload.open(peer, FILENAME, METADATA,
+				content.length);
+		assertEquals(half, partial.getResumeOffset());
+		assertFalse(partial.isComplete());
+		write(partial, half, content.length);
+		partial.complete();
+
+		assertArrayEquals(content, read(target()));
+	}
+
+	@Test
+	public void otherVersionStartsFromScratch() throws IOException {
+		PartialDownload partial = PartialDownload.open(peer, FILENAME,
+				METADATA, content.length);
+		write(partial, 0, content.length / 2);
+		partial.close();
+
+		partial = PartialDownload.open(peer, FILENAME, new int[] { 4, 1,
+				1000 }, content.length);
+		assertEquals(0, partial.getResumeOffset());
+		partial.discard();
+	}
+
+	@Test
+	public void completeReplacesTheDownloadedCopy() throws IOException {
+		LocalNetwork.write(target(), new byte[] { 1, 2, 3 });
+
+		PartialDownload partial = PartialDownload.open(peer, FILENAME,
+				METADATA, content.length);
+		write(partial, 0, content.length);
+		partial.complete();
+
+		assertArrayEquals(content, read(target()));
+		assertFalse(peer.getFile(
+				PartialDownload.PARTIAL_DIRECTORY + FILENAME + ".part")
+				.exists());
+		assertFalse(peer.getFile(
+				PartialDownload.PARTIAL_DIRECTORY + FILENAME + ".properties")
+				.exists());
+	}
+
+	@Test(expected = IOException.class)
+	public void incompleteDownloadIsNotMoved() throws IOException {
+		PartialDownload partial = PartialDownload.open(peer, FILENAME,
+				METADATA, content.length);
+		write(partial, 0, content.length - 1);
+		try {
+			partial.complete();
+		} finally {
+			assertFalse(target().exists());
+			partial.discard();
+		}
+	}
+
+	private File target() {
+		return peer.getFile("./downloads/" + FILENAME);
+	}
+
+	/**
+	 * Writes the bytes of the content between start and end to the partial
+	 * file, as a download does
+	 */
+	private void write(PartialDownload partial, int start, int end)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(content, start, end - start);
+		long position = start;
+		while (buffer.hasRemaining()) {
+			position += partial.getChannel().write(buffer, position);
+		}
+		partial.markCompleted(start, end);
+	}
+
+	private static byte[] read(File f) throws IOException {
+		return Files.readAllBytes(f.toPath());
+	}
+
+}
@@ -0,0 +1,279 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Framing of PeerProtocol and the binary form of the messages it carries
+ * 
+ * @author palvare3
+ * 
+ */
+public class PeerProtocolTest {
+
+	@Test
+	public void frameCarriesRequestIdAndCode() throws IOException {
+		PeerProtocol.Frame frame = new PeerProtocol.Frame(42,
+				PeerProtocol.QUERY_SERVER);
+		frame.writeInt(7);
+		ByteBuffer buffer = frame.toBuffer();
+
+		assertEquals(PeerProtocol.HEADER_SIZE + 4, buffer.remaining());
+		assertEquals(buffer.remaining() - 4, buffer.getInt(0));
+
+		ByteBuffer read = readFrame(bytes(buffer), 1 << 20);
+		assertNotNull(read);
+		assertEquals(42, read.getInt());
+		assertEquals(PeerProtocol.QUERY_SERVER, read.get());
+		assertEquals(7, read.getInt());
+		assertFalse(read.hasRemaining());
+	}
+
+	@Test
+	public void framesSplitAcrossReads() throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (int i = 0; i < 10; i++) {
+			PeerProtocol.Frame frame = new PeerProtocol.Frame(i,
+					PeerProtocol.READ_CHUNK);
+			PeerProtocol.writeString(frame, "file" + i);
+			stream.write(bytes(frame.toBuffer()));
+		}
+
+		// Three bytes per read cuts headers and payloads anywhere
+		PeerProtocol.FrameReader reader = new PeerProtocol.FrameReader();
+		ReadableByteChannel channel = new TrickleChannel(stream.toByteArray(),
+				3);
+		int frames = 0;
+		while (frames < 10) {
+			reader.read(channel);
+			ByteBuffer frame;
+			while ((frame = reader.next()) != null) {
+				assertEquals(frames, frame.getInt());
+				assertEquals(PeerProtocol.READ_CHUNK, frame.get());
+				assertEquals("file" + frames,
+						PeerProtocol.readString(input(frame)));
+				frames++;
+			}
+		}
+		assertNull(reader.next());
+	}
+
+	@Test
+	public void bufferGrowsForBigFrames() throws IOException {
+		byte[] payload = new byte[3 * 64 * 1024 + 5];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) i;
+		}
+		PeerProtocol.Frame frame = new PeerProtocol.Frame(1,
+				PeerProtocol.OBTAIN_IF_NEWER);
+		PeerProtocol.writeBytes(frame, payload);
+
+		ByteBuffer read = readFrame(bytes(frame.toBuffer()), 1000);
+		assertNotNull(read);
+		assertEquals(1, read.getInt());
+		assertEquals(PeerProtocol.OBTAIN_IF_NEWER, read.get());
+		assertArrayEquals(payload, PeerProtocol.readBytes(input(read)));
+	}
+
+	@Test(expected = IOException.class)
+	public void invalidLengthIsRejected() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.putInt(PeerProtocol.MAX_FRAME_SIZE + 1);
+		buffer.flip();
+		readFrame(bytes(buffer), 8);
+	}
+
+	@Test(expected = EOFException.class)
+	public void closedChannelIsReported() throws IOException {
+		new PeerProtocol.FrameReader().read(new TrickleChannel(new byte[0], 1));
+	}
+
+	@Test
+	public void nullValuesRoundTrip() throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(stream);
+		PeerProtocol.writeString(out, null);
+		PeerProtocol.writeBytes(out, null);
+		PeerProtocol.writeInts(out, null);
+		PeerProtocol.writeLongs(out, null);
+		PeerProtocol.writeVersions(out, null);
+
+		DataInputStream in = input(stream);
+		assertNull(PeerProtocol.readString(in));
+		assertNull(PeerProtocol.readBytes(in));
+		assertNull(PeerProtocol.readInts(in));
+		assertNull(PeerProtocol.readLongs(in));
+		assertNull(PeerProtocol.readVersions(in));
+	}
+
+	@Test
+	public void collectionsRoundTrip() throws IOException {
+		Map<String, Integer> versions = new LinkedHashMap<String, Integer>();
+		versions.put("a.txt", 3);
+		versions.put("b.txt", 0);
+		Map<Integer, Boolean> neighbors = new LinkedHashMap<Integer, Boolean>();
+		neighbors.put(4, true);
+		neighbors.put(9, false);
+		long[] longs = { Long.MIN_VALUE, 0, Long.MAX_VALUE };
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(stream);
+		PeerProtocol.writeVersions(out, versions);
+		PeerProtocol.writeNeighbors(out, neighbors);
+		PeerProtocol.writeLongs(out, longs);
+
+		DataInputStream in = input(stream);
+		assertEquals(versions, PeerProtocol.readVersions(in));
+		assertEquals(neighbors, PeerProtocol.readNeighbors(in));
+		assertArrayEquals(longs, PeerProtocol.readLongs(in));
+	}
+
+	@Test(expected = IOException.class)
+	public void negativeSizesAreRejected() throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		new DataOutputStream(stream).writeInt(-2);
+		PeerProtocol.readInts(input(stream));
+	}
+
+	@Test
+	public void obtainResultRoundTrip() throws IOException {
+		int[] metadata = { 5, 2, 3000 };
+		ObtainResult result = ObtainResult.modified(metadata, 100000,
+				Compression.DEFLATE, new byte[] { 1, 2, 3 }, new TransferInfo(
+						17, 100000));
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		result.write(new DataOutputStream(stream));
+		ObtainResult read = ObtainResult.read(input(stream));
+
+		assertArrayEquals(metadata, read.getMetadata());
+		assertTrue(read.isModified());
+		assertEquals(100000, read.getLength());
+		assertEquals(Compression.DEFLATE, read.getCodec());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, read.getData());
+		assertEquals(17, read.getTransfer().getTransferId());
+		assertEquals(100000, read.getTransfer().getLength());
+
+		stream.reset();
+		ObtainResult.notModified(metadata).write(new DataOutputStream(stream));
+		read = ObtainResult.read(input(stream));
+		assertFalse(read.isModified());
+		assertNull(read.getTransfer());
+		assertNull(read.getPatch());
+
+		stream.reset();
+		ObtainResult.patched(DeltaPatch.tooLarge(metadata)).write(
+				new DataOutputStream(stream));
+		read = ObtainResult.read(input(stream));
+		assertTrue(read.isModified());
+		assertArrayEquals(metadata, read.getPatch().getMetadata());
+		assertFalse(read.getPatch().isComplete());
+	}
+
+	@Test
+	public void summaryDeltaRoundTrip() throws IOException {
+		SummaryDelta delta = new SummaryDelta(new int[] { 0, 1 }, new int[] {
+				10, 1023 }, new long[] { -1L, 1L << 40 });
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		delta.write(new DataOutputStream(stream));
+		SummaryDelta read = SummaryDelta.read(input(stream));
+
+		assertEquals(2, read.size());
+		for (int i = 0; i < 2; i++) {
+			assertEquals(delta.getLevel(i), read.getLevel(i));
+			assertEquals(delta.getIndex(i), read.getIndex(i));
+			assertEquals(delta.getWord(i), read.getWord(i));
+		}
+	}
+
+	private static byte[] bytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	private static DataInputStream input(ByteBuffer buffer) {
+		return new DataInputStream(new ByteArrayInputStream(buffer.array(),
+				buffer.position(), buffer.remaining()));
+	}
+
+	private static DataInputStream input(ByteArrayOutputStream stream) {
+		return new DataInputStream(new ByteArrayInputStream(
+				stream.toByteArray()));
+	}
+
+	/**
+	 * @return The first frame of the bytes, read at most step bytes at a time
+	 */
+	private static ByteBuffer readFrame(byte[] bytes, int step)
+			throws IOException {
+		PeerProtocol.FrameReader reader = new PeerProtocol.FrameReader();
+		TrickleChannel channel = new TrickleChannel(bytes, step);
+		while (true) {
+			ByteBuffer frame = reader.next();
+			if (frame != null) {
+				return frame;
+			}
+			reader.read(channel);
+		}
+	}
+
+	/**
+	 * Channel which gives out its bytes a few at a time, as a socket may
+	 */
+	private static class TrickleChannel implements ReadableByteChannel {
+
+		private byte[] bytes;
+
+		private int position = 0;
+
+		private int step;
+
+		public TrickleChannel(byte[] bytes, int step) {
+			this.bytes = bytes;
+			this.step = step;
+		}
+
+		public int remaining() {
+			return bytes.length - position;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+			if (position == bytes.length) {
+				return -1;
+			}
+			int n = Math.min(Math.min(step, dst.remaining()), remaining());
+			dst.put(bytes, position, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+
+	}
+
+}
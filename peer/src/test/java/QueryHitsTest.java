@@ -0,0 +1,162 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Merging, ranking and encoding of the hits of a search
+ * 
+ * @author palvare3
+ * 
+ */
+public class QueryHitsTest {
+
+	@Test
+	public void newestCopyOfEachSourceIsKept() {
+		QueryHits hits = new QueryHits();
+		hits.add(7, new int[] { 2, 1, 100 }, 10);
+		hits.add(7, new int[] { 1, 1, 900 }, 20);
+		hits.add(7, new int[] { 3, 1, 50 }, 30);
+
+		assertEquals(1, hits.size());
+		assertArrayEquals(new int[] { 3, 1, 50 }, hits.getMetadata(0));
+		assertEquals(30, hits.getLength(0));
+	}
+
+	@Test
+	public void mergeMatchesAMap() {
+		// Enough sources to go past the linear scan and regrow the table
+		Random random = new Random(3);
+		QueryHits merged = new QueryHits();
+		Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+
+		for (int round = 0; round < 20; round++) {
+			QueryHits hits = new QueryHits();
+			for (int k = 0; k < 50; k++) {
+				int source = random.nextInt(500) * 1024;
+				int version = random.nextInt(10);
+				hits.add(source, new int[] { version, 1, 0 }, version);
+				Integer known = expected.get(source);
+				if ((known == null) || (version > known)) {
+					expected.put(source, version);
+				}
+			}
+			merged.addAll(hits);
+		}
+
+		assertEquals(expected.size(), merged.size());
+		for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+			int i = merged.indexOf(entry.getKey());
+			assertTrue(i >= 0);
+			assertEquals((int) entry.getValue(), merged.getVersion(i));
+		}
+		assertFalse(merged.contains(1));
+	}
+
+	@Test
+	public void rankOrdersFromTheFreshest() {
+		Random random = new Random(5);
+		QueryHits hits = new QueryHits();
+		for (int source = 1; source <= 200; source++) {
+			hits.add(source,
+					new int[] { random.nextInt(3), 1, random.nextInt(4) },
+					source);
+		}
+		hits.rank();
+
+		assertEquals(200, hits.size());
+		for (int i = 1; i < hits.size(); i++) {
+			long previous = rankKey(hits, i - 1);
+			long key = rankKey(hits, i);
+			assertTrue((previous > key)
+					|| ((previous == key) && (hits.getSource(i - 1) < hits
+							.getSource(i))));
+			// The other fields moved with their source
+			assertEquals(hits.getSource(i), hits.getLength(i));
+		}
+
+		// The positions follow the new order
+		for (int i = 0; i < hits.size(); i++) {
+			assertEquals(i, hits.indexOf(hits.getSource(i)));
+		}
+	}
+
+	@Test
+	public void newestKeepsOnlyTheLastVersion() {
+		QueryHits hits = new QueryHits();
+		hits.add(1, new int[] { 1, 9, 0 }, 0);
+		hits.add(2, new int[] { 2, 9, 10 }, 0);
+		hits.add(3, new int[] { 2, 9, 30 }, 0);
+
+		QueryHits newest = hits.newest();
+		assertEquals(2, newest.size());
+		assertEquals(3, newest.getSource(0));
+		assertEquals(2, newest.getSource(1));
+	}
+
+	@Test
+	public void binaryFormRoundTrip() throws IOException {
+		QueryHits hits = new QueryHits();
+		for (int source = 1; source <= 20; source++) {
+			hits.add(source, new int[] { source, 1, 2 * source }, 3L * source);
+		}
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		hits.write(new DataOutputStream(stream));
+		QueryHits read = QueryHits.read(new DataInputStream(
+				new ByteArrayInputStream(stream.toByteArray())));
+
+		assertHitsEqual(hits, read);
+	}
+
+	@Test
+	public void serializedHitsFindTheirSources() throws Exception {
+		QueryHits hits = new QueryHits();
+		for (int source = 1; source <= 20; source++) {
+			hits.add(source, new int[] { 0, 1, 0 }, 0);
+		}
+		hits.indexOf(1);
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(stream);
+		out.writeObject(hits);
+		out.close();
+		QueryHits read = (QueryHits) new ObjectInputStream(
+				new ByteArrayInputStream(stream.toByteArray())).readObject();
+
+		assertHitsEqual(hits, read);
+		read.add(21, new int[] { 0, 1, 0 }, 0);
+		assertEquals(20, read.indexOf(21));
+	}
+
+	/**
+	 * @return Version and TTR of a hit in one number, bigger for fresher hits
+	 */
+	private static long rankKey(QueryHits hits, int i) {
+		return ((long) hits.getVersion(i) << 32) | hits.getTTR(i);
+	}
+
+	private static void assertHitsEqual(QueryHits expected, QueryHits hits) {
+		assertEquals(expected.size(), hits.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.getSource(i), hits.getSource(i));
+			assertArrayEquals(expected.getMetadata(i), hits.getMetadata(i));
+			assertEquals(expected.getLength(i), hits.getLength(i));
+			assertEquals(i, hits.indexOf(hits.getSource(i)));
+		}
+	}
+
+}
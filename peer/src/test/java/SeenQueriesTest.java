@@ -0,0 +1,52 @@
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Expiry of the query ids remembered by SeenQueries
+ * 
+ * @author palvare3
+ * 
+ */
+public class SeenQueriesTest {
+
+	@Test
+	public void duplicatesAreDetected() {
+		SeenQueries seen = new SeenQueries(new VirtualClock());
+
+		assertTrue(seen.markSeen(1));
+		assertFalse(seen.markSeen(1));
+		assertTrue(seen.markSeen(2));
+	}
+
+	@Test
+	public void idsAreRememberedDuringTheWindow() {
+		VirtualClock clock = new VirtualClock();
+		SeenQueries seen = new SeenQueries(clock);
+		assertTrue(seen.markSeen(1));
+
+		// Still there in every older bucket of the window
+		for (long t = 1000; t < SeenQueries.WINDOW; t += 1000) {
+			clock.run(t);
+			assertFalse(seen.markSeen(1));
+		}
+	}
+
+	@Test
+	public void idsExpireAfterTheWindow() {
+		VirtualClock clock = new VirtualClock();
+		SeenQueries seen = new SeenQueries(clock);
+		assertTrue(seen.markSeen(1));
+
+		// The slot of the id is reused once the ring wraps around
+		clock.run(SeenQueries.WINDOW);
+		assertTrue(seen.markSeen(1));
+		assertFalse(seen.markSeen(1));
+
+		// And an old bucket left behind does not count either
+		clock.run(3 * SeenQueries.WINDOW + 1000);
+		assertTrue(seen.markSeen(1));
+	}
+
+}
@@ -0,0 +1,104 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.rmi.RemoteException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Expired copies advertised as stale hits can be downloaded while their grace
+ * period lasts, and not after it
+ * 
+ * @author palvare3
+ * 
+ */
+public class StaleServingTest {
+
+	private static final String FILENAME = "a.txt";
+
+	private static final int TTR = 1000;
+
+	private static final int STALE_GRACE = 5000;
+
+	private LocalNetwork network;
+
+	private Peer replica;
+
+	private Peer requester;
+
+	private byte[] content;
+
+	@Before
+	public void setUp() throws IOException {
+		network = new LocalNetwork(PeerMain.MODE_PULL);
+
+		// Bigger than a chunk, so the rest is read through the transfer
+		content = new byte[Peer.CHUNK_SIZE * 2 + 100];
+		new Random(1).nextBytes(content);
+		network.writeMasterFile(1, FILENAME, content);
+
+		network.startPeer(1, TTR, "2,3");
+		replica = network.startPeer(2, TTR, "1,3");
+		requester = network.startPeer(3, TTR, "1,2");
+		replica.setStaleGrace(STALE_GRACE);
+	}
+
+	@After
+	public void tearDown() {
+		network.close();
+	}
+
+	@Test
+	public void staleCopyIsAdvertisedAndServed() throws IOException {
+		assertTrue(new FileDownloader(replica).download(FILENAME, 1));
+		network.getClock().run(TTR + 1);
+		assertEquals(Peer.FILE_TTR_EXPIRED, replica.hasFile(FILENAME));
+		assertTrue(replica.canServeStale(FILENAME));
+
+		// The expired copy can be downloaded from the replica. This goes
+		// first, as the search below starts its revalidation.
+		assertTrue(new FileDownloader(requester).download(FILENAME, 2));
+		assertEquals(Peer.FILE_TTR_EXPIRED, replica.hasFile(FILENAME));
+		assertArrayEquals(content, Files.readAllBytes(requester.getFile(
+				"./downloads/" + FILENAME).toPath()));
+
+		// And it is advertised to searches
+		assertTrue(requester.search(FILENAME).contains(2));
+	}
+
+	@Test
+	public void expiredCopyIsNotServedAfterTheGrace() throws Exception {
+		assertTrue(new FileDownloader(replica).download(FILENAME, 1));
+		network.getClock().run(TTR + STALE_GRACE + 1);
+		assertEquals(Peer.FILE_TTR_EXPIRED, replica.hasFile(FILENAME));
+		assertFalse(replica.canServeStale(FILENAME));
+
+		PeerServerInterface source = network.getTransport().lookup(2);
+		try {
+			source.obtainIfNewer(FILENAME, Peer.NO_VERSION, Compression.NONE,
+					requester.getId(), null);
+			fail("Expired copy served");
+		} catch (RemoteException e) {
+			// Expected, the copy is not up to date
+		}
+	}
+
+	@Test
+	public void removedFileIsNotRefreshed() throws IOException {
+		assertTrue(new FileDownloader(replica).download(FILENAME, 1));
+		network.getClock().run(TTR + 1);
+		replica.removeFile(FILENAME);
+
+		// A refresh queued before the removal finds no metadata
+		assertFalse(replica.lazyUpdate(FILENAME));
+	}
+
+}
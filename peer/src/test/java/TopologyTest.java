@@ -0,0 +1,71 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Topologies of the simulator, built-in and plugged in by class name
+ * 
+ * @author palvare3
+ * 
+ */
+public class TopologyTest {
+
+	@Test
+	public void builtInTopologiesConnectEveryPeer() {
+		for (String name : new String[] { "line", "ring", "star", "grid",
+				"random" }) {
+			Map<Integer, Set<Integer>> neighbors = Topology.forName(name)
+					.connect(20, 3, new Random(1));
+			assertEquals(20, neighbors.size());
+			for (Map.Entry<Integer, Set<Integer>> entry : neighbors.entrySet()) {
+				assertFalse(name, entry.getValue().isEmpty());
+				assertFalse(name, entry.getValue().contains(entry.getKey()));
+				for (Integer neighbor : entry.getValue()) {
+					assertTrue(name,
+							neighbors.get(neighbor).contains(entry.getKey()));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void subclassIsLoadedByName() {
+		Topology topology = Topology.forName(Pairs.class.getName());
+		assertTrue(topology instanceof Pairs);
+		assertEquals(2, topology.connect(2, 1, new Random(1)).size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownClassIsRejected() {
+		Topology.forName("NoSuchTopology");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void otherClassesAreRejected() {
+		Topology.forName("java.lang.Object");
+	}
+
+	/**
+	 * Links each odd peer with the next one
+	 */
+	public static class Pairs extends Topology {
+
+		@Override
+		public Map<Integer, Set<Integer>> connect(int peers, int degree,
+				Random random) {
+			Map<Integer, Set<Integer>> neighbors = empty(peers);
+			for (int id = 1; id < peers; id += 2) {
+				link(neighbors, id, id + 1);
+			}
+			return neighbors;
+		}
+
+	}
+
+}